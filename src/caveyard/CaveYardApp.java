@@ -29,7 +29,11 @@ import com.jme3.scene.control.LightControl;
 import com.jme3.scene.shape.Cylinder;
 import com.jme3.shadow.PointLightShadowFilter;
 import com.jme3.shadow.PointLightShadowRenderer;
+import com.jme3.system.JmeSystem;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -41,12 +45,17 @@ public class CaveYardApp extends SimpleApplication
 {
 	protected static Logger LOGGER = Logger.getLogger(CaveYardApp.class.getName());
 
+	public static final String INPUT_MAPPING_OBJECTS_RENDER_MODE = "OBJECTS_RENDER_MODE";
+	public static final String INPUT_MAPPING_EXPORT_LOAD_TRACE = "EXPORT_LOAD_TRACE";
+
 	protected BulletAppState bulletAppState;
 	protected PlayerControlAppState playerAppState;
 
 	protected MapManager mapManager;
 	protected Map currentMap;
 	protected MapNode mapNode;
+	protected CellLoader cellLoader;
+	protected CollisionShapeBuilder shapeBuilder;
 
 	protected DirectionalLight sun;
 	protected PointLight playerLight;
@@ -142,17 +151,35 @@ public class CaveYardApp extends SimpleApplication
 		LOGGER.fine("Map loaded!");
 
 		mapNode = currentMap.getMapNode();
+		currentMap.setShapeCache(new CollisionShapeCache(new File(JmeSystem.getStorageFolder(), "cache/shapes")));
+		shapeBuilder = new CollisionShapeBuilder(1);
+		currentMap.setShapeBuilder(shapeBuilder);
+
+		// spread integration of loaded cells and physics bodies over frames
+		mapNode.addControl(new IntegrationScheduler(playerNode, 4));
 
 		// create a map control to update visible cells
 		MapLODControl mapLODControl = new MapLODControl(playerNode, 30, 5);
+		cellLoader = new CellLoader(this, 2);
+		mapLODControl.setCellLoader(cellLoader);
+		mapLODControl.setPrefetchTime(2);
 		mapNode.addControl(mapLODControl);
 
-		MapTerrainPhysicsControl mapPhysics = new MapTerrainPhysicsControl(bulletAppState.getPhysicsSpace());
+		MapHLODControl mapHLODControl = new MapHLODControl(playerNode, 90, 80);
+		mapHLODControl.setCellLoader(cellLoader);
+		mapNode.addControl(mapHLODControl);
+
+		MapTerrainPhysicsControl mapPhysics = new MapTerrainPhysicsControl(bulletAppState.getPhysicsSpace(), playerNode, 15);
 		mapNode.addControl(mapPhysics);
 
 		MapObjectsControl objectsControl = new MapObjectsControl(playerNode, 25, 10, 0.5f,
 				bulletAppState.getPhysicsSpace());
+		objectsControl.setShapeBuilder(shapeBuilder);
+		objectsControl.setUseProxyShapes(true);
+		objectsControl.setCamera(cam);
 		mapNode.addControl(objectsControl);
+		initObjectsRenderModeToggle(objectsControl);
+		initLoadTraceExport();
 
 		rootNode.attachChild(mapNode);
 
@@ -189,6 +216,58 @@ public class CaveYardApp extends SimpleApplication
 		viewPort.addProcessor(fpp);
 	}
 
+	/**
+	 * Switches through the render modes of static objects by pressing F4
+	 * to compare their draw calls and frame times.
+	 */
+	private void initObjectsRenderModeToggle(final MapObjectsControl objectsControl)
+	{
+		inputManager.addMapping(INPUT_MAPPING_OBJECTS_RENDER_MODE, new KeyTrigger(KeyInput.KEY_F4));
+		inputManager.addListener(new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				if (isPressed)
+				{
+					MapObjectsControl.RenderMode[] modes = MapObjectsControl.RenderMode.values();
+					MapObjectsControl.RenderMode mode = modes[(objectsControl.getRenderMode().ordinal() + 1) % modes.length];
+					objectsControl.setRenderMode(mode);
+					LOGGER.info("Objects render mode: " + mode);
+				}
+			}
+		}, INPUT_MAPPING_OBJECTS_RENDER_MODE);
+	}
+
+	/**
+	 * Logs the cell load statistics and writes the trace of recent cell
+	 * loads to the storage folder when F5 is pressed.
+	 */
+	private void initLoadTraceExport()
+	{
+		inputManager.addMapping(INPUT_MAPPING_EXPORT_LOAD_TRACE, new KeyTrigger(KeyInput.KEY_F5));
+		inputManager.addListener(new ActionListener()
+		{
+			@Override
+			public void onAction(String name, boolean isPressed, float tpf)
+			{
+				CellLoadProfiler profiler = currentMap.getProfiler();
+				if (isPressed && profiler != null)
+				{
+					profiler.logSummary();
+					try
+					{
+						profiler.writeChromeTrace(new File(JmeSystem.getStorageFolder(), "cell-load-trace.json"));
+					}
+					catch (IOException e)
+					{
+						LOGGER.log(Level.WARNING, "Cannot write cell load trace.", e);
+					}
+				}
+			}
+		}, INPUT_MAPPING_EXPORT_LOAD_TRACE);
+	}
+
 	@Override
 	public void simpleUpdate(float tpf)
 	{
@@ -199,6 +278,20 @@ public class CaveYardApp extends SimpleApplication
 	{
 	}
 
+	@Override
+	public void destroy()
+	{
+		if (cellLoader != null)
+		{
+			cellLoader.shutdown();
+		}
+		if (shapeBuilder != null)
+		{
+			shapeBuilder.shutdown();
+		}
+		super.destroy();
+	}
+
 	public MapNode getMapNode()
 	{
 		return mapNode;
@@ -0,0 +1,198 @@
+package caveyard.assets;
+
+import caveyard.map.Map;
+import caveyard.quest.QuestManager;
+import caveyard.util.TextManager;
+import caveyard.xml.map.MapType;
+import caveyard.xml.quests.QuestsType;
+import caveyard.xml.text.Texts;
+
+import javax.xml.bind.JAXB;
+import java.io.*;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Build step which writes the cooked version of all map, quest and text
+ * definitions found in the assets folder next to their XML source. Files
+ * whose cooked version is up to date are skipped.
+ *
+ * Usage: {@code AssetCooker <assets folder>}
+ *
+ * @author Maximilian Timmerkamp
+ * @see CookedFormat
+ */
+public class AssetCooker
+{
+	protected static final Logger LOGGER = Logger.getLogger(AssetCooker.class.getName());
+
+	protected static final String MAP_SUFFIX = ".map.xml";
+	protected static final String TEXTS_FOLDER = "Data/texts/";
+	protected static final String QUESTS_FOLDER = "Data/quest/";
+
+	protected File assetsFolder;
+	protected int cookedFiles;
+	protected int skippedFiles;
+
+	public AssetCooker(File assetsFolder)
+	{
+		this.assetsFolder = assetsFolder;
+	}
+
+	/**
+	 * Cooks all definition files in the assets folder.
+	 * @return true if no file failed to cook.
+	 */
+	public boolean cookAll()
+	{
+		return cookFolder(assetsFolder);
+	}
+
+	protected boolean cookFolder(File folder)
+	{
+		File[] files = folder.listFiles();
+		if (files == null)
+		{
+			return true;
+		}
+
+		boolean success = true;
+		for (File file: files)
+		{
+			if (file.isDirectory())
+			{
+				success &= cookFolder(file);
+			}
+			else
+			{
+				byte type = getType(getAssetName(file));
+				if (type != 0)
+				{
+					success &= cookFile(file, type);
+				}
+			}
+		}
+		return success;
+	}
+
+	protected String getAssetName(File file)
+	{
+		String path = assetsFolder.toURI().relativize(file.toURI()).getPath();
+		return path.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Determines the type of a definition file by its asset name.
+	 * @return One of the types in {@link CookedFormat} or 0 if the file
+	 * is not cooked.
+	 */
+	protected byte getType(String assetName)
+	{
+		if (!assetName.endsWith(CookedFormat.XML_EXTENSION))
+		{
+			return 0;
+		}
+		if (assetName.endsWith(MAP_SUFFIX))
+		{
+			return CookedFormat.TYPE_MAP;
+		}
+		if (assetName.startsWith(TEXTS_FOLDER))
+		{
+			return CookedFormat.TYPE_TEXTS;
+		}
+		if (assetName.startsWith(QUESTS_FOLDER))
+		{
+			return CookedFormat.TYPE_QUESTS;
+		}
+		return 0;
+	}
+
+	protected boolean cookFile(File xmlFile, byte type)
+	{
+		File cookedFile = new File(xmlFile.getParentFile(), CookedFormat.getCookedName(xmlFile.getName()));
+
+		try
+		{
+			byte[] sourceHash;
+			try (InputStream in = new FileInputStream(xmlFile))
+			{
+				sourceHash = CookedFormat.hash(in);
+			}
+
+			if (isUpToDate(cookedFile, type, sourceHash))
+			{
+				skippedFiles++;
+				return true;
+			}
+
+			File tempFile = new File(cookedFile.getPath() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+			{
+				CookedFormat.writeHeader(out, type, sourceHash);
+				switch (type)
+				{
+					case CookedFormat.TYPE_MAP:
+						Map.cook(JAXB.unmarshal(xmlFile, MapType.class), out);
+						break;
+					case CookedFormat.TYPE_QUESTS:
+						QuestManager.cook(JAXB.unmarshal(xmlFile, QuestsType.class), out);
+						break;
+					case CookedFormat.TYPE_TEXTS:
+						TextManager.cook(JAXB.unmarshal(xmlFile, Texts.class), out);
+						break;
+				}
+			}
+
+			if (cookedFile.exists() && !cookedFile.delete() || !tempFile.renameTo(cookedFile))
+			{
+				throw new IOException("Cannot replace \"" + cookedFile + "\".");
+			}
+
+			LOGGER.info("Cooked \"" + getAssetName(xmlFile) + "\": " + xmlFile.length() + " -> " +
+					cookedFile.length() + " bytes");
+			cookedFiles++;
+			return true;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.SEVERE, "Cannot cook \"" + xmlFile + "\".", e);
+			return false;
+		}
+	}
+
+	protected boolean isUpToDate(File cookedFile, byte type, byte[] sourceHash)
+	{
+		if (!cookedFile.isFile())
+		{
+			return false;
+		}
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(cookedFile)))
+		{
+			return Arrays.equals(CookedFormat.readHeader(in, type), sourceHash);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: AssetCooker <assets folder>");
+			System.exit(2);
+		}
+
+		AssetCooker cooker = new AssetCooker(new File(args[0]));
+		boolean success = cooker.cookAll();
+		LOGGER.info("Cooked " + cooker.cookedFiles + " files, " + cooker.skippedFiles + " up to date.");
+
+		if (!success)
+		{
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package caveyard.assets;
+
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Common parts of the binary "cooked" format of definition files. A cooked
+ * file is written next to its XML source by {@link AssetCooker} and starts
+ * with a header containing {@link #MAGIC}, {@link #VERSION}, the type of
+ * the definition and the SHA-1 hash of the XML source. Loaders use
+ * {@link #openCooked(AssetManager, String, byte)} and fall back to the XML
+ * file if no up-to-date cooked file exists.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CookedFormat
+{
+	protected static final Logger LOGGER = Logger.getLogger(CookedFormat.class.getName());
+
+	public static final int MAGIC = 0x43594344; // "CYCD"
+	/**
+	 * Version of the cooked format. Increase whenever the layout of any
+	 * cooked type changes, so that old files are cooked again.
+	 */
+	public static final short VERSION = 3;
+
+	public static final byte TYPE_MAP = 1;
+	public static final byte TYPE_QUESTS = 2;
+	public static final byte TYPE_TEXTS = 3;
+
+	public static final String XML_EXTENSION = ".xml";
+	public static final String COOKED_EXTENSION = ".cooked";
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+	protected static final int HASH_LENGTH = 20;
+
+	/**
+	 * Gets the name of the cooked file belonging to an XML file.
+	 * @param xmlName Name of the XML file, e.g. "Data/map/test.map.xml".
+	 * @return Name of the cooked file, e.g. "Data/map/test.map.cooked".
+	 */
+	public static String getCookedName(String xmlName)
+	{
+		if (xmlName.endsWith(XML_EXTENSION))
+		{
+			return xmlName.substring(0, xmlName.length() - XML_EXTENSION.length()) + COOKED_EXTENSION;
+		}
+		return xmlName + COOKED_EXTENSION;
+	}
+
+	/**
+	 * Opens the cooked file of the passed XML asset if it exists, has the
+	 * expected type and was cooked from the current XML source. If the XML
+	 * source does not exist, the cooked file is used without checking it.
+	 *
+	 * @param assetManager Used to locate both files.
+	 * @param xmlName Name of the XML asset.
+	 * @param type Expected type of the cooked file.
+	 * @return A stream positioned right after the header or null if the XML
+	 * file has to be loaded instead.
+	 */
+	public static DataInputStream openCooked(AssetManager assetManager, String xmlName, byte type)
+	{
+		AssetInfo cookedInfo = assetManager.locateAsset(new AssetKey<>(getCookedName(xmlName)));
+		if (cookedInfo == null)
+		{
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(cookedInfo.openStream()));
+		try
+		{
+			if (isCurrent(assetManager, xmlName, readHeader(in, type)))
+			{
+				return in;
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Cannot read cooked file of \"" + xmlName + "\": loading XML.", e);
+		}
+
+		close(in);
+		return null;
+	}
+
+	/**
+	 * Same as {@link #openCooked(AssetManager, String, byte)}, but returns
+	 * the whole cooked file as buffer. If the file is located on disk, it
+	 * is memory-mapped instead of read.
+	 *
+	 * @return A buffer positioned right after the header or null if the XML
+	 * file has to be loaded instead.
+	 */
+	public static ByteBuffer mapCooked(AssetManager assetManager, String xmlName, byte type)
+	{
+		AssetInfo cookedInfo = assetManager.locateAsset(new AssetKey<>(getCookedName(xmlName)));
+		if (cookedInfo == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			ByteBuffer buffer;
+			try (InputStream in = cookedInfo.openStream())
+			{
+				if (in instanceof FileInputStream)
+				{
+					FileChannel channel = ((FileInputStream) in).getChannel();
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				}
+				else
+				{
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					byte[] chunk = new byte[8192];
+					int read;
+					while ((read = in.read(chunk)) != -1)
+					{
+						bytes.write(chunk, 0, read);
+					}
+					buffer = ByteBuffer.wrap(bytes.toByteArray());
+				}
+			}
+
+			if (isCurrent(assetManager, xmlName, readHeader(buffer, type)))
+			{
+				return buffer;
+			}
+		}
+		catch (IOException | BufferUnderflowException e)
+		{
+			LOGGER.log(Level.WARNING, "Cannot read cooked file of \"" + xmlName + "\": loading XML.", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a cooked file was cooked from the current XML source.
+	 * @param cookedHash Hash read from the cooked file's header or null if
+	 * the header is invalid.
+	 * @return true if the cooked file can be used.
+	 */
+	protected static boolean isCurrent(AssetManager assetManager, String xmlName, byte[] cookedHash) throws IOException
+	{
+		if (cookedHash == null)
+		{
+			LOGGER.info("Cooked file of \"" + xmlName + "\" has an unsupported format: loading XML.");
+			return false;
+		}
+
+		AssetInfo xmlInfo = assetManager.locateAsset(new AssetKey<>(xmlName));
+		if (xmlInfo == null)
+		{
+			return true;
+		}
+
+		byte[] sourceHash;
+		try (InputStream in = xmlInfo.openStream())
+		{
+			sourceHash = hash(in);
+		}
+		if (!Arrays.equals(sourceHash, cookedHash))
+		{
+			LOGGER.info("Cooked file of \"" + xmlName + "\" is outdated: loading XML.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the header of a cooked file.
+	 * @param out Stream to write to.
+	 * @param type Type of the cooked file.
+	 * @param sourceHash SHA-1 hash of the XML source.
+	 */
+	public static void writeHeader(DataOutput out, byte type, byte[] sourceHash) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeByte(type);
+		out.write(sourceHash);
+	}
+
+	/**
+	 * Reads the header of a cooked file.
+	 * @param in Stream to read from.
+	 * @param type Expected type.
+	 * @return The hash of the XML source or null if the header does not
+	 * match the expected magic, version or type.
+	 */
+	public static byte[] readHeader(DataInput in, byte type) throws IOException
+	{
+		if (in.readInt() != MAGIC || in.readShort() != VERSION || in.readByte() != type)
+		{
+			return null;
+		}
+		byte[] sourceHash = new byte[HASH_LENGTH];
+		in.readFully(sourceHash);
+		return sourceHash;
+	}
+
+	/**
+	 * Reads the header of a cooked file from a buffer.
+	 * @see #readHeader(DataInput, byte)
+	 */
+	public static byte[] readHeader(ByteBuffer buffer, byte type)
+	{
+		if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION || buffer.get() != type)
+		{
+			return null;
+		}
+		byte[] sourceHash = new byte[HASH_LENGTH];
+		buffer.get(sourceHash);
+		return sourceHash;
+	}
+
+	/**
+	 * Writes a string which may be null or longer than the 64 KiB allowed
+	 * by {@link DataOutput#writeUTF(String)}.
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			byte[] bytes = value.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 */
+	public static String readString(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+		{
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Calculates the SHA-1 hash of a stream's content.
+	 */
+	public static byte[] hash(InputStream in) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+		{
+			digest.update(buffer, 0, read);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Logs how long loading a definition file took, so the time needed to
+	 * load cooked and XML files can be compared.
+	 *
+	 * @param logger Logger of the loading class.
+	 * @param type Human readable type of the definition, e.g. "map".
+	 * @param name Name of the loaded file.
+	 * @param cooked true if the cooked file was loaded.
+	 * @param startTime Value of {@link System#nanoTime()} before loading.
+	 */
+	public static void logLoadTime(Logger logger, String type, String name, boolean cooked, long startTime)
+	{
+		if (logger.isLoggable(Level.FINE))
+		{
+			float millis = (System.nanoTime() - startTime) / 1e6f;
+			logger.fine(String.format("Loaded %s \"%s\" from %s in %.2f ms", type, name,
+					cooked ? "cooked file" : "XML", millis));
+		}
+	}
+
+	public static void close(Closeable closeable)
+	{
+		try
+		{
+			closeable.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.FINE, "Cannot close stream.", e);
+		}
+	}
+}
@@ -7,18 +7,41 @@ import com.jme3.asset.AssetLoader;
 
 import javax.xml.bind.JAXB;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
 
 /**
+ * Loads maps. Uses the cooked map file if an up-to-date one exists and
+ * falls back to the XML definition otherwise. Cooked map files are
+ * memory-mapped and their cells are read on demand.
+ *
  * @author Maximilian Timmerkamp
  */
 public class MapLoader implements AssetLoader
 {
+	protected static final Logger LOGGER = Logger.getLogger(MapLoader.class.getName());
 
 	@Override
 	public Object load(AssetInfo assetInfo) throws IOException
 	{
-		MapType xmlMap = JAXB.unmarshal(assetInfo.openStream(), MapType.class);
+		long startTime = System.nanoTime();
+		String name = assetInfo.getKey().getName();
 
-		return Map.load(xmlMap, assetInfo.getManager());
+		Map map;
+		boolean cooked = false;
+		ByteBuffer buffer = CookedFormat.mapCooked(assetInfo.getManager(), name, CookedFormat.TYPE_MAP);
+		if (buffer != null)
+		{
+			map = Map.load(buffer, assetInfo.getManager());
+			cooked = true;
+		}
+		else
+		{
+			MapType xmlMap = JAXB.unmarshal(assetInfo.openStream(), MapType.class);
+			map = Map.load(xmlMap, assetInfo.getManager());
+		}
+
+		CookedFormat.logLoadTime(LOGGER, "map", name, cooked, startTime);
+		return map;
 	}
 }
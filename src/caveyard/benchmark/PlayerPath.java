@@ -0,0 +1,170 @@
+package caveyard.benchmark;
+
+import caveyard.map.math.Rect;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector2f;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Polyline in the x-z-plane a virtual player follows. Paths are either
+ * generated or read from a text file with one waypoint per line given as
+ * <code>x z</code>. Empty lines and lines starting with <code>#</code> are
+ * ignored, so recorded paths can be annotated.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class PlayerPath
+{
+	protected ArrayList<Vector2f> waypoints;
+	/**
+	 * Distance from the first waypoint to each waypoint along the path.
+	 */
+	protected float[] distances;
+
+	public PlayerPath(ArrayList<Vector2f> waypoints)
+	{
+		if (waypoints.size() < 2)
+		{
+			throw new IllegalArgumentException("A path needs at least two waypoints. Got " + waypoints.size() + ".");
+		}
+
+		this.waypoints = waypoints;
+		this.distances = new float[waypoints.size()];
+		for (int i = 1; i < waypoints.size(); i++)
+		{
+			distances[i] = distances[i - 1] + waypoints.get(i - 1).distance(waypoints.get(i));
+		}
+	}
+
+	/**
+	 * Reads a path from a text file.
+	 * @param file File with one <code>x z</code> waypoint per line.
+	 * @return The path read.
+	 * @throws IOException If the file cannot be read or a line is malformed.
+	 */
+	public static PlayerPath read(File file) throws IOException
+	{
+		ArrayList<Vector2f> waypoints = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+
+				String[] parts = line.split("\\s+");
+				if (parts.length != 2)
+				{
+					throw new IOException(file + ":" + lineNumber + ": expected \"x z\" but got \"" + line + "\".");
+				}
+				try
+				{
+					waypoints.add(new Vector2f(Float.parseFloat(parts[0]), Float.parseFloat(parts[1])));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		return new PlayerPath(waypoints);
+	}
+
+	/**
+	 * Creates a closed circle.
+	 * @param center Center of the circle.
+	 * @param radius Radius of the circle.
+	 * @param segments Number of straight segments approximating the circle.
+	 * @return The generated path.
+	 */
+	public static PlayerPath circle(Vector2f center, float radius, int segments)
+	{
+		ArrayList<Vector2f> waypoints = new ArrayList<>(segments + 1);
+		for (int i = 0; i <= segments; i++)
+		{
+			float angle = FastMath.TWO_PI * i / segments;
+			waypoints.add(new Vector2f(center.x + radius * FastMath.cos(angle),
+					center.y + radius * FastMath.sin(angle)));
+		}
+		return new PlayerPath(waypoints);
+	}
+
+	/**
+	 * Creates a path sweeping back and forth over an area, so every part
+	 * of the area is passed at a distance of at most half the spacing.
+	 * @param area Area to sweep.
+	 * @param spacing Distance between the parallel lanes.
+	 * @return The generated path.
+	 */
+	public static PlayerPath sweep(Rect area, float spacing)
+	{
+		ArrayList<Vector2f> waypoints = new ArrayList<>();
+		boolean forward = true;
+		for (float y = area.getY1() + spacing / 2; ; y += spacing)
+		{
+			y = Math.min(y, area.getY2());
+			float startX = forward ? area.getX1() : area.getX2();
+			float endX = forward ? area.getX2() : area.getX1();
+			waypoints.add(new Vector2f(startX, y));
+			waypoints.add(new Vector2f(endX, y));
+			forward = !forward;
+
+			if (y >= area.getY2() - spacing / 2) break;
+		}
+		return new PlayerPath(waypoints);
+	}
+
+	public float getLength()
+	{
+		return distances[distances.length - 1];
+	}
+
+	public int getWaypointCount()
+	{
+		return waypoints.size();
+	}
+
+	/**
+	 * Computes the position at a distance along the path. Distances beyond
+	 * the end are clamped to the last waypoint.
+	 * @param distance Distance from the first waypoint.
+	 * @param store Vector to store the position in or null to create one.
+	 * @return The position.
+	 */
+	public Vector2f getPosition(float distance, Vector2f store)
+	{
+		if (store == null) store = new Vector2f();
+
+		if (distance <= 0) return store.set(waypoints.get(0));
+		if (distance >= getLength()) return store.set(waypoints.get(waypoints.size() - 1));
+
+		// find the segment containing the distance
+		int low = 0, high = distances.length - 1;
+		while (high - low > 1)
+		{
+			int mid = (low + high) >>> 1;
+			if (distances[mid] <= distance)
+			{
+				low = mid;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+
+		Vector2f from = waypoints.get(low);
+		Vector2f to = waypoints.get(high);
+		float segment = distances[high] - distances[low];
+		float t = segment > 0 ? (distance - distances[low]) / segment : 0;
+		return store.set(from.x + (to.x - from.x) * t, from.y + (to.y - from.y) * t);
+	}
+}
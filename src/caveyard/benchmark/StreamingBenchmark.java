@@ -0,0 +1,543 @@
+package caveyard.benchmark;
+
+import caveyard.assets.MapLoader;
+import caveyard.assets.ScriptLoader;
+import caveyard.map.*;
+import caveyard.map.math.Rect;
+import com.jme3.app.SimpleApplication;
+import com.jme3.bullet.BulletAppState;
+import com.jme3.math.Vector2f;
+import com.jme3.scene.Node;
+import com.jme3.system.AppSettings;
+import com.jme3.system.JmeContext;
+import com.jme3.system.Timer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams a map without a window and measures how well loading keeps up.
+ * The map is loaded by the {@link MapManager} and a virtual player is moved
+ * along a {@link PlayerPath} while the {@link MapLODControl},
+ * {@link MapObjectsControl} and {@link MapTerrainPhysicsControl} update the
+ * map each tick, set up like in the game. When the path is finished, the
+ * time per tick, the number of cells loaded per second, the allocation rate
+ * and the peak heap usage are printed and optionally appended to a CSV file
+ * to compare builds.
+ * <p>
+ *     Ticks advance the simulation by a fixed time step, so the player is
+ *     at the same position in each tick of every run. By default the ticks
+ *     are limited to the same rate, so background loading gets as much time
+ *     per tick as in the game.
+ * </p>
+ * <p>
+ *     Usage: <code>StreamingBenchmark [options]</code>
+ * </p>
+ * <pre>
+ *     --map &lt;id&gt;          map to load, default test_map1
+ *     --path &lt;file&gt;       follow the waypoints of a file, see {@link PlayerPath#read(File)}
+ *     --circle &lt;radius&gt;   follow a circle around the map's center
+ *     --sweep &lt;spacing&gt;   sweep the map's bounds in lanes (default, spacing 20)
+ *     --speed &lt;m/s&gt;       speed of the player, default 6
+ *     --tps &lt;n&gt;           ticks per simulated second, default 60
+ *     --unthrottled       run ticks as fast as possible
+ *     --warmup &lt;n&gt;        ticks not measured at the start, default 60
+ *     --out &lt;file&gt;        append the results to a CSV file
+ * </pre>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class StreamingBenchmark extends SimpleApplication
+{
+	protected static final Logger LOGGER = Logger.getLogger(StreamingBenchmark.class.getName());
+
+	protected static final float PLAYER_HEIGHT = 2;
+
+	/**
+	 * Timer advancing by a fixed step each frame.
+	 */
+	protected static class FixedStepTimer extends Timer
+	{
+		protected final float step;
+		protected long ticks;
+
+		public FixedStepTimer(float step)
+		{
+			this.step = step;
+		}
+
+		@Override
+		public long getTime()
+		{
+			return (long) (ticks * (double) step * getResolution());
+		}
+
+		@Override
+		public long getResolution()
+		{
+			return 1000000000L;
+		}
+
+		@Override
+		public float getFrameRate()
+		{
+			return 1 / step;
+		}
+
+		@Override
+		public float getTimePerFrame()
+		{
+			return step;
+		}
+
+		@Override
+		public void update()
+		{
+			ticks++;
+		}
+
+		@Override
+		public void reset()
+		{
+			ticks = 0;
+		}
+	}
+
+	protected String mapId = "test_map1";
+	protected File pathFile;
+	protected float circleRadius;
+	protected float sweepSpacing = 20;
+	protected float speed = 6;
+	protected int ticksPerSecond = 60;
+	protected boolean throttled = true;
+	protected int warmupTicks = 60;
+	protected File outFile;
+
+	protected BulletAppState bulletAppState;
+	protected CellLoader cellLoader;
+	protected CollisionShapeBuilder shapeBuilder;
+	protected Map map;
+	protected Node playerNode;
+	protected PlayerPath path;
+
+	protected int tick;
+	protected float travelled;
+	protected final Vector2f position = new Vector2f();
+
+	/**
+	 * Durations of the measured ticks in nanoseconds.
+	 */
+	protected long[] tickTimes = new long[1024];
+	protected int measuredTicks;
+
+	protected com.sun.management.ThreadMXBean threadBean;
+	protected long renderThreadId;
+	/**
+	 * Bytes allocated by the render thread during measured ticks.
+	 */
+	protected long renderThreadAllocated;
+	protected long startAllocated;
+	protected long startTime;
+	protected long startLoadedCells;
+	protected long startGcCount;
+	protected long startGcTime;
+
+	public static void main(String[] args)
+	{
+		StreamingBenchmark benchmark = new StreamingBenchmark();
+		try
+		{
+			benchmark.parseArguments(args);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		AppSettings settings = new AppSettings(true);
+		settings.setFrameRate(benchmark.throttled ? benchmark.ticksPerSecond : -1);
+		benchmark.setSettings(settings);
+		benchmark.setShowSettings(false);
+		benchmark.setTimer(new FixedStepTimer(1f / benchmark.ticksPerSecond));
+		benchmark.start(JmeContext.Type.Headless);
+	}
+
+	protected void parseArguments(String[] args)
+	{
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("--unthrottled"))
+			{
+				throttled = false;
+				continue;
+			}
+
+			if (i + 1 >= args.length)
+			{
+				throw new IllegalArgumentException("Missing value of " + arg + ".");
+			}
+			String value = args[++i];
+			try
+			{
+				switch (arg)
+				{
+					case "--map":
+						mapId = value;
+						break;
+					case "--path":
+						pathFile = new File(value);
+						break;
+					case "--circle":
+						circleRadius = Float.parseFloat(value);
+						break;
+					case "--sweep":
+						sweepSpacing = Float.parseFloat(value);
+						break;
+					case "--speed":
+						speed = Float.parseFloat(value);
+						break;
+					case "--tps":
+						ticksPerSecond = Integer.parseInt(value);
+						break;
+					case "--warmup":
+						warmupTicks = Integer.parseInt(value);
+						break;
+					case "--out":
+						outFile = new File(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + arg + ".");
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+			}
+		}
+
+		if (speed <= 0 || ticksPerSecond <= 0)
+		{
+			throw new IllegalArgumentException("Speed and ticks per second must be positive.");
+		}
+	}
+
+	@Override
+	public void simpleInitApp()
+	{
+		assetManager.registerLoader(ScriptLoader.class, "js");
+		assetManager.registerLoader(MapLoader.class, "map.xml");
+
+		map = MapManager.getInstance(assetManager).loadMap(mapId);
+		if (map == null)
+		{
+			LOGGER.severe("Unknown map \"" + mapId + "\".");
+			stop();
+			return;
+		}
+
+		try
+		{
+			path = createPath();
+		}
+		catch (IOException | IllegalArgumentException e)
+		{
+			LOGGER.log(Level.SEVERE, "Cannot create player path.", e);
+			stop();
+			return;
+		}
+		LOGGER.info(String.format(Locale.ROOT, "Following path of %.1f m with %d waypoints at %.1f m/s.",
+				path.getLength(), path.getWaypointCount(), speed));
+
+		bulletAppState = new BulletAppState();
+		bulletAppState.setThreadingType(BulletAppState.ThreadingType.SEQUENTIAL);
+		stateManager.attach(bulletAppState);
+
+		playerNode = new Node("player");
+		path.getPosition(0, position);
+		playerNode.setLocalTranslation(position.x, PLAYER_HEIGHT, position.y);
+		rootNode.attachChild(playerNode);
+
+		// same setup as the game
+		MapNode mapNode = map.getMapNode();
+		shapeBuilder = new CollisionShapeBuilder(1);
+		map.setShapeBuilder(shapeBuilder);
+
+		mapNode.addControl(new IntegrationScheduler(playerNode, 4));
+
+		MapLODControl mapLODControl = new MapLODControl(playerNode, 30, 5);
+		cellLoader = new CellLoader(this, 2);
+		mapLODControl.setCellLoader(cellLoader);
+		mapLODControl.setPrefetchTime(2);
+		mapNode.addControl(mapLODControl);
+
+		mapNode.addControl(new MapTerrainPhysicsControl(bulletAppState.getPhysicsSpace(), playerNode, 15));
+
+		MapObjectsControl objectsControl = new MapObjectsControl(playerNode, 25, 10, 0.5f,
+				bulletAppState.getPhysicsSpace());
+		objectsControl.setShapeBuilder(shapeBuilder);
+		objectsControl.setUseProxyShapes(true);
+		mapNode.addControl(objectsControl);
+
+		rootNode.attachChild(mapNode);
+
+		threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threadBean.isThreadAllocatedMemorySupported())
+		{
+			LOGGER.warning("Allocated memory cannot be measured by this JVM.");
+			threadBean = null;
+		}
+		else
+		{
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+		renderThreadId = Thread.currentThread().getId();
+	}
+
+	/**
+	 * Creates the path given by the arguments. Generated paths are placed
+	 * on the bounds of the map.
+	 */
+	protected PlayerPath createPath() throws IOException
+	{
+		if (pathFile != null)
+		{
+			return PlayerPath.read(pathFile);
+		}
+
+		Rect bounds = map.getBounds();
+		if (bounds == null)
+		{
+			throw new IllegalArgumentException("Map \"" + mapId + "\" has no cells.");
+		}
+
+		if (circleRadius > 0)
+		{
+			Vector2f center = new Vector2f((bounds.getX1() + bounds.getX2()) / 2, (bounds.getY1() + bounds.getY2()) / 2);
+			return PlayerPath.circle(center, circleRadius, 64);
+		}
+		return PlayerPath.sweep(bounds, sweepSpacing);
+	}
+
+	@Override
+	public void simpleUpdate(float tpf)
+	{
+		if (path == null) return;
+
+		travelled += speed * tpf;
+		path.getPosition(travelled, position);
+		playerNode.setLocalTranslation(position.x, PLAYER_HEIGHT, position.y);
+
+		if (tick == warmupTicks)
+		{
+			startMeasuring();
+		}
+	}
+
+	/**
+	 * Runs and measures a whole tick: app states including physics, the
+	 * movement of the player and the map's controls.
+	 */
+	@Override
+	public void update()
+	{
+		final boolean measure = tick > warmupTicks;
+		final long allocatedBefore = measure && threadBean != null ? threadBean.getThreadAllocatedBytes(renderThreadId) : 0;
+		final long start = System.nanoTime();
+
+		super.update();
+
+		final long duration = System.nanoTime() - start;
+		if (measure)
+		{
+			if (threadBean != null)
+			{
+				renderThreadAllocated += threadBean.getThreadAllocatedBytes(renderThreadId) - allocatedBefore;
+			}
+			if (measuredTicks == tickTimes.length)
+			{
+				tickTimes = Arrays.copyOf(tickTimes, tickTimes.length * 2);
+			}
+			tickTimes[measuredTicks++] = duration;
+		}
+		tick++;
+
+		if (path != null && travelled >= path.getLength())
+		{
+			report();
+			path = null;
+			stop();
+		}
+	}
+
+	protected void startMeasuring()
+	{
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				pool.resetPeakUsage();
+			}
+		}
+		startAllocated = getAllocatedBytes();
+		startTime = System.nanoTime();
+		startLoadedCells = map.getLoadedCellCount();
+		startGcCount = getGcCount();
+		startGcTime = getGcTime();
+	}
+
+	/**
+	 * Returns the bytes allocated by all live threads.
+	 */
+	protected long getAllocatedBytes()
+	{
+		if (threadBean == null) return 0;
+
+		long total = 0;
+		for (long allocated: threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds()))
+		{
+			if (allocated > 0)
+			{
+				total += allocated;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the sum of the peak usages of all heap pools since measuring
+	 * started. As the pools peak at different times, this is an upper bound
+	 * of the actual peak.
+	 */
+	protected long getPeakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+			{
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	protected static long getGcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	protected static long getGcTime()
+	{
+		long time = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			time += Math.max(gc.getCollectionTime(), 0);
+		}
+		return time;
+	}
+
+	protected void report()
+	{
+		if (measuredTicks == 0)
+		{
+			LOGGER.warning("Path finished during warm up, nothing measured.");
+			return;
+		}
+
+		final float seconds = (System.nanoTime() - startTime) / 1e9f;
+		final long[] sorted = Arrays.copyOf(tickTimes, measuredTicks);
+		Arrays.sort(sorted);
+		long sum = 0;
+		for (long time: sorted)
+		{
+			sum += time;
+		}
+
+		final float mean = sum / 1e6f / measuredTicks;
+		final float p50 = getPercentile(sorted, 0.5f);
+		final float p90 = getPercentile(sorted, 0.9f);
+		final float p99 = getPercentile(sorted, 0.99f);
+		final float max = sorted[sorted.length - 1] / 1e6f;
+		final long loadedCells = map.getLoadedCellCount() - startLoadedCells;
+		final float cellsPerSecond = loadedCells / seconds;
+		final float allocationRate = (getAllocatedBytes() - startAllocated) / 1048576f / seconds;
+		final float renderAllocationPerTick = renderThreadAllocated / 1024f / measuredTicks;
+		final float peakHeap = getPeakHeap() / 1048576f;
+		final long gcCount = getGcCount() - startGcCount;
+		final long gcTime = getGcTime() - startGcTime;
+
+		System.out.println(String.format(Locale.ROOT, "Streaming benchmark of map \"%s\"", mapId));
+		System.out.println(String.format(Locale.ROOT, "  ticks:        %d in %.1f s (%.1f m travelled)",
+				measuredTicks, seconds, travelled));
+		System.out.println(String.format(Locale.ROOT,
+				"  tick time:    mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+				mean, p50, p90, p99, max));
+		System.out.println(String.format(Locale.ROOT, "  cells loaded: %d (%.1f per second)",
+				loadedCells, cellsPerSecond));
+		System.out.println(String.format(Locale.ROOT, "  allocation:   %.1f MB/s, %.1f KB per tick on render thread",
+				allocationRate, renderAllocationPerTick));
+		System.out.println(String.format(Locale.ROOT, "  heap:         peak %.1f MB, %d collections taking %d ms",
+				peakHeap, gcCount, gcTime));
+
+		if (outFile != null)
+		{
+			boolean header = !outFile.exists();
+			try (PrintWriter out = new PrintWriter(new FileWriter(outFile, true)))
+			{
+				if (header)
+				{
+					out.println("map,ticks,seconds,meanMs,p50Ms,p90Ms,p99Ms,maxMs,cellsLoaded,cellsPerSecond," +
+							"allocMBps,renderAllocKBPerTick,peakHeapMB,gcCount,gcMs");
+				}
+				out.println(String.format(Locale.ROOT, "%s,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%.2f,%.2f,%.2f,%.1f,%d,%d",
+						mapId, measuredTicks, seconds, mean, p50, p90, p99, max, loadedCells, cellsPerSecond,
+						allocationRate, renderAllocationPerTick, peakHeap, gcCount, gcTime));
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Cannot write results to " + outFile + ".", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns a percentile of sorted durations by the nearest rank.
+	 * @return Duration in milliseconds.
+	 */
+	protected static float getPercentile(long[] sorted, float percentile)
+	{
+		int rank = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(rank, sorted.length - 1))] / 1e6f;
+	}
+
+	@Override
+	public void destroy()
+	{
+		if (cellLoader != null)
+		{
+			cellLoader.shutdown();
+		}
+		if (shapeBuilder != null)
+		{
+			shapeBuilder.shutdown();
+		}
+		super.destroy();
+	}
+}
@@ -1,14 +1,20 @@
 package caveyard.map;
 
 import caveyard.map.math.Rect;
+import caveyard.util.SpatialUtil;
 import com.jme3.asset.AssetManager;
 import com.jme3.bullet.collision.shapes.CollisionShape;
 import com.jme3.bullet.control.RigidBodyControl;
-import com.jme3.bullet.util.CollisionShapeFactory;
 import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
+import com.jme3.scene.SceneGraphVisitorAdapter;
 import com.jme3.scene.Spatial;
 
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -21,11 +27,52 @@ public class Cell
 
 	protected static Logger LOGGER = Logger.getLogger(Cell.class.getName());
 
+	/**
+	 * Loading state of a cell. A cell is {@link #PENDING} while it is loaded
+	 * in background by a {@link CellLoader} and becomes {@link #LOADED} as
+	 * soon as it was integrated into the map on the render thread.
+	 */
+	public enum State
+	{
+		UNLOADED, PENDING, LOADED
+	}
+
 	protected Node node;
 	protected Node terrainNode;
 
 	protected RigidBodyControl terrainControl;
-	protected boolean loaded;
+	/**
+	 * Model of this cell, possibly shared with other cells. Set while the
+	 * cell is loaded.
+	 */
+	protected CellModelCache.Entry model;
+	/**
+	 * Shape of the terrain which is built in background. The
+	 * {@link #terrainControl} is created when this shape is ready.
+	 */
+	protected Future<CollisionShape> terrainShapeFuture;
+	protected volatile State state;
+
+	/**
+	 * Objects read by {@link #prepare} which still need to be
+	 * inserted into the map's {@link ObjectsTree}.
+	 */
+	protected ArrayList<Spatial> preparedObjects;
+	/**
+	 * Objects of this cell inserted into the map's {@link ObjectsTree}.
+	 * Needed to remove them again when this cell is unloaded.
+	 */
+	protected ArrayList<Spatial> objects;
+	/**
+	 * Estimated memory used by this cell's objects in bytes. The terrain
+	 * and collision shape are shared by all cells using the same model and
+	 * counted per model by the {@link CellCache}.
+	 */
+	protected long memorySize;
+	/**
+	 * Level of detail currently used by the terrain's meshes.
+	 */
+	protected int lodLevel;
 
 	protected String filename;
 	protected String nodeName;
@@ -33,6 +80,16 @@ public class Cell
 	protected Vector3f pos;
 	protected Vector3f nodeOffset;
 
+	/**
+	 * Used by {@link CellGrid} to report each cell only once per query.
+	 */
+	int queryStamp;
+	/**
+	 * Number of this cell in the map's {@link CellVisibility} or -1 if
+	 * the cell is not part of it.
+	 */
+	int index = -1;
+
 	public Cell(String filename, String nodeName, Vector3f pos, Rect area)
 	{
 		this.filename = filename;
@@ -40,7 +97,7 @@ public class Cell
 		this.area = area;
 		this.pos = pos;
 
-		this.loaded = false;
+		this.state = State.UNLOADED;
 		this.node = new Node();
 	}
 
@@ -69,16 +126,113 @@ public class Cell
 		return nodeOffset;
 	}
 
+	public State getState()
+	{
+		return state;
+	}
+
 	public boolean isLoaded()
 	{
-		return loaded;
+		return state == State.LOADED;
+	}
+
+	/**
+	 * Returns true if this cell is currently loaded in background and
+	 * not yet ready to be displayed.
+	 * @return If the cell is still loading.
+	 */
+	public boolean isPending()
+	{
+		return state == State.PENDING;
+	}
+
+	void setPending(boolean pending)
+	{
+		if (pending && state == State.UNLOADED)
+		{
+			state = State.PENDING;
+		}
+		else if (!pending && state == State.PENDING)
+		{
+			state = State.UNLOADED;
+		}
+	}
+
+	/**
+	 * Returns the estimated memory used by the loaded cell's objects. The
+	 * memory of its model's terrain and collision shape is returned by
+	 * {@link CellModelCache.Entry#getTerrainMemorySize()}.
+	 * @return Estimated memory in bytes or 0 if not loaded.
+	 */
+	public long getMemorySize()
+	{
+		return memorySize;
+	}
+
+	public int getLodLevel()
+	{
+		return lodLevel;
 	}
 
+	/**
+	 * Sets the level of detail of the terrain's meshes. Level 0 is the
+	 * full detail mesh; higher levels are simplified further. Meshes with
+	 * fewer levels use their most simplified one. Must be called on the
+	 * render thread.
+	 * @param level Level of detail to use.
+	 */
+	public void setLodLevel(final int level)
+	{
+		if (level == lodLevel || terrainNode == null) return;
+
+		terrainNode.depthFirstTraversal(new SceneGraphVisitorAdapter()
+		{
+			@Override
+			public void visit(Geometry geometry)
+			{
+				int levels = geometry.getMesh().getNumLodLevels();
+				if (levels > 0)
+				{
+					geometry.setLodLevel(Math.min(level, levels - 1));
+				}
+			}
+		});
+		lodLevel = level;
+	}
+
+	/**
+	 * Returns the physics control of the terrain. If the terrain's shape is
+	 * still built in background, null is returned until it is ready. Must
+	 * be called on the render thread.
+	 * @return The terrain's physics control or null.
+	 */
 	public RigidBodyControl getTerrainControl()
 	{
+		if (terrainControl == null && terrainShapeFuture != null && terrainShapeFuture.isDone())
+		{
+			try
+			{
+				createTerrainControl(terrainShapeFuture.get());
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				LOGGER.log(Level.SEVERE, "Cannot build collision shape of cell " + filename + ":" + nodeName, e);
+			}
+			terrainShapeFuture = null;
+		}
 		return terrainControl;
 	}
 
+	/**
+	 * Returns true if the terrain's collision shape is still built in
+	 * background.
+	 * @return If the terrain control is not available yet.
+	 */
+	public boolean isTerrainShapePending()
+	{
+		return terrainShapeFuture != null && !terrainShapeFuture.isDone();
+	}
+
 	public void setNodeOffset(Vector3f nodeOffset)
 	{
 		this.nodeOffset = nodeOffset;
@@ -87,80 +241,173 @@ public class Cell
 	public boolean loadCell(AssetManager assetManager, ObjectsTree objectsTree)
 	{
 		if (isLoaded()) return true;
+		if (isPending()) return false;
 
+		prepare(assetManager, null, null, null);
+		integrate(objectsTree);
+
+		return true;
+	}
+
+	/**
+	 * Loads the cell's model, splits it into terrain and objects and builds
+	 * the terrain's collision shape. This method does not touch any
+	 * structures shared with the map and can therefore be called from a
+	 * worker thread. {@link #integrate(ObjectsTree)} must be called on the
+	 * render thread afterwards to finish loading.
+	 *
+	 * @param assetManager Asset manager to load the cell's model with.
+	 * @param modelCache Cache to share the model with other cells or null.
+	 * @param shapeCache Cache to read the terrain's collision shape from or null.
+	 * @param shapeBuilder Builder to create the terrain's collision shape in
+	 *                     background or null to create it right away.
+	 */
+	protected void prepare(AssetManager assetManager, CellModelCache modelCache, CollisionShapeCache shapeCache,
+						   CollisionShapeBuilder shapeBuilder)
+	{
 		LOGGER.info("Loading cell " + filename + ":" + nodeName);
 
-		Node node = (Node) assetManager.loadModel(filename);
-		if (nodeName != null && nodeName.length() != 0 && !node.getName().equals(nodeName))
+		if (model != null)
 		{
-			Node child = (Node) node.getChild(nodeName);
-			if (child != null)
-			{
-				node = child;
-			}
-			else
-			{
-				LOGGER.warning("Unable to load Node \"" + nodeName + "\" from \"" + filename + "\"" +
-						"; using Model as a whole.");
-			}
+			// left over from a failed attempt to load this cell
+			model.release();
+			model = null;
 		}
-
-//		this.node.detachAllChildren();
-//		this.node.setLocalTranslation(pos);
-//		this.node.attachChild(node);
-
-		for (Spatial child: node.getChildren())
+		if (modelCache != null)
 		{
-			if (child.getName().equals(Cell.TERRAIN_NODE))
-			{
-				terrainNode = new Node();
-				terrainNode.setLocalTranslation(pos);
-				child.setLocalTranslation(nodeOffset.negate());
-				terrainNode.attachChild(child);
-			}
-			else if (child.getName().equals(Cell.OBJECTS_NODE))
-			{
-				for (Spatial object : ((Node) child).getChildren())
-				{
-					object.removeFromParent();
+			model = modelCache.acquire(assetManager, filename, nodeName, nodeOffset);
+		}
+		else
+		{
+			model = CellModelCache.load(assetManager, filename, nodeName, nodeOffset);
+		}
 
-					Vector3f objectPos = object.getLocalTranslation();
-					objectPos.addLocal(pos);
-					objectPos.subtractLocal(nodeOffset);
-					object.setLocalTranslation(objectPos);
+		terrainNode = model.createTerrain(pos);
+		lodLevel = 0;
+		preparedObjects = model.createObjects(pos);
 
-					objectsTree.insert(object);
-				}
-			}
-		}
+		calculateTerrainShape(shapeCache, shapeBuilder);
 
-		if (terrainNode == null)
+		// the shared terrain is counted per model by the CellCache
+		memorySize = 0;
+		for (Spatial object: preparedObjects)
 		{
-			LOGGER.finer("Model \"" + filename + "\" does not have terrain");
+			memorySize += SpatialUtil.estimateMemory(object);
 		}
+	}
 
-		calculateTerrainShape();
+	/**
+	 * Inserts the objects read by {@link #prepare} into the
+	 * map's objects tree and marks this cell as loaded. Must be called on
+	 * the render thread.
+	 *
+	 * @param objectsTree Tree which stores all objects of the map.
+	 */
+	protected void integrate(ObjectsTree objectsTree)
+	{
+		if (preparedObjects != null)
+		{
+			long start = CellLoadProfiler.start();
+			for (Spatial object: preparedObjects)
+			{
+				object.removeFromParent();
+				objectsTree.insert(object);
+			}
+			objects = preparedObjects;
+			preparedObjects = null;
+			CellLoadProfiler.stop(CellLoadProfiler.Phase.OBJECT_INSERT, start);
+		}
 
-		loaded = true;
-		return true;
+		state = State.LOADED;
 	}
 
 	public void calculateTerrainShape()
 	{
-		if (terrainControl != null || terrainNode == null) return;
+		calculateTerrainShape(null, null);
+	}
 
-		CollisionShape terrainShape = CollisionShapeFactory.createMeshShape(terrainNode);
+	/**
+	 * Creates the collision shape of the terrain, which is shared by all
+	 * cells using the same model. If a cache is passed, the shape is read
+	 * from it if possible. Otherwise it is built and stored in the cache.
+	 * If a builder is passed, all of this is done in background and
+	 * {@link #getTerrainControl()} returns null until the shape is ready.
+	 *
+	 * @param shapeCache Cache of collision shapes or null.
+	 * @param shapeBuilder Builder to create the shape in background or null.
+	 */
+	public void calculateTerrainShape(CollisionShapeCache shapeCache, CollisionShapeBuilder shapeBuilder)
+	{
+		if (terrainControl != null || terrainShapeFuture != null || terrainNode == null) return;
+
+		terrainShapeFuture = model.getShape(shapeCache, shapeBuilder);
+		if (shapeBuilder == null)
+		{
+			getTerrainControl();
+		}
+	}
+
+	protected void createTerrainControl(CollisionShape terrainShape)
+	{
 		terrainControl = new RigidBodyControl(terrainShape, 0);
 		terrainControl.setPhysicsLocation(pos);
 	}
 
-	public void unloadCell()
+	/**
+	 * Unloads this cell and releases its terrain, its collision shape and
+	 * its objects. The terrain body is removed from its physics space and
+	 * all objects are removed from the objects tree and the scene graph.
+	 * A cell is only unloaded if all of its objects are stored in the
+	 * objects tree as static objects; objects currently taken out of the
+	 * tree or moved by physics would get lost otherwise.
+	 * The cell can be loaded again afterwards.
+	 *
+	 * @param objectsTree Tree the cell's objects were inserted into.
+	 * @return true if the cell was unloaded.
+	 */
+	public boolean unloadCell(ObjectsTree objectsTree)
 	{
-		if (isLoaded())
+		if (!isLoaded()) return false;
+
+		if (objects != null)
 		{
-			node.detachAllChildren();
+			for (Spatial object: objects)
+			{
+				if (objectsTree.isDynamic(object) || !objectsTree.contains(object)) return false;
+			}
+			for (Spatial object: objects)
+			{
+				objectsTree.remove(object);
+				object.removeFromParent();
+			}
+			objects = null;
+		}
+
+		// the shape is shared with other cells, so its future is not cancelled
+		terrainShapeFuture = null;
+		if (terrainControl != null)
+		{
+			if (terrainControl.getPhysicsSpace() != null)
+			{
+				terrainControl.getPhysicsSpace().remove(terrainControl);
+			}
+			terrainControl = null;
+		}
+		if (terrainNode != null)
+		{
+			terrainNode.removeFromParent();
 			terrainNode = null;
-			loaded = false;
 		}
+
+		if (model != null)
+		{
+			model.release();
+			model = null;
+		}
+
+		node.detachAllChildren();
+		memorySize = 0;
+		state = State.UNLOADED;
+		return true;
 	}
 }
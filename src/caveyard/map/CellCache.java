@@ -0,0 +1,232 @@
+package caveyard.map;
+
+import caveyard.map.math.Area;
+import caveyard.map.math.Circle;
+import com.jme3.math.Vector2f;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of all loaded {@link Cell}s of a map and the memory they use.
+ * If the estimated memory of all loaded cells exceeds the
+ * {@link #memoryBudget}, cells which are neither visible nor near the
+ * player are unloaded, beginning with the cell farthest away. Evicted cells
+ * release their terrain, collision shape and objects and are loaded again
+ * when they are needed.
+ * <p>
+ *     Cells using the same model share its terrain and collision shape,
+ *     see {@link CellModelCache}. Their memory is counted once while any
+ *     loaded cell uses the model and released with the model's last cell.
+ * </p>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellCache
+{
+	protected static final Logger LOGGER = Logger.getLogger(CellCache.class.getName());
+
+	/**
+	 * Default memory budget of 256 MiB.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+	/**
+	 * Maximum memory in bytes all loaded cells should use.
+	 */
+	protected long memoryBudget;
+	/**
+	 * Estimated memory currently used by all loaded cells.
+	 */
+	protected long usedMemory;
+
+	protected HashSet<Cell> loadedCells;
+	/**
+	 * Number of loaded cells using each model.
+	 */
+	protected IdentityHashMap<CellModelCache.Entry, Integer> modelReferences;
+	/**
+	 * Reused list of cells which may be evicted.
+	 */
+	protected ArrayList<Cell> candidates;
+
+	public CellCache(long memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+		this.usedMemory = 0;
+
+		loadedCells = new HashSet<>();
+		modelReferences = new IdentityHashMap<>();
+		candidates = new ArrayList<>();
+	}
+
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the maximum memory all loaded cells should use. The budget may be
+	 * exceeded if all loaded cells are near the player.
+	 * @param memoryBudget Memory budget in bytes.
+	 */
+	public void setMemoryBudget(long memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns the estimated memory used by all loaded cells.
+	 * @return Used memory in bytes.
+	 */
+	public long getUsedMemory()
+	{
+		return usedMemory;
+	}
+
+	/**
+	 * Returns the number of loaded cells.
+	 * @return Number of loaded cells.
+	 */
+	public int size()
+	{
+		return loadedCells.size();
+	}
+
+	/**
+	 * Registers a cell which finished loading.
+	 * @param cell Loaded cell.
+	 */
+	public void add(Cell cell)
+	{
+		if (loadedCells.add(cell))
+		{
+			usedMemory += cell.getMemorySize();
+			addModel(cell.model);
+		}
+	}
+
+	/**
+	 * Counts a loaded cell's model and charges its terrain memory if no
+	 * other loaded cell uses the model.
+	 */
+	protected void addModel(CellModelCache.Entry model)
+	{
+		if (model == null) return;
+
+		Integer references = modelReferences.get(model);
+		if (references == null)
+		{
+			modelReferences.put(model, 1);
+			usedMemory += model.getTerrainMemorySize();
+		}
+		else
+		{
+			modelReferences.put(model, references + 1);
+		}
+	}
+
+	/**
+	 * Releases a model of an unloaded cell and its terrain memory if no
+	 * loaded cell uses the model anymore.
+	 */
+	protected void removeModel(CellModelCache.Entry model)
+	{
+		if (model == null) return;
+
+		Integer references = modelReferences.get(model);
+		if (references == null) return;
+
+		if (references <= 1)
+		{
+			modelReferences.remove(model);
+			usedMemory -= model.getTerrainMemorySize();
+		}
+		else
+		{
+			modelReferences.put(model, references - 1);
+		}
+	}
+
+	/**
+	 * Unloads cells until the used memory fits the budget. Cells which are
+	 * visible or intersect the circle with <code>keepRadius</code> around
+	 * <code>pos</code> are never unloaded. The remaining cells are unloaded
+	 * in order of decreasing distance to <code>pos</code>.
+	 *
+	 * @param map Map owning the cells.
+	 * @param pos Current position of the player.
+	 * @param keepRadius Radius around the player in which cells are kept.
+	 * @return Number of unloaded cells.
+	 */
+	public int trim(Map map, Vector2f pos, float keepRadius)
+	{
+		return trim(map, pos, keepRadius, null);
+	}
+
+	/**
+	 * Unloads cells like {@link #trim(Map, Vector2f, float)}, but also
+	 * keeps the cells intersecting <code>keepArea</code>, e.g. cells
+	 * prefetched around a predicted position.
+	 *
+	 * @param map Map owning the cells.
+	 * @param pos Current position of the player.
+	 * @param keepRadius Radius around the player in which cells are kept.
+	 * @param keepArea Further area in which cells are kept or null.
+	 * @return Number of unloaded cells.
+	 */
+	public int trim(Map map, final Vector2f pos, float keepRadius, Area keepArea)
+	{
+		if (usedMemory <= memoryBudget) return 0;
+
+		final Circle keepCircle = new Circle(pos.x, pos.y, keepRadius);
+		candidates.clear();
+		for (Cell cell: loadedCells)
+		{
+			if (!map.visibleCells.contains(cell) && !cell.getArea().intersectsWith(keepCircle) &&
+					(keepArea == null || !keepArea.intersectsWith(cell.getArea())))
+			{
+				candidates.add(cell);
+			}
+		}
+
+		Collections.sort(candidates, new Comparator<Cell>()
+		{
+			@Override
+			public int compare(Cell c1, Cell c2)
+			{
+				return Float.compare(c2.getArea().distanceSquared(pos.x, pos.y),
+						c1.getArea().distanceSquared(pos.x, pos.y));
+			}
+		});
+
+		int evicted = 0;
+		for (Cell cell: candidates)
+		{
+			if (usedMemory <= memoryBudget) break;
+
+			long size = cell.getMemorySize();
+			CellModelCache.Entry model = cell.model;
+			if (cell.unloadCell(map.objectsTree))
+			{
+				loadedCells.remove(cell);
+				usedMemory -= size;
+				removeModel(model);
+				evicted++;
+			}
+		}
+		candidates.clear();
+
+		if (evicted > 0)
+		{
+			LOGGER.fine("Evicted " + evicted + " cells. Used memory: " + (usedMemory / 1024) + " KiB of " +
+					(memoryBudget / 1024) + " KiB");
+		}
+
+		return evicted;
+	}
+}
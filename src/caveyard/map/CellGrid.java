@@ -0,0 +1,200 @@
+package caveyard.map;
+
+import caveyard.map.math.Area;
+import caveyard.map.math.Rect;
+
+import java.util.Collection;
+
+/**
+ * A static uniform grid to find {@link Cell}s intersecting a given area.
+ * The grid is built once from all cells of a map. Its bucket size is
+ * derived from the average extent of the cells, so a query only visits
+ * the few buckets covered by the searched area and the cells stored in
+ * them. Cells spanning several buckets are reported only once per query.
+ *
+ * Cells cannot be added after the grid was built; build a new grid
+ * instead.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellGrid
+{
+	private static final Cell[] EMPTY_BUCKET = new Cell[0];
+
+	/**
+	 * Maximum ratio of buckets to cells. If the grid would need more buckets,
+	 * the bucket size is increased.
+	 */
+	protected static final int MAX_BUCKETS_PER_CELL = 4;
+
+	protected float minX, minY;
+	protected float bucketSize;
+	protected int sizeX, sizeY;
+
+	/**
+	 * All buckets, stored row by row. Empty buckets share {@link #EMPTY_BUCKET}.
+	 */
+	protected Cell[][] buckets;
+	protected int cellCount;
+
+	/**
+	 * Incremented on each query to report every cell only once.
+	 */
+	protected int queryStamp;
+
+	/**
+	 * Builds a new grid containing all passed cells.
+	 * @param cells Cells to put into the grid.
+	 */
+	public CellGrid(Collection<Cell> cells)
+	{
+		cellCount = cells.size();
+
+		if (cells.isEmpty())
+		{
+			sizeX = 0;
+			sizeY = 0;
+			bucketSize = 1;
+			buckets = new Cell[0][];
+			return;
+		}
+
+		float maxX, maxY;
+		float extentSum = 0;
+		minX = minY = Float.POSITIVE_INFINITY;
+		maxX = maxY = Float.NEGATIVE_INFINITY;
+		for (Cell cell: cells)
+		{
+			// stamps of a previous grid could equal the stamps of this one
+			cell.queryStamp = 0;
+
+			Rect area = cell.getArea();
+			minX = Math.min(minX, area.getX1());
+			minY = Math.min(minY, area.getY1());
+			maxX = Math.max(maxX, area.getX2());
+			maxY = Math.max(maxY, area.getY2());
+			extentSum += Math.max(area.getSizeX(), area.getSizeY());
+		}
+
+		bucketSize = Math.max(extentSum / cells.size(), 1e-3f);
+		while (true)
+		{
+			sizeX = (int) ((maxX - minX) / bucketSize) + 1;
+			sizeY = (int) ((maxY - minY) / bucketSize) + 1;
+			if ((long) sizeX * sizeY <= (long) MAX_BUCKETS_PER_CELL * cells.size() + 16) break;
+			bucketSize *= 2;
+		}
+
+		// count cells per bucket first to create exactly sized buckets
+		int[] counts = new int[sizeX * sizeY];
+		for (Cell cell: cells)
+		{
+			Rect area = cell.getArea();
+			for (int y = toBucketY(area.getY1()); y <= toBucketY(area.getY2()); y++)
+			{
+				for (int x = toBucketX(area.getX1()); x <= toBucketX(area.getX2()); x++)
+				{
+					counts[y * sizeX + x]++;
+				}
+			}
+		}
+
+		buckets = new Cell[sizeX * sizeY][];
+		for (int i = 0; i < buckets.length; i++)
+		{
+			buckets[i] = counts[i] == 0 ? EMPTY_BUCKET : new Cell[counts[i]];
+			counts[i] = 0;
+		}
+
+		for (Cell cell: cells)
+		{
+			Rect area = cell.getArea();
+			for (int y = toBucketY(area.getY1()); y <= toBucketY(area.getY2()); y++)
+			{
+				for (int x = toBucketX(area.getX1()); x <= toBucketX(area.getX2()); x++)
+				{
+					int i = y * sizeX + x;
+					buckets[i][counts[i]++] = cell;
+				}
+			}
+		}
+	}
+
+	private int toBucketX(float x)
+	{
+		return clamp((int) Math.floor((x - minX) / bucketSize), sizeX);
+	}
+
+	private int toBucketY(float y)
+	{
+		return clamp((int) Math.floor((y - minY) / bucketSize), sizeY);
+	}
+
+	private static int clamp(int value, int size)
+	{
+		return value < 0 ? 0 : (value >= size ? size - 1 : value);
+	}
+
+	/**
+	 * Finds all cells which areas intersect with the passed area and adds
+	 * them to <code>results</code>. This method is not thread-safe.
+	 *
+	 * @param area Area to search cells in.
+	 * @param results Collection to add all found cells to.
+	 * @return The <code>results</code> parameter after adding found cells.
+	 */
+	public <C extends Collection<? super Cell>> C find(Area area, C results)
+	{
+		if (cellCount == 0) return results;
+
+		Rect bounds = area.getBounds();
+		if (bounds.getX2() < minX || bounds.getY2() < minY ||
+				bounds.getX1() > minX + sizeX * bucketSize || bounds.getY1() > minY + sizeY * bucketSize)
+		{
+			return results;
+		}
+
+		final int stamp = ++queryStamp;
+		final int x1 = toBucketX(bounds.getX1());
+		final int x2 = toBucketX(bounds.getX2());
+		final int y2 = toBucketY(bounds.getY2());
+
+		for (int y = toBucketY(bounds.getY1()); y <= y2; y++)
+		{
+			for (int x = x1; x <= x2; x++)
+			{
+				for (Cell cell: buckets[y * sizeX + x])
+				{
+					if (cell.queryStamp != stamp)
+					{
+						cell.queryStamp = stamp;
+						if (cell.getArea().intersectsWith(area))
+						{
+							results.add(cell);
+						}
+					}
+				}
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the number of cells in this grid.
+	 * @return Number of cells.
+	 */
+	public int size()
+	{
+		return cellCount;
+	}
+
+	/**
+	 * Returns the edge length of the grid's quadratic buckets.
+	 * @return Size of a bucket.
+	 */
+	public float getBucketSize()
+	{
+		return bucketSize;
+	}
+}
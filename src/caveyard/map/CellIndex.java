@@ -0,0 +1,430 @@
+package caveyard.map;
+
+import caveyard.map.math.Area;
+import caveyard.map.math.Rect;
+import caveyard.xml.map.CellType;
+import caveyard.xml.map.PortalType;
+import com.jme3.math.Vector3f;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A spatial index of all cells of a map stored in a flat buffer, usually a
+ * memory-mapped cooked map file. Cells are kept as fixed size records and
+ * {@link Cell} objects are only created for records found by a query.
+ * Created cells are released again once they are unloaded, so only cells
+ * near the player stay on heap.
+ * <p>
+ * Layout of the buffer (all values big-endian):
+ * <pre>
+ * int cellCount, int sizeX, int sizeY, int stringCount
+ * float minX, float minY, float bucketSize, float maxCellSizeX, float maxCellSizeY
+ * int visibilityOffset
+ * int[sizeX * sizeY + 1] first record of each bucket
+ * record[cellCount]: float x, y, z, sizeX, sizeZ, offsetX, offsetY, offsetZ; int fileId, nodeId
+ * int[stringCount] offset of each string
+ * strings: int length, UTF-8 bytes
+ * potentially visible sets by record number, see {@link CellVisibility}
+ * </pre>
+ * Records are sorted by the grid bucket containing their minimum corner,
+ * so each record belongs to exactly one bucket. Queries extend the
+ * searched area by the largest cell size to find cells reaching into it.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellIndex
+{
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	protected static final int HEADER_SIZE = 10 * 4;
+	protected static final int RECORD_SIZE = 10 * 4;
+	protected static final int NO_STRING = -1;
+
+	/**
+	 * Maximum ratio of buckets to cells, same as in {@link CellGrid}.
+	 */
+	protected static final int MAX_BUCKETS_PER_CELL = 4;
+	/**
+	 * Minimum number of created cells before unloaded ones are released.
+	 */
+	protected static final int MIN_RELEASE_THRESHOLD = 256;
+
+	protected final ByteBuffer buffer;
+
+	protected int cellCount;
+	protected int sizeX, sizeY;
+	protected int stringCount;
+	protected float minX, minY;
+	protected float bucketSize;
+	protected float maxCellSizeX, maxCellSizeY;
+
+	protected int bucketsOffset;
+	protected int recordsOffset;
+	protected int stringsOffset;
+	protected int visibilityOffset;
+
+	/**
+	 * Cells created for records, by record number.
+	 */
+	protected HashMap<Integer, Cell> cells;
+	protected int releaseThreshold;
+
+	/**
+	 * Creates an index reading from the passed buffer. The index starts at
+	 * the buffer's current position.
+	 * @param buffer Buffer containing the index. Not modified.
+	 */
+	public CellIndex(ByteBuffer buffer)
+	{
+		this.buffer = buffer.slice();
+
+		cellCount = this.buffer.getInt(0);
+		sizeX = this.buffer.getInt(4);
+		sizeY = this.buffer.getInt(8);
+		stringCount = this.buffer.getInt(12);
+		minX = this.buffer.getFloat(16);
+		minY = this.buffer.getFloat(20);
+		bucketSize = this.buffer.getFloat(24);
+		maxCellSizeX = this.buffer.getFloat(28);
+		maxCellSizeY = this.buffer.getFloat(32);
+		visibilityOffset = this.buffer.getInt(36);
+
+		bucketsOffset = HEADER_SIZE;
+		recordsOffset = bucketsOffset + (sizeX * sizeY + 1) * 4;
+		stringsOffset = recordsOffset + cellCount * RECORD_SIZE;
+
+		cells = new HashMap<>();
+		releaseThreshold = MIN_RELEASE_THRESHOLD;
+	}
+
+	/**
+	 * Finds all cells which areas intersect with the passed area and adds
+	 * them to <code>results</code>. Creates cells for found records if
+	 * necessary. This method is not thread-safe.
+	 *
+	 * @param area Area to search cells in.
+	 * @param results Collection to add all found cells to.
+	 * @return The <code>results</code> parameter after adding found cells.
+	 */
+	public <C extends Collection<? super Cell>> C find(Area area, C results)
+	{
+		if (cellCount == 0) return results;
+
+		if (cells.size() > releaseThreshold)
+		{
+			releaseUnloadedCells();
+		}
+
+		Rect bounds = area.getBounds();
+		final int x1 = toBucketX(bounds.getX1() - maxCellSizeX);
+		final int x2 = toBucketX(bounds.getX2());
+		final int y1 = toBucketY(bounds.getY1() - maxCellSizeY);
+		final int y2 = toBucketY(bounds.getY2());
+
+		for (int y = y1; y <= y2; y++)
+		{
+			int first = getBucketStart(y * sizeX + x1);
+			int last = getBucketStart(y * sizeX + x2 + 1);
+			for (int i = first; i < last; i++)
+			{
+				int record = recordsOffset + i * RECORD_SIZE;
+				float cellX1 = buffer.getFloat(record);
+				float cellY1 = buffer.getFloat(record + 8);
+				float cellX2 = cellX1 + buffer.getFloat(record + 12);
+				float cellY2 = cellY1 + buffer.getFloat(record + 16);
+
+				if (cellX1 > bounds.getX2() || cellX2 < bounds.getX1() ||
+						cellY1 > bounds.getY2() || cellY2 < bounds.getY1())
+				{
+					continue;
+				}
+
+				Cell cell = cells.get(i);
+				if (cell != null)
+				{
+					if (cell.getArea().intersectsWith(area))
+					{
+						results.add(cell);
+					}
+				}
+				else
+				{
+					Rect rect = new Rect(cellX1, cellY1, cellX2, cellY2);
+					if (rect.intersectsWith(area))
+					{
+						results.add(createCell(i, rect));
+					}
+				}
+			}
+		}
+
+		return results;
+	}
+
+	protected Cell createCell(int i, Rect rect)
+	{
+		int record = recordsOffset + i * RECORD_SIZE;
+
+		Vector3f pos = new Vector3f(buffer.getFloat(record), buffer.getFloat(record + 4), buffer.getFloat(record + 8));
+		Vector3f nodeOffset = new Vector3f(buffer.getFloat(record + 20), buffer.getFloat(record + 24),
+				buffer.getFloat(record + 28));
+		String file = getString(buffer.getInt(record + 32));
+		String node = getString(buffer.getInt(record + 36));
+
+		Cell cell = new Cell(file, node, pos, rect);
+		cell.setNodeOffset(nodeOffset);
+		cell.index = i;
+		cells.put(i, cell);
+		return cell;
+	}
+
+	/**
+	 * Drops all created cells which are unloaded and not pending, so they
+	 * can be garbage collected. They are created again when needed.
+	 */
+	protected void releaseUnloadedCells()
+	{
+		for (Iterator<Cell> it = cells.values().iterator(); it.hasNext(); )
+		{
+			Cell cell = it.next();
+			if (!cell.isLoaded() && !cell.isPending())
+			{
+				it.remove();
+			}
+		}
+		releaseThreshold = Math.max(2 * cells.size(), MIN_RELEASE_THRESHOLD);
+	}
+
+	private int getBucketStart(int bucket)
+	{
+		return buffer.getInt(bucketsOffset + bucket * 4);
+	}
+
+	private String getString(int id)
+	{
+		if (id == NO_STRING) return null;
+
+		int offset = buffer.getInt(stringsOffset + id * 4);
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = buffer.get(offset + 4 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private int toBucketX(float x)
+	{
+		return clamp((int) Math.floor((x - minX) / bucketSize), sizeX);
+	}
+
+	private int toBucketY(float y)
+	{
+		return clamp((int) Math.floor((y - minY) / bucketSize), sizeY);
+	}
+
+	private static int clamp(int value, int size)
+	{
+		return value < 0 ? 0 : (value >= size ? size - 1 : value);
+	}
+
+	/**
+	 * Returns the potentially visible sets of the indexed cells. Cells are
+	 * referenced by their record number.
+	 * @return The sets read from the buffer.
+	 */
+	public CellVisibility getVisibility()
+	{
+		ByteBuffer data = buffer.duplicate();
+		data.position(visibilityOffset);
+		return CellVisibility.read(data);
+	}
+
+	/**
+	 * Returns an area containing all indexed cells.
+	 * @return Bounds of the cells.
+	 */
+	public Rect getBounds()
+	{
+		return new Rect(minX, minY, minX + sizeX * bucketSize + maxCellSizeX,
+				minY + sizeY * bucketSize + maxCellSizeY);
+	}
+
+	/**
+	 * Returns the number of cells in this index.
+	 * @return Number of cells.
+	 */
+	public int size()
+	{
+		return cellCount;
+	}
+
+	/**
+	 * Returns the number of cells currently kept on heap.
+	 * @return Number of created cells.
+	 */
+	public int getCreatedCellCount()
+	{
+		return cells.size();
+	}
+
+	/**
+	 * Writes an index of the passed cell definitions in the layout read by
+	 * {@link #CellIndex(ByteBuffer)}.
+	 *
+	 * @param cellTypes Cell definitions of a map.
+	 * @param portalTypes Portals declared by the map or null to derive them.
+	 * @param out Output to write the index to.
+	 */
+	public static void write(List<CellType> cellTypes, List<PortalType> portalTypes, DataOutput out)
+			throws IOException
+	{
+		int cellCount = cellTypes.size();
+
+		float minX = 0, minY = 0, maxX = 0, maxY = 0;
+		float maxCellSizeX = 0, maxCellSizeY = 0;
+		float extentSum = 0;
+		if (cellCount > 0)
+		{
+			minX = minY = Float.POSITIVE_INFINITY;
+			maxX = maxY = Float.NEGATIVE_INFINITY;
+		}
+		for (CellType cellType: cellTypes)
+		{
+			minX = Math.min(minX, cellType.getX());
+			minY = Math.min(minY, cellType.getZ());
+			maxX = Math.max(maxX, cellType.getX());
+			maxY = Math.max(maxY, cellType.getZ());
+			maxCellSizeX = Math.max(maxCellSizeX, cellType.getSizeX());
+			maxCellSizeY = Math.max(maxCellSizeY, cellType.getSizeZ());
+			extentSum += Math.max(cellType.getSizeX(), cellType.getSizeZ());
+		}
+
+		float bucketSize = Math.max(cellCount > 0 ? extentSum / cellCount : 1, 1e-3f);
+		int sizeX, sizeY;
+		while (true)
+		{
+			sizeX = (int) ((maxX - minX) / bucketSize) + 1;
+			sizeY = (int) ((maxY - minY) / bucketSize) + 1;
+			if ((long) sizeX * sizeY <= (long) MAX_BUCKETS_PER_CELL * cellCount + 16) break;
+			bucketSize *= 2;
+		}
+
+		// sort cells by bucket using counting sort
+		int[] bucketOfCell = new int[cellCount];
+		int[] bucketStart = new int[sizeX * sizeY + 1];
+		for (int i = 0; i < cellCount; i++)
+		{
+			CellType cellType = cellTypes.get(i);
+			int x = clamp((int) Math.floor((cellType.getX() - minX) / bucketSize), sizeX);
+			int y = clamp((int) Math.floor((cellType.getZ() - minY) / bucketSize), sizeY);
+			bucketOfCell[i] = y * sizeX + x;
+			bucketStart[bucketOfCell[i] + 1]++;
+		}
+		for (int i = 1; i < bucketStart.length; i++)
+		{
+			bucketStart[i] += bucketStart[i - 1];
+		}
+		int[] fill = Arrays.copyOf(bucketStart, bucketStart.length - 1);
+		CellType[] sorted = new CellType[cellCount];
+		for (int i = 0; i < cellCount; i++)
+		{
+			sorted[fill[bucketOfCell[i]]++] = cellTypes.get(i);
+		}
+
+		CellVisibility visibility = CellVisibility.compute(Arrays.asList(sorted), portalTypes);
+
+		LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+		for (CellType cellType: sorted)
+		{
+			addString(strings, cellType.getFile());
+			addString(strings, cellType.getNode());
+		}
+
+		out.writeInt(cellCount);
+		out.writeInt(sizeX);
+		out.writeInt(sizeY);
+		out.writeInt(strings.size());
+		out.writeFloat(minX);
+		out.writeFloat(minY);
+		out.writeFloat(bucketSize);
+		out.writeFloat(maxCellSizeX);
+		out.writeFloat(maxCellSizeY);
+		out.writeInt(getStringsEnd(bucketStart.length, cellCount, strings.keySet()));
+
+		for (int start: bucketStart)
+		{
+			out.writeInt(start);
+		}
+
+		for (CellType cellType: sorted)
+		{
+			out.writeFloat(cellType.getX());
+			out.writeFloat(cellType.getY());
+			out.writeFloat(cellType.getZ());
+			out.writeFloat(cellType.getSizeX());
+			out.writeFloat(cellType.getSizeZ());
+
+			if (cellType.getOffset() != null)
+			{
+				CellType.Offset offset = cellType.getOffset().getValue();
+				out.writeFloat(offset.getX());
+				out.writeFloat(offset.getY());
+				out.writeFloat(offset.getZ());
+			}
+			else
+			{
+				out.writeFloat(0);
+				out.writeFloat(0);
+				out.writeFloat(0);
+			}
+
+			out.writeInt(getStringId(strings, cellType.getFile()));
+			out.writeInt(getStringId(strings, cellType.getNode()));
+		}
+
+		int offset = HEADER_SIZE + bucketStart.length * 4 + cellCount * RECORD_SIZE + strings.size() * 4;
+		ArrayList<byte[]> encoded = new ArrayList<>(strings.size());
+		for (String string: strings.keySet())
+		{
+			byte[] bytes = string.getBytes(UTF8);
+			encoded.add(bytes);
+			out.writeInt(offset);
+			offset += 4 + bytes.length;
+		}
+		for (byte[] bytes: encoded)
+		{
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		visibility.write(out);
+	}
+
+	private static int getStringsEnd(int bucketCount, int cellCount, Collection<String> strings)
+	{
+		int offset = HEADER_SIZE + bucketCount * 4 + cellCount * RECORD_SIZE + strings.size() * 4;
+		for (String string: strings)
+		{
+			offset += 4 + string.getBytes(UTF8).length;
+		}
+		return offset;
+	}
+
+	private static void addString(java.util.Map<String, Integer> strings, String string)
+	{
+		if (string != null && !strings.containsKey(string))
+		{
+			strings.put(string, strings.size());
+		}
+	}
+
+	private static int getStringId(java.util.Map<String, Integer> strings, String string)
+	{
+		return string == null ? NO_STRING : strings.get(string);
+	}
+}
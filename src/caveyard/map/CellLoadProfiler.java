@@ -0,0 +1,491 @@
+package caveyard.map;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Measures the phases of loading cells. Each measured phase feeds a
+ * latency {@link Histogram} of its {@link Phase} and the statistics of the
+ * cell's model file, and is kept as trace event which can be exported in
+ * the Chrome trace format (open with chrome://tracing or Perfetto).
+ * <p>
+ *     Phases are measured by {@link #start()} and
+ *     {@link #stop(Phase, long)}, which only record something while the
+ *     current thread works on a cell, see {@link #enter(String)}. This way
+ *     shared code like {@link CellModelCache} needs no reference to the
+ *     profiler. This class is thread-safe.
+ * </p>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellLoadProfiler
+{
+	protected static final Logger LOGGER = Logger.getLogger(CellLoadProfiler.class.getName());
+
+	/**
+	 * Default number of trace events kept.
+	 */
+	public static final int DEFAULT_TRACE_CAPACITY = 10000;
+
+	/**
+	 * Measured phases of loading a cell.
+	 */
+	public enum Phase
+	{
+		/**
+		 * Reading the cell's model file.
+		 */
+		ASSET_LOAD,
+		/**
+		 * Splitting the model into terrain and objects, including
+		 * generating levels of detail.
+		 */
+		TERRAIN_SPLIT,
+		/**
+		 * Inserting the cell's objects into the {@link ObjectsTree}.
+		 */
+		OBJECT_INSERT,
+		/**
+		 * Reading or building the terrain's collision shape.
+		 */
+		SHAPE_BUILD
+	}
+
+	/**
+	 * Histogram of durations with buckets growing by powers of two. Bucket
+	 * i counts durations from 2^i to 2^(i+1) microseconds.
+	 */
+	public static class Histogram
+	{
+		protected static final int BUCKETS = 32;
+
+		protected final long[] counts = new long[BUCKETS];
+		protected long count;
+		protected long sum;
+		protected long max;
+
+		protected void add(long nanos)
+		{
+			long micros = Math.max(nanos / 1000, 1);
+			int bucket = Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+			counts[bucket]++;
+			count++;
+			sum += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * @return Mean duration in milliseconds.
+		 */
+		public float getMean()
+		{
+			return count == 0 ? 0 : sum / 1e6f / count;
+		}
+
+		/**
+		 * @return Longest duration in milliseconds.
+		 */
+		public float getMax()
+		{
+			return max / 1e6f;
+		}
+
+		/**
+		 * Returns an upper bound of a percentile of the durations, accurate
+		 * to a factor of two.
+		 * @param percentile Percentile between 0 and 100.
+		 * @return Duration in milliseconds.
+		 */
+		public float getPercentile(float percentile)
+		{
+			if (count == 0) return 0;
+
+			long rank = (long) Math.ceil(percentile / 100 * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += counts[i];
+				if (seen >= Math.max(rank, 1))
+				{
+					return Math.min((2L << i) / 1e3f, getMax());
+				}
+			}
+			return getMax();
+		}
+
+		protected Histogram copy()
+		{
+			Histogram copy = new Histogram();
+			System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+			copy.count = count;
+			copy.sum = sum;
+			copy.max = max;
+			return copy;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms", count, getMean(),
+					getPercentile(50), getPercentile(95), getPercentile(99), getMax());
+		}
+	}
+
+	/**
+	 * Load statistics of one model file.
+	 */
+	public static class FileStats
+	{
+		protected final String filename;
+		protected final long[] totals = new long[Phase.values().length];
+		protected long total;
+		protected long max;
+
+		protected FileStats(String filename)
+		{
+			this.filename = filename;
+		}
+
+		public String getFilename()
+		{
+			return filename;
+		}
+
+		/**
+		 * @return Total time of all phases in milliseconds.
+		 */
+		public float getTotal()
+		{
+			return total / 1e6f;
+		}
+
+		/**
+		 * @return Total time of a phase in milliseconds.
+		 */
+		public float getTotal(Phase phase)
+		{
+			return totals[phase.ordinal()] / 1e6f;
+		}
+
+		/**
+		 * @return Longest single phase in milliseconds.
+		 */
+		public float getMax()
+		{
+			return max / 1e6f;
+		}
+	}
+
+	/**
+	 * A measured phase kept for the trace export.
+	 */
+	protected static class Event
+	{
+		protected Phase phase;
+		protected String cellName;
+		protected String threadName;
+		protected long threadId;
+		protected long start;
+		protected long duration;
+	}
+
+	/**
+	 * Cell the current thread works on.
+	 */
+	public static class Context
+	{
+		protected final CellLoadProfiler profiler;
+		protected final String cellName;
+
+		protected Context(CellLoadProfiler profiler, String cellName)
+		{
+			this.profiler = profiler;
+			this.cellName = cellName;
+		}
+	}
+
+	protected static final ThreadLocal<Context> CONTEXT = new ThreadLocal<>();
+
+	protected final EnumMap<Phase, Histogram> histograms;
+	protected final HashMap<String, FileStats> fileStats;
+
+	/**
+	 * Ring buffer of the latest trace events.
+	 */
+	protected final Event[] events;
+	protected int nextEvent;
+	protected int eventCount;
+	/**
+	 * Time all trace timestamps are relative to.
+	 */
+	protected final long startTime;
+
+	public CellLoadProfiler()
+	{
+		this(DEFAULT_TRACE_CAPACITY);
+	}
+
+	/**
+	 * @param traceCapacity Number of latest trace events kept for export.
+	 */
+	public CellLoadProfiler(int traceCapacity)
+	{
+		histograms = new EnumMap<>(Phase.class);
+		for (Phase phase: Phase.values())
+		{
+			histograms.put(phase, new Histogram());
+		}
+		fileStats = new HashMap<>();
+		events = new Event[traceCapacity];
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Marks the current thread as working on a cell, so phases measured
+	 * on it are recorded by this profiler.
+	 * @param cellName Name of the cell, usually its model file and node.
+	 * @return The previous context which must be passed to
+	 * {@link #exit(Context)}.
+	 */
+	public Context enter(String cellName)
+	{
+		Context previous = CONTEXT.get();
+		CONTEXT.set(new Context(this, cellName));
+		return previous;
+	}
+
+	/**
+	 * Restores the context before the matching {@link #enter(String)}.
+	 */
+	public static void exit(Context previous)
+	{
+		setContext(previous);
+	}
+
+	/**
+	 * Returns the context of the current thread, e.g. to continue
+	 * measuring on another thread by {@link #setContext(Context)}.
+	 * @return The current context or null.
+	 */
+	public static Context getContext()
+	{
+		return CONTEXT.get();
+	}
+
+	public static void setContext(Context context)
+	{
+		if (context == null)
+		{
+			CONTEXT.remove();
+		}
+		else
+		{
+			CONTEXT.set(context);
+		}
+	}
+
+	/**
+	 * Starts measuring a phase.
+	 * @return Start time to pass to {@link #stop(Phase, long)}.
+	 */
+	public static long start()
+	{
+		return CONTEXT.get() != null ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Finishes measuring a phase and records it if the current thread
+	 * works on a cell.
+	 * @param phase Measured phase.
+	 * @param start Value returned by {@link #start()}.
+	 */
+	public static void stop(Phase phase, long start)
+	{
+		Context context = CONTEXT.get();
+		if (context != null && start != 0)
+		{
+			context.profiler.record(context.cellName, phase, start, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records a measured phase.
+	 * @param cellName Name of the cell; the part before the first colon is
+	 *                 used as model file.
+	 * @param phase Measured phase.
+	 * @param start Start time in nanoseconds from {@link System#nanoTime()}.
+	 * @param duration Duration in nanoseconds.
+	 */
+	public synchronized void record(String cellName, Phase phase, long start, long duration)
+	{
+		histograms.get(phase).add(duration);
+
+		int colon = cellName.indexOf(':');
+		String filename = colon < 0 ? cellName : cellName.substring(0, colon);
+		FileStats stats = fileStats.get(filename);
+		if (stats == null)
+		{
+			stats = new FileStats(filename);
+			fileStats.put(filename, stats);
+		}
+		stats.totals[phase.ordinal()] += duration;
+		stats.total += duration;
+		stats.max = Math.max(stats.max, duration);
+
+		if (events.length == 0) return;
+
+		Event event = events[nextEvent];
+		if (event == null)
+		{
+			event = new Event();
+			events[nextEvent] = event;
+		}
+		Thread thread = Thread.currentThread();
+		event.phase = phase;
+		event.cellName = cellName;
+		event.threadName = thread.getName();
+		event.threadId = thread.getId();
+		event.start = start;
+		event.duration = duration;
+
+		nextEvent = (nextEvent + 1) % events.length;
+		eventCount = Math.min(eventCount + 1, events.length);
+	}
+
+	/**
+	 * Returns a snapshot of the latency histogram of a phase.
+	 * @param phase Phase to get the histogram of.
+	 * @return Copy of the histogram.
+	 */
+	public synchronized Histogram getHistogram(Phase phase)
+	{
+		return histograms.get(phase).copy();
+	}
+
+	/**
+	 * Returns the model files which took longest to load in total.
+	 * @param count Maximum number of files returned.
+	 * @return Statistics of the slowest files, slowest first.
+	 */
+	public synchronized List<FileStats> getSlowestFiles(int count)
+	{
+		ArrayList<FileStats> files = new ArrayList<>(fileStats.values());
+		Collections.sort(files, new Comparator<FileStats>()
+		{
+			@Override
+			public int compare(FileStats a, FileStats b)
+			{
+				return Long.compare(b.total, a.total);
+			}
+		});
+		return new ArrayList<>(files.subList(0, Math.min(count, files.size())));
+	}
+
+	/**
+	 * Logs the histograms of all phases and the slowest files.
+	 */
+	public void logSummary()
+	{
+		StringBuilder builder = new StringBuilder("Cell load times:");
+		for (Phase phase: Phase.values())
+		{
+			builder.append("\n  ").append(phase).append(": ").append(getHistogram(phase));
+		}
+		for (FileStats stats: getSlowestFiles(5))
+		{
+			builder.append(String.format("\n  %s: %.2fms total, %.2fms max", stats.getFilename(), stats.getTotal(),
+					stats.getMax()));
+		}
+		LOGGER.info(builder.toString());
+	}
+
+	/**
+	 * Writes the kept trace events in the Chrome trace event format.
+	 * @param out Writer to write the JSON document to.
+	 */
+	public synchronized void writeChromeTrace(Writer out) throws IOException
+	{
+		out.write("{\"traceEvents\":[");
+		boolean first = true;
+		HashMap<Long, String> threads = new HashMap<>();
+
+		int oldest = (nextEvent - eventCount + events.length) % Math.max(events.length, 1);
+		for (int i = 0; i < eventCount; i++)
+		{
+			Event event = events[(oldest + i) % events.length];
+			threads.put(event.threadId, event.threadName);
+
+			if (!first) out.write(",");
+			first = false;
+			out.write("\n{\"name\":\"" + event.phase + "\",\"cat\":\"cell\",\"ph\":\"X\",\"pid\":1,\"tid\":" +
+					event.threadId + ",\"ts\":" + toMicros(event.start - startTime) + ",\"dur\":" +
+					toMicros(event.duration) + ",\"args\":{\"cell\":\"" + escape(event.cellName) + "\"}}");
+		}
+
+		for (java.util.Map.Entry<Long, String> thread: threads.entrySet())
+		{
+			if (!first) out.write(",");
+			first = false;
+			out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey() +
+					",\"args\":{\"name\":\"" + escape(thread.getValue()) + "\"}}");
+		}
+		out.write("\n]}\n");
+	}
+
+	/**
+	 * Writes the kept trace events to a file.
+	 * @see #writeChromeTrace(Writer)
+	 */
+	public void writeChromeTrace(File file) throws IOException
+	{
+		File folder = file.getAbsoluteFile().getParentFile();
+		if (folder != null && !folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Cannot create folder \"" + folder + "\".");
+		}
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")))
+		{
+			writeChromeTrace(out);
+		}
+		LOGGER.info("Wrote cell load trace to \"" + file + "\"");
+	}
+
+	private static String toMicros(long nanos)
+	{
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e3);
+	}
+
+	private static String escape(String value)
+	{
+		StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				builder.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				builder.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,166 @@
+package caveyard.map;
+
+import com.jme3.app.Application;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads {@link Cell}s on a pool of worker threads. The cell's model is read,
+ * split into terrain and objects and its collision shape is built in
+ * background. Only the final integration into the map (inserting objects
+ * into the {@link ObjectsTree}, see {@link Map#integrateCell(Cell)}) is enqueued to the render thread using
+ * {@link Application#enqueue(Callable)} or, if the map has an
+ * {@link IntegrationScheduler}, submitted to the scheduler so that only a
+ * few cells are integrated per frame.
+ *
+ * While a cell is loaded it is {@link Cell.State#PENDING pending}. Controls
+ * must not attach pending cells to the scene graph.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellLoader
+{
+	protected static final Logger LOGGER = Logger.getLogger(CellLoader.class.getName());
+
+	protected Application app;
+	protected ExecutorService executor;
+
+	/**
+	 * Creates a new loader with its own pool of worker threads.
+	 *
+	 * @param app Application to enqueue the integration of loaded cells to.
+	 * @param threads Number of worker threads.
+	 */
+	public CellLoader(Application app, int threads)
+	{
+		this.app = app;
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "CellLoader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Requests a cell to be loaded in background. Must be called on the
+	 * render thread. If the cell is already loaded, nothing happens. If the
+	 * cell is not loaded yet, it is marked as pending and loaded by a worker
+	 * thread.
+	 *
+	 * @param cell Cell to load.
+	 * @param map Map owning the cell.
+	 * @return true if the cell is loaded and ready to use, false if it is pending.
+	 */
+	public boolean requestLoad(final Cell cell, final Map map)
+	{
+		if (cell.isLoaded()) return true;
+		if (cell.isPending()) return false;
+
+		cell.setPending(true);
+		executor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					map.prepareCell(cell);
+
+					IntegrationScheduler scheduler = map.getIntegrationScheduler();
+					if (scheduler != null)
+					{
+						scheduler.submit(cell.getArea(), new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								map.integrateCell(cell);
+							}
+						}, new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								// allow the cell to be requested again
+								cell.setPending(false);
+							}
+						});
+					}
+					else
+					{
+						app.enqueue(new Callable<Void>()
+						{
+							@Override
+							public Void call() throws Exception
+							{
+								try
+								{
+									map.integrateCell(cell);
+								}
+								catch (RuntimeException e)
+								{
+									LOGGER.log(Level.SEVERE, "Cannot integrate cell.", e);
+									cell.setPending(false);
+								}
+								return null;
+							}
+						});
+					}
+				}
+				catch (RuntimeException e)
+				{
+					LOGGER.log(Level.SEVERE, "Cannot load cell in background.", e);
+
+					app.enqueue(new Callable<Void>()
+					{
+						@Override
+						public Void call() throws Exception
+						{
+							cell.setPending(false);
+							return null;
+						}
+					});
+				}
+			}
+		});
+
+		return false;
+	}
+
+	/**
+	 * Runs another task related to loading the map on the loader's worker
+	 * threads.
+	 *
+	 * @param task Task to run in background.
+	 * @return Future of the task's result.
+	 */
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		return executor.submit(task);
+	}
+
+	/**
+	 * Stops all worker threads. Cells which are currently pending will not
+	 * be loaded anymore.
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+}
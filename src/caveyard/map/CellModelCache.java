@@ -0,0 +1,407 @@
+package caveyard.map;
+
+import caveyard.util.SpatialUtil;
+import com.jme3.asset.AssetManager;
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.util.CollisionShapeFactory;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.SceneGraphVisitorAdapter;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import jme3tools.optimize.LodGenerator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares the models of cells which reference the same model file, node and
+ * node offset. The model is loaded and split into terrain and objects only
+ * once; cells get clones of it which share meshes and materials and only
+ * differ by their transforms. The terrain's collision shape is built once
+ * as well and used by the terrain bodies of all these cells.
+ *
+ * Terrain meshes get {@link #TERRAIN_LOD_REDUCTIONS simplified levels of
+ * detail} when the model is loaded, unless the model file already
+ * contains them. Cells choose their level by {@link Cell#setLodLevel(int)}.
+ *
+ * Entries are reference counted: each loaded cell holds one reference and
+ * an entry is dropped when its last cell is unloaded. This class is
+ * thread-safe.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellModelCache
+{
+	protected static final Logger LOGGER = Logger.getLogger(CellModelCache.class.getName());
+
+	/**
+	 * Proportion of triangles removed from terrain meshes for each level of
+	 * detail above level 0, which is the original mesh.
+	 */
+	public static final float[] TERRAIN_LOD_REDUCTIONS = {0.5f, 0.75f, 0.9f};
+
+	/**
+	 * A loaded model shared by several cells.
+	 */
+	public static class Entry
+	{
+		protected final CellModelCache cache;
+		protected final String key;
+		protected final String filename;
+		protected final String nodeName;
+		protected final Vector3f nodeOffset;
+
+		/**
+		 * Terrain of the model, already moved by the negated node offset,
+		 * or null if the model does not have terrain.
+		 */
+		protected Node terrain;
+		/**
+		 * Objects of the model at their positions relative to the model.
+		 */
+		protected ArrayList<Spatial> objects;
+		protected Future<CollisionShape> shapeFuture;
+		/**
+		 * Estimated memory used by the terrain and its collision shape.
+		 */
+		protected long terrainMemorySize;
+
+		protected boolean loaded;
+		/**
+		 * Number of cells using this entry. Guarded by the cache.
+		 */
+		protected int references;
+
+		protected Entry(CellModelCache cache, String key, String filename, String nodeName, Vector3f nodeOffset)
+		{
+			this.cache = cache;
+			this.key = key;
+			this.filename = filename;
+			this.nodeName = nodeName;
+			this.nodeOffset = nodeOffset;
+		}
+
+		protected synchronized void load(AssetManager assetManager)
+		{
+			if (loaded) return;
+
+			long start = CellLoadProfiler.start();
+			Node node = (Node) assetManager.loadModel(filename);
+			if (nodeName != null && nodeName.length() != 0 && !node.getName().equals(nodeName))
+			{
+				Node child = (Node) node.getChild(nodeName);
+				if (child != null)
+				{
+					node = child;
+				}
+				else
+				{
+					LOGGER.warning("Unable to load Node \"" + nodeName + "\" from \"" + filename + "\"" +
+							"; using Model as a whole.");
+				}
+			}
+
+			CellLoadProfiler.stop(CellLoadProfiler.Phase.ASSET_LOAD, start);
+
+			start = CellLoadProfiler.start();
+			objects = new ArrayList<>();
+			for (Spatial child: node.getChildren())
+			{
+				if (child.getName().equals(Cell.TERRAIN_NODE))
+				{
+					terrain = new Node();
+					child.setLocalTranslation(nodeOffset.negate());
+					terrain.attachChild(child);
+				}
+				else if (child.getName().equals(Cell.OBJECTS_NODE))
+				{
+					objects.addAll(((Node) child).getChildren());
+				}
+			}
+
+			if (terrain == null)
+			{
+				LOGGER.finer("Model \"" + filename + "\" does not have terrain");
+			}
+			else
+			{
+				bakeLods(terrain);
+				// the collision shape holds a copy of the terrain
+				terrainMemorySize = 2 * SpatialUtil.estimateMemory(terrain);
+			}
+			CellLoadProfiler.stop(CellLoadProfiler.Phase.TERRAIN_SPLIT, start);
+
+			loaded = true;
+		}
+
+		/**
+		 * Generates levels of detail for all triangle meshes which do not
+		 * have any yet.
+		 */
+		protected void bakeLods(Spatial spatial)
+		{
+			spatial.depthFirstTraversal(new SceneGraphVisitorAdapter()
+			{
+				@Override
+				public void visit(Geometry geometry)
+				{
+					Mesh mesh = geometry.getMesh();
+					if (mesh.getNumLodLevels() > 0 || mesh.getMode() != Mesh.Mode.Triangles ||
+							mesh.getBuffer(VertexBuffer.Type.Index) == null)
+					{
+						return;
+					}
+
+					try
+					{
+						new LodGenerator(geometry).bakeLods(LodGenerator.TriangleReductionMethod.PROPORTIONAL,
+								TERRAIN_LOD_REDUCTIONS);
+					}
+					catch (RuntimeException e)
+					{
+						LOGGER.log(Level.WARNING, "Cannot generate levels of detail for \"" +
+								geometry.getName() + "\" in \"" + filename + "\".", e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Returns the terrain's collision shape. The shape is created on
+		 * the first call: it is read from the cache if possible, otherwise
+		 * built and stored in the cache. If a builder is passed, this is
+		 * done in background. A shape which failed to build is built again.
+		 *
+		 * @param shapeCache Cache of collision shapes or null.
+		 * @param shapeBuilder Builder to create the shape in background or null.
+		 * @return Future of the shape or null if the model has no terrain.
+		 */
+		public synchronized Future<CollisionShape> getShape(final CollisionShapeCache shapeCache,
+															CollisionShapeBuilder shapeBuilder)
+		{
+			if (shapeFuture != null && hasFailed(shapeFuture))
+			{
+				shapeFuture = null;
+			}
+
+			if (shapeFuture == null && terrain != null)
+			{
+				// measure the shape for the requesting cell, even on another thread
+				final CellLoadProfiler.Context context = CellLoadProfiler.getContext();
+				Callable<CollisionShape> task = new Callable<CollisionShape>()
+				{
+					@Override
+					public CollisionShape call() throws Exception
+					{
+						CellLoadProfiler.Context previous = CellLoadProfiler.getContext();
+						CellLoadProfiler.setContext(context);
+						try
+						{
+							return createShape(shapeCache);
+						}
+						finally
+						{
+							CellLoadProfiler.setContext(previous);
+						}
+					}
+				};
+
+				if (shapeBuilder != null)
+				{
+					shapeFuture = shapeBuilder.build(task);
+				}
+				else
+				{
+					FutureTask<CollisionShape> future = new FutureTask<>(task);
+					future.run();
+					shapeFuture = future;
+				}
+			}
+			return shapeFuture;
+		}
+
+		/**
+		 * Checks if a future completed without a result.
+		 */
+		protected static boolean hasFailed(Future<?> future)
+		{
+			if (!future.isDone()) return false;
+			if (future.isCancelled()) return true;
+
+			try
+			{
+				future.get();
+				return false;
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				return true;
+			}
+		}
+
+		protected CollisionShape createShape(CollisionShapeCache shapeCache)
+		{
+			long start = CellLoadProfiler.start();
+			CollisionShape shape = null;
+			String cacheKey = null;
+			String contentHash = null;
+			if (shapeCache != null)
+			{
+				cacheKey = CollisionShapeCache.getKey(filename, nodeName, nodeOffset);
+				contentHash = CollisionShapeCache.hashContent(terrain);
+				shape = shapeCache.load(cacheKey, contentHash);
+			}
+
+			if (shape == null)
+			{
+				shape = CollisionShapeFactory.createMeshShape(terrain);
+				if (shapeCache != null)
+				{
+					shapeCache.store(cacheKey, contentHash, shape);
+				}
+			}
+			CellLoadProfiler.stop(CellLoadProfiler.Phase.SHAPE_BUILD, start);
+			return shape;
+		}
+
+		/**
+		 * Creates a terrain for a cell. It shares its meshes with the
+		 * model's terrain.
+		 * @param pos Position of the cell.
+		 * @return The new terrain or null if the model has no terrain.
+		 */
+		public Node createTerrain(Vector3f pos)
+		{
+			if (terrain == null) return null;
+
+			Node cellTerrain = terrain.clone(false);
+			cellTerrain.setLocalTranslation(pos);
+			return cellTerrain;
+		}
+
+		/**
+		 * Creates the objects for a cell. They share their meshes with the
+		 * model's objects.
+		 * @param pos Position of the cell.
+		 * @return List of new objects placed in the world.
+		 */
+		public ArrayList<Spatial> createObjects(Vector3f pos)
+		{
+			ArrayList<Spatial> cellObjects = new ArrayList<>(objects.size());
+			for (Spatial object: objects)
+			{
+				Spatial cellObject = object.clone(false);
+				Vector3f objectPos = cellObject.getLocalTranslation();
+				objectPos.addLocal(pos);
+				objectPos.subtractLocal(nodeOffset);
+				cellObject.setLocalTranslation(objectPos);
+
+				cellObjects.add(cellObject);
+			}
+			return cellObjects;
+		}
+
+		public long getTerrainMemorySize()
+		{
+			return terrainMemorySize;
+		}
+
+		/**
+		 * Releases a reference to this entry. Must be called once for each
+		 * time the entry was acquired.
+		 */
+		public void release()
+		{
+			if (cache != null)
+			{
+				cache.release(this);
+			}
+		}
+	}
+
+	protected HashMap<String, Entry> entries;
+
+	public CellModelCache()
+	{
+		entries = new HashMap<>();
+	}
+
+	/**
+	 * Returns the shared model of a cell and loads it if necessary. The
+	 * returned entry must be released by {@link Entry#release()} when the
+	 * cell is unloaded.
+	 *
+	 * @param assetManager Asset manager to load the model with.
+	 * @param filename Model file of the cell.
+	 * @param nodeName Node in the model file or null to use the whole model.
+	 * @param nodeOffset Offset of the cell's node.
+	 * @return The loaded entry.
+	 */
+	public Entry acquire(AssetManager assetManager, String filename, String nodeName, Vector3f nodeOffset)
+	{
+		String key = filename + "|" + (nodeName == null ? "" : nodeName) + "|" +
+				nodeOffset.x + "," + nodeOffset.y + "," + nodeOffset.z;
+
+		Entry entry;
+		synchronized (this)
+		{
+			entry = entries.get(key);
+			if (entry == null)
+			{
+				entry = new Entry(this, key, filename, nodeName, nodeOffset.clone());
+				entries.put(key, entry);
+			}
+			entry.references++;
+		}
+
+		// loading outside of the cache's lock allows other models to be
+		// loaded at the same time
+		try
+		{
+			entry.load(assetManager);
+		}
+		catch (RuntimeException e)
+		{
+			release(entry);
+			throw e;
+		}
+		return entry;
+	}
+
+	/**
+	 * Loads a model without sharing it with other cells.
+	 */
+	public static Entry load(AssetManager assetManager, String filename, String nodeName, Vector3f nodeOffset)
+	{
+		Entry entry = new Entry(null, null, filename, nodeName, nodeOffset.clone());
+		entry.load(assetManager);
+		return entry;
+	}
+
+	protected synchronized void release(Entry entry)
+	{
+		entry.references--;
+		if (entry.references <= 0 && entries.get(entry.key) == entry)
+		{
+			entries.remove(entry.key);
+		}
+	}
+
+	/**
+	 * Returns the number of models currently shared.
+	 * @return Number of loaded models.
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+}
@@ -0,0 +1,628 @@
+package caveyard.map;
+
+import caveyard.map.math.Rect;
+import caveyard.xml.map.CellType;
+import caveyard.xml.map.PortalType;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Potentially visible sets of the cells of a map. For each cell, all cells
+ * which can be seen from anywhere inside it through a chain of portals are
+ * stored, so cells in hidden caverns can be skipped even if they are close
+ * to the player.
+ * <p>
+ *     Portals are openings between two cells. They are either declared in
+ *     the map definition or, if a map does not declare any, derived from
+ *     the edges shared by touching cells. A cell is visible from another
+ *     one if a straight line passes through all portals between them. This
+ *     is tested in the x-z-plane and errs on the visible side: a set may
+ *     contain cells which cannot actually be seen, but never misses one
+ *     which can.
+ * </p>
+ * <p>
+ *     Only cells up to {@link #maxDistance} apart are tested; cells farther
+ *     away are always treated as visible and left to the distance based
+ *     culling of the {@link MapLODControl}.
+ * </p>
+ * <p>
+ *     Layout written by {@link #write(DataOutput)} (all values big-endian):
+ * </p>
+ * <pre>
+ * int cellCount, int visibleCount, float maxDistance
+ * int[cellCount + 1] first entry of each cell's set
+ * int[visibleCount] visible cells, sorted per set
+ * </pre>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CellVisibility
+{
+	protected static final Logger LOGGER = Logger.getLogger(CellVisibility.class.getName());
+
+	/**
+	 * Default distance up to which visibility is computed. Should be larger
+	 * than the render radius of the {@link MapLODControl}.
+	 */
+	public static final float DEFAULT_MAX_DISTANCE = 64;
+
+	/**
+	 * Maximum number of portals a line of sight may pass.
+	 */
+	protected static final int MAX_DEPTH = 32;
+	/**
+	 * Distance in world units by which a line may miss a portal and still
+	 * count as passing it.
+	 */
+	protected static final float EPSILON = 1e-3f;
+
+	/**
+	 * Opening between two cells. The cells are referenced by their
+	 * number in the list of cells visibility is computed for.
+	 */
+	public static class Portal
+	{
+		public final int cellA, cellB;
+		public final float x1, y1, x2, y2;
+
+		public Portal(int cellA, int cellB, float x1, float y1, float x2, float y2)
+		{
+			this.cellA = cellA;
+			this.cellB = cellB;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+		}
+
+		public int getOther(int cell)
+		{
+			return cell == cellA ? cellB : cellA;
+		}
+	}
+
+	protected final IntBuffer starts;
+	protected final IntBuffer visible;
+	protected final float maxDistance;
+
+	/**
+	 * Creates the sets from their flat representation.
+	 * @param starts First entry in <code>visible</code> of each cell's set
+	 *               and the total number of entries at the end.
+	 * @param visible Visible cells, sorted per set.
+	 * @param maxDistance Distance up to which visibility was computed.
+	 */
+	public CellVisibility(IntBuffer starts, IntBuffer visible, float maxDistance)
+	{
+		this.starts = starts;
+		this.visible = visible;
+		this.maxDistance = maxDistance;
+	}
+
+	/**
+	 * Reads sets written by {@link #write(DataOutput)}. The sets are not
+	 * copied but read from the buffer when needed.
+	 * @param buffer Buffer positioned at the sets. Not modified.
+	 */
+	public static CellVisibility read(ByteBuffer buffer)
+	{
+		ByteBuffer data = buffer.slice();
+		int cellCount = data.getInt(0);
+		int visibleCount = data.getInt(4);
+		float maxDistance = data.getFloat(8);
+
+		data.position(12);
+		IntBuffer starts = data.slice().asIntBuffer();
+		starts.limit(cellCount + 1);
+		data.position(12 + (cellCount + 1) * 4);
+		IntBuffer visible = data.slice().asIntBuffer();
+		visible.limit(visibleCount);
+
+		return new CellVisibility(starts.slice(), visible.slice(), maxDistance);
+	}
+
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(getCellCount());
+		out.writeInt(visible.limit());
+		out.writeFloat(maxDistance);
+		for (int i = 0; i < starts.limit(); i++)
+		{
+			out.writeInt(starts.get(i));
+		}
+		for (int i = 0; i < visible.limit(); i++)
+		{
+			out.writeInt(visible.get(i));
+		}
+	}
+
+	public int getCellCount()
+	{
+		return starts.limit() - 1;
+	}
+
+	public float getMaxDistance()
+	{
+		return maxDistance;
+	}
+
+	/**
+	 * Returns the number of cells in a cell's set, including itself.
+	 * @param cell Number of the cell.
+	 * @return Size of the cell's potentially visible set.
+	 */
+	public int getVisibleCount(int cell)
+	{
+		return starts.get(cell + 1) - starts.get(cell);
+	}
+
+	/**
+	 * Checks if a cell is in the potentially visible set of another cell.
+	 * Does not consider {@link #maxDistance}.
+	 * @param from Number of the cell the viewer is in.
+	 * @param to Number of the tested cell.
+	 * @return true if <code>to</code> may be seen from <code>from</code>.
+	 */
+	public boolean isVisible(int from, int to)
+	{
+		if (from < 0 || from >= getCellCount()) return true;
+
+		int low = starts.get(from);
+		int high = starts.get(from + 1) - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int value = visible.get(mid);
+			if (value < to)
+			{
+				low = mid + 1;
+			}
+			else if (value > to)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if a cell may be seen from a viewer cell. Cells farther away
+	 * than {@link #maxDistance} are always visible.
+	 * @param from Cell the viewer is in.
+	 * @param to Tested cell.
+	 * @return false if <code>to</code> is hidden from <code>from</code>.
+	 */
+	public boolean isVisible(Cell from, Cell to)
+	{
+		return distanceSquared(from.getArea(), to.getArea()) > maxDistance * maxDistance ||
+				isVisible(from.index, to.index);
+	}
+
+	/**
+	 * Gets the portals of a map definition. The cells are referenced by
+	 * their ids. If the map does not declare portals, they are derived by
+	 * {@link #derivePortals(List)}.
+	 *
+	 * @param cellTypes Cells of the map in the order used for the sets.
+	 * @param portalTypes Declared portals or null.
+	 * @return Portals between the passed cells.
+	 */
+	public static List<Portal> getPortals(List<CellType> cellTypes, List<PortalType> portalTypes)
+	{
+		ArrayList<Rect> areas = getAreas(cellTypes);
+		if (portalTypes == null || portalTypes.isEmpty())
+		{
+			return derivePortals(areas);
+		}
+
+		HashMap<String, Integer> ids = new HashMap<>();
+		for (int i = 0; i < cellTypes.size(); i++)
+		{
+			String id = cellTypes.get(i).getId();
+			if (id != null)
+			{
+				ids.put(id, i);
+			}
+		}
+
+		ArrayList<Portal> portals = new ArrayList<>(portalTypes.size());
+		for (PortalType portalType: portalTypes)
+		{
+			Integer from = ids.get(portalType.getFrom());
+			Integer to = ids.get(portalType.getTo());
+			if (from == null || to == null)
+			{
+				LOGGER.warning("Portal between unknown cells \"" + portalType.getFrom() + "\" and \"" +
+						portalType.getTo() + "\"; ignoring it.");
+				continue;
+			}
+
+			Portal portal;
+			if (portalType.getX1() != null && portalType.getZ1() != null &&
+					portalType.getX2() != null && portalType.getZ2() != null)
+			{
+				portal = new Portal(from, to, portalType.getX1(), portalType.getZ1(),
+						portalType.getX2(), portalType.getZ2());
+			}
+			else
+			{
+				portal = createSharedPortal(from, to, areas.get(from), areas.get(to));
+			}
+
+			if (portal == null)
+			{
+				LOGGER.warning("Cells \"" + portalType.getFrom() + "\" and \"" + portalType.getTo() +
+						"\" do not share an edge; portal needs coordinates.");
+				continue;
+			}
+			portals.add(portal);
+		}
+		return portals;
+	}
+
+	/**
+	 * Creates portals along the edges shared by touching cells. Cells which
+	 * overlap are connected by a portal through their overlapping area.
+	 * @param areas Areas of all cells.
+	 * @return Portals between all touching cells.
+	 */
+	public static List<Portal> derivePortals(final List<Rect> areas)
+	{
+		Integer[] order = new Integer[areas.size()];
+		for (int i = 0; i < order.length; i++)
+		{
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Float.compare(areas.get(a).getX1(), areas.get(b).getX1());
+			}
+		});
+
+		// sweep along the x-axis: only cells starting before the end of a
+		// cell can touch it
+		ArrayList<Portal> portals = new ArrayList<>();
+		for (int i = 0; i < order.length; i++)
+		{
+			Rect a = areas.get(order[i]);
+			for (int j = i + 1; j < order.length && areas.get(order[j]).getX1() <= a.getX2(); j++)
+			{
+				Rect b = areas.get(order[j]);
+				if (a.intersectsWith(b))
+				{
+					Portal portal = createSharedPortal(order[i], order[j], a, b);
+					if (portal != null)
+					{
+						portals.add(portal);
+					}
+				}
+			}
+		}
+		return portals;
+	}
+
+	/**
+	 * Creates a portal along the edge shared by two cells or through their
+	 * overlapping area.
+	 * @return The portal or null if the cells touch in a corner only or do
+	 * not touch at all.
+	 */
+	protected static Portal createSharedPortal(int cellA, int cellB, Rect a, Rect b)
+	{
+		if (!a.intersectsWith(b)) return null;
+
+		Rect shared = a.getIntersection(b);
+		if (shared.getSizeX() >= shared.getSizeY())
+		{
+			if (shared.getSizeX() <= 0) return null;
+
+			float y = (shared.getY1() + shared.getY2()) / 2;
+			return new Portal(cellA, cellB, shared.getX1(), y, shared.getX2(), y);
+		}
+		else
+		{
+			float x = (shared.getX1() + shared.getX2()) / 2;
+			return new Portal(cellA, cellB, x, shared.getY1(), x, shared.getY2());
+		}
+	}
+
+	/**
+	 * Computes the potentially visible sets of all cells.
+	 *
+	 * @param areas Areas of all cells.
+	 * @param portals Portals between the cells.
+	 * @param maxDistance Distance up to which visibility is computed.
+	 * @return The sets of all cells.
+	 */
+	public static CellVisibility compute(List<Rect> areas, List<Portal> portals, float maxDistance)
+	{
+		final int cellCount = areas.size();
+
+		// portals of each cell
+		int[] portalStarts = new int[cellCount + 1];
+		for (Portal portal: portals)
+		{
+			portalStarts[portal.cellA + 1]++;
+			portalStarts[portal.cellB + 1]++;
+		}
+		for (int i = 1; i <= cellCount; i++)
+		{
+			portalStarts[i] += portalStarts[i - 1];
+		}
+		int[] cellPortals = new int[portalStarts[cellCount]];
+		int[] fill = Arrays.copyOf(portalStarts, cellCount);
+		for (int i = 0; i < portals.size(); i++)
+		{
+			Portal portal = portals.get(i);
+			cellPortals[fill[portal.cellA]++] = i;
+			cellPortals[fill[portal.cellB]++] = i;
+		}
+
+		Traversal traversal = new Traversal(areas, portals, portalStarts, cellPortals, maxDistance);
+		int[] starts = new int[cellCount + 1];
+		int[] visible = new int[Math.max(cellCount, 16)];
+		int visibleCount = 0;
+		for (int cell = 0; cell < cellCount; cell++)
+		{
+			int[] set = traversal.run(cell);
+			if (visibleCount + set.length > visible.length)
+			{
+				visible = Arrays.copyOf(visible, Math.max(2 * visible.length, visibleCount + set.length));
+			}
+			System.arraycopy(set, 0, visible, visibleCount, set.length);
+			visibleCount += set.length;
+			starts[cell + 1] = visibleCount;
+		}
+
+		LOGGER.fine("Computed visibility of " + cellCount + " cells through " + portals.size() +
+				" portals: " + visibleCount + " visible pairs");
+
+		return new CellVisibility(IntBuffer.wrap(starts), IntBuffer.wrap(visible, 0, visibleCount).slice(),
+				maxDistance);
+	}
+
+	/**
+	 * Finds the cells visible from one cell by following portal chains
+	 * breadth first. A chain is extended through a portal if a line passes
+	 * its first portal and its last three portals. Leaving out the portals
+	 * in between only adds cells to the sets, but makes the test depend on
+	 * these portals alone: each combination of them is followed once, no
+	 * matter how many chains lead to it, and always by the shortest one.
+	 */
+	protected static class Traversal
+	{
+		/**
+		 * Ints per queued chain: first, previous and last portal, the cell
+		 * behind the last portal and the number of portals.
+		 */
+		protected static final int ENTRY = 5;
+
+		protected final List<Rect> areas;
+		protected final List<Portal> portals;
+		protected final int[] portalStarts;
+		protected final int[] cellPortals;
+		protected final float maxDistanceSquared;
+
+		/**
+		 * Combinations of first, previous and last portal already queued.
+		 */
+		protected final HashSet<Long> queued;
+		protected int[] queue;
+		protected int queueSize;
+		protected final int[] marked;
+		protected final Portal[] chain;
+		protected int[] found;
+		protected int foundCount;
+		protected Rect sourceArea;
+
+		protected Traversal(List<Rect> areas, List<Portal> portals, int[] portalStarts, int[] cellPortals,
+							float maxDistance)
+		{
+			this.areas = areas;
+			this.portals = portals;
+			this.portalStarts = portalStarts;
+			this.cellPortals = cellPortals;
+			this.maxDistanceSquared = maxDistance * maxDistance;
+
+			this.queued = new HashSet<>();
+			this.queue = new int[16 * ENTRY];
+			this.marked = new int[areas.size()];
+			this.chain = new Portal[4];
+			this.found = new int[16];
+		}
+
+		protected int[] run(int source)
+		{
+			sourceArea = areas.get(source);
+			foundCount = 0;
+			queueSize = 0;
+			queued.clear();
+			mark(source, source);
+
+			for (int i = portalStarts[source]; i < portalStarts[source + 1]; i++)
+			{
+				int portalId = cellPortals[i];
+				Portal portal = portals.get(portalId);
+				if (distanceSquared(sourceArea, portal) > maxDistanceSquared) continue;
+
+				int next = portal.getOther(source);
+				mark(source, next);
+				enqueue(portalId, -1, portalId, next, 1);
+			}
+
+			for (int head = 0; head < queueSize; head += ENTRY)
+			{
+				int first = queue[head];
+				int previous = queue[head + 1];
+				int last = queue[head + 2];
+				int cell = queue[head + 3];
+				int depth = queue[head + 4];
+				if (depth >= MAX_DEPTH) continue;
+
+				for (int i = portalStarts[cell]; i < portalStarts[cell + 1]; i++)
+				{
+					int portalId = cellPortals[i];
+					if (portalId == last) continue;
+					Portal portal = portals.get(portalId);
+					if (distanceSquared(sourceArea, portal) > maxDistanceSquared) continue;
+
+					int length = 0;
+					chain[length++] = portals.get(first);
+					if (previous >= 0 && previous != first) chain[length++] = portals.get(previous);
+					if (last != first) chain[length++] = portals.get(last);
+					chain[length++] = portal;
+					if (!isStabbed(length)) continue;
+
+					int next = portal.getOther(cell);
+					mark(source, next);
+					if (queued.add(key(first, last, portalId)))
+					{
+						enqueue(first, last, portalId, next, depth + 1);
+					}
+				}
+			}
+
+			int[] set = Arrays.copyOf(found, foundCount);
+			Arrays.sort(set);
+			return set;
+		}
+
+		protected long key(int first, int previous, int last)
+		{
+			long count = portals.size() + 1;
+			return ((first * count) + previous + 1) * count + last;
+		}
+
+		protected void enqueue(int first, int previous, int last, int cell, int depth)
+		{
+			if (queueSize + ENTRY > queue.length)
+			{
+				queue = Arrays.copyOf(queue, 2 * queue.length);
+			}
+			queue[queueSize++] = first;
+			queue[queueSize++] = previous;
+			queue[queueSize++] = last;
+			queue[queueSize++] = cell;
+			queue[queueSize++] = depth;
+		}
+
+		protected void mark(int source, int cell)
+		{
+			if (marked[cell] == source + 1) return;
+
+			marked[cell] = source + 1;
+			if (foundCount == found.length)
+			{
+				found = Arrays.copyOf(found, 2 * found.length);
+			}
+			found[foundCount++] = cell;
+		}
+
+		/**
+		 * Tests if a line passes all portals in {@link #chain}. If any line
+		 * does, it can be moved until it touches two portal ends and still
+		 * pass all portals, so only the lines through two ends are tested. The
+		 * order in which a line passes the portals is not checked, which
+		 * only adds cells to the sets.
+		 */
+		protected boolean isStabbed(int length)
+		{
+			// any line between two portals of a convex cell stays inside it
+			if (length <= 2) return true;
+
+			int ends = 2 * length;
+			for (int i = 0; i < ends; i++)
+			{
+				float ax = getEndX(i), ay = getEndY(i);
+				for (int j = i + 1; j < ends; j++)
+				{
+					float bx = getEndX(j), by = getEndY(j);
+					float dx = bx - ax, dy = by - ay;
+					float lengthSquared = dx * dx + dy * dy;
+					if (lengthSquared < EPSILON * EPSILON) continue;
+
+					float tolerance = EPSILON * (float) Math.sqrt(lengthSquared);
+					boolean passes = true;
+					for (int k = 0; k < length && passes; k++)
+					{
+						Portal portal = chain[k];
+						float d1 = cross(ax, ay, bx, by, portal.x1, portal.y1);
+						float d2 = cross(ax, ay, bx, by, portal.x2, portal.y2);
+						passes = Math.min(d1, d2) <= tolerance && Math.max(d1, d2) >= -tolerance;
+					}
+					if (passes) return true;
+				}
+			}
+			return false;
+		}
+
+		protected float getEndX(int end)
+		{
+			Portal portal = chain[end >> 1];
+			return (end & 1) == 0 ? portal.x1 : portal.x2;
+		}
+
+		protected float getEndY(int end)
+		{
+			Portal portal = chain[end >> 1];
+			return (end & 1) == 0 ? portal.y1 : portal.y2;
+		}
+	}
+
+	private static float cross(float ox, float oy, float ax, float ay, float bx, float by)
+	{
+		return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+	}
+
+	protected static float distanceSquared(Rect area, Portal portal)
+	{
+		return Math.min(Math.min(area.distanceSquared(portal.x1, portal.y1),
+				area.distanceSquared(portal.x2, portal.y2)),
+				area.distanceSquared((portal.x1 + portal.x2) / 2, (portal.y1 + portal.y2) / 2));
+	}
+
+	protected static float distanceSquared(Rect a, Rect b)
+	{
+		float dx = Math.max(0, Math.max(a.getX1() - b.getX2(), b.getX1() - a.getX2()));
+		float dy = Math.max(0, Math.max(a.getY1() - b.getY2(), b.getY1() - a.getY2()));
+		return dx * dx + dy * dy;
+	}
+
+	protected static ArrayList<Rect> getAreas(List<CellType> cellTypes)
+	{
+		ArrayList<Rect> areas = new ArrayList<>(cellTypes.size());
+		for (CellType cellType: cellTypes)
+		{
+			areas.add(new Rect(cellType.getX(), cellType.getZ(), cellType.getX() + cellType.getSizeX(),
+					cellType.getZ() + cellType.getSizeZ()));
+		}
+		return areas;
+	}
+
+	/**
+	 * Computes the sets of a map definition's cells.
+	 * @param cellTypes Cells of the map in the order used for the sets.
+	 * @param portalTypes Declared portals or null to derive them.
+	 */
+	public static CellVisibility compute(List<CellType> cellTypes, List<PortalType> portalTypes)
+	{
+		return compute(getAreas(cellTypes), getPortals(cellTypes, portalTypes), DEFAULT_MAX_DISTANCE);
+	}
+}
@@ -0,0 +1,101 @@
+package caveyard.map;
+
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.util.CollisionShapeFactory;
+import com.jme3.scene.Spatial;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds collision shapes on a pool of worker threads. Building mesh shapes
+ * is expensive, so controls should request shapes here and add the physics
+ * body to the physics space as soon as the returned future is done.
+ *
+ * The spatials passed must not be modified while their shapes are built.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CollisionShapeBuilder
+{
+	protected ExecutorService executor;
+
+	/**
+	 * Creates a new builder with its own pool of worker threads.
+	 * @param threads Number of worker threads.
+	 */
+	public CollisionShapeBuilder(int threads)
+	{
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "CollisionShapeBuilder-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Builds a static mesh shape of <code>spatial</code>, see
+	 * {@link CollisionShapeFactory#createMeshShape(Spatial)}.
+	 * @param spatial Spatial to build the shape of.
+	 * @return Future of the shape.
+	 */
+	public Future<CollisionShape> buildMeshShape(final Spatial spatial)
+	{
+		return build(new Callable<CollisionShape>()
+		{
+			@Override
+			public CollisionShape call() throws Exception
+			{
+				return CollisionShapeFactory.createMeshShape(spatial);
+			}
+		});
+	}
+
+	/**
+	 * Builds a dynamic mesh shape of <code>spatial</code>, see
+	 * {@link CollisionShapeFactory#createDynamicMeshShape(Spatial)}.
+	 * @param spatial Spatial to build the shape of.
+	 * @return Future of the shape.
+	 */
+	public Future<CollisionShape> buildDynamicMeshShape(final Spatial spatial)
+	{
+		return build(new Callable<CollisionShape>()
+		{
+			@Override
+			public CollisionShape call() throws Exception
+			{
+				return CollisionShapeFactory.createDynamicMeshShape(spatial);
+			}
+		});
+	}
+
+	/**
+	 * Builds a shape by an arbitrary task on a worker thread.
+	 * @param task Task creating the shape.
+	 * @return Future of the shape.
+	 */
+	public Future<CollisionShape> build(Callable<CollisionShape> task)
+	{
+		return executor.submit(task);
+	}
+
+	/**
+	 * Stops all worker threads. Shapes not built yet are discarded.
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+}
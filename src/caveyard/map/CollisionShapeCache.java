@@ -0,0 +1,298 @@
+package caveyard.map;
+
+import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
+import com.jme3.export.binary.BinaryExporter;
+import com.jme3.export.binary.BinaryImporter;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the collision shapes of cell terrains in a directory on disk so
+ * they do not need to be rebuilt every time a cell is loaded. The shapes
+ * are written by jME's {@link BinaryExporter}.
+ *
+ * An entry is identified by the cell's model file, its node name and its
+ * node offset. Each entry additionally stores a hash of the terrain's
+ * meshes and transforms. If the terrain changed, the hash does not match
+ * and the entry is treated as missing, so it is rebuilt and overwritten.
+ *
+ * This class is thread-safe; entries are written to a temporary file first
+ * and renamed afterwards.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class CollisionShapeCache
+{
+	protected static final Logger LOGGER = Logger.getLogger(CollisionShapeCache.class.getName());
+
+	/**
+	 * Version of the cache format. Increase to invalidate all entries.
+	 */
+	protected static final int VERSION = 1;
+	protected static final String FILE_EXTENSION = ".j3o";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A single cache entry written to disk.
+	 */
+	public static class Entry implements Savable
+	{
+		protected String key;
+		protected String contentHash;
+		protected CollisionShape shape;
+
+		/**
+		 * Used by {@link BinaryImporter}.
+		 */
+		public Entry()
+		{
+		}
+
+		public Entry(String key, String contentHash, CollisionShape shape)
+		{
+			this.key = key;
+			this.contentHash = contentHash;
+			this.shape = shape;
+		}
+
+		@Override
+		public void write(JmeExporter ex) throws IOException
+		{
+			OutputCapsule capsule = ex.getCapsule(this);
+			capsule.write(key, "key", null);
+			capsule.write(contentHash, "contentHash", null);
+			capsule.write(shape, "shape", null);
+		}
+
+		@Override
+		public void read(JmeImporter im) throws IOException
+		{
+			InputCapsule capsule = im.getCapsule(this);
+			key = capsule.readString("key", null);
+			contentHash = capsule.readString("contentHash", null);
+			shape = (CollisionShape) capsule.readSavable("shape", null);
+		}
+	}
+
+	protected File directory;
+
+	/**
+	 * Creates a new cache storing its entries in <code>directory</code>.
+	 * The directory is created if it does not exist.
+	 * @param directory Directory of the cache.
+	 */
+	public CollisionShapeCache(File directory)
+	{
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			LOGGER.warning("Cannot create collision shape cache directory \"" + directory + "\".");
+		}
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Builds the key identifying the collision shape of a cell's terrain.
+	 *
+	 * @param filename Model file of the cell.
+	 * @param nodeName Node of the model used by the cell or null.
+	 * @param nodeOffset Offset of the node.
+	 * @return Key of the cache entry.
+	 */
+	public static String getKey(String filename, String nodeName, Vector3f nodeOffset)
+	{
+		return VERSION + "|" + filename + "|" + (nodeName == null ? "" : nodeName) + "|" +
+				nodeOffset.x + "," + nodeOffset.y + "," + nodeOffset.z;
+	}
+
+	/**
+	 * Loads a cached collision shape.
+	 *
+	 * @param key Key of the entry, see {@link #getKey(String, String, Vector3f)}.
+	 * @param contentHash Hash of the terrain, see {@link #hashContent(Spatial)}.
+	 * @return The cached shape or null if there is no valid entry.
+	 */
+	public CollisionShape load(String key, String contentHash)
+	{
+		File file = getFile(key);
+		if (!file.isFile()) return null;
+
+		try
+		{
+			Entry entry = (Entry) BinaryImporter.getInstance().load(file);
+			if (!key.equals(entry.key) || !contentHash.equals(entry.contentHash) || entry.shape == null)
+			{
+				LOGGER.fine("Collision shape cache entry for \"" + key + "\" is stale.");
+				return null;
+			}
+			return entry.shape;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Cannot read collision shape cache entry \"" + file + "\".", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a collision shape. An existing entry is overwritten.
+	 *
+	 * @param key Key of the entry, see {@link #getKey(String, String, Vector3f)}.
+	 * @param contentHash Hash of the terrain, see {@link #hashContent(Spatial)}.
+	 * @param shape Shape to store.
+	 */
+	public void store(String key, String contentHash, CollisionShape shape)
+	{
+		File file = getFile(key);
+		File tempFile = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		try
+		{
+			BinaryExporter.getInstance().save(new Entry(key, contentHash, shape), tempFile);
+			if (file.exists() && !file.delete() || !tempFile.renameTo(file))
+			{
+				LOGGER.fine("Cannot replace collision shape cache entry \"" + file + "\".");
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Cannot write collision shape cache entry \"" + file + "\".", e);
+		}
+		finally
+		{
+			if (tempFile.exists() && !tempFile.delete())
+			{
+				tempFile.deleteOnExit();
+			}
+		}
+	}
+
+	protected File getFile(String key)
+	{
+		return new File(directory, toHex(sha1().digest(key.getBytes(UTF8))) + FILE_EXTENSION);
+	}
+
+	/**
+	 * Computes a hash of all meshes and transforms below <code>spatial</code>.
+	 * The transform of <code>spatial</code> itself is not included as it
+	 * does not influence the collision shape.
+	 *
+	 * @param spatial Root of the terrain.
+	 * @return Hash of the terrain as hex string.
+	 */
+	public static String hashContent(Spatial spatial)
+	{
+		MessageDigest digest = sha1();
+		ByteBuffer scratch = ByteBuffer.allocate(4096);
+		hashSpatial(spatial, false, digest, scratch);
+		return toHex(digest.digest());
+	}
+
+	private static void hashSpatial(Spatial spatial, boolean hashTransform, MessageDigest digest,
+									ByteBuffer scratch)
+	{
+		if (hashTransform)
+		{
+			Transform transform = spatial.getLocalTransform();
+			scratch.clear();
+			scratch.putFloat(transform.getTranslation().x).putFloat(transform.getTranslation().y)
+					.putFloat(transform.getTranslation().z);
+			scratch.putFloat(transform.getRotation().getX()).putFloat(transform.getRotation().getY())
+					.putFloat(transform.getRotation().getZ()).putFloat(transform.getRotation().getW());
+			scratch.putFloat(transform.getScale().x).putFloat(transform.getScale().y)
+					.putFloat(transform.getScale().z);
+			scratch.flip();
+			digest.update(scratch);
+		}
+
+		if (spatial instanceof Geometry)
+		{
+			Mesh mesh = ((Geometry) spatial).getMesh();
+			hashBuffer(mesh.getBuffer(VertexBuffer.Type.Position), digest, scratch);
+			hashBuffer(mesh.getBuffer(VertexBuffer.Type.Index), digest, scratch);
+		}
+		else if (spatial instanceof Node)
+		{
+			for (Spatial child: ((Node) spatial).getChildren())
+			{
+				hashSpatial(child, true, digest, scratch);
+			}
+		}
+	}
+
+	private static void hashBuffer(VertexBuffer vertexBuffer, MessageDigest digest, ByteBuffer scratch)
+	{
+		if (vertexBuffer == null || vertexBuffer.getData() == null) return;
+
+		Buffer data = vertexBuffer.getDataReadOnly();
+		data.rewind();
+		scratch.clear();
+		while (data.hasRemaining())
+		{
+			if (scratch.remaining() < 4)
+			{
+				scratch.flip();
+				digest.update(scratch);
+				scratch.clear();
+			}
+
+			if (data instanceof FloatBuffer) scratch.putFloat(((FloatBuffer) data).get());
+			else if (data instanceof IntBuffer) scratch.putInt(((IntBuffer) data).get());
+			else if (data instanceof ShortBuffer) scratch.putShort(((ShortBuffer) data).get());
+			else if (data instanceof ByteBuffer) scratch.put(((ByteBuffer) data).get());
+			else throw new IllegalArgumentException("Unsupported buffer: " + data.getClass().getName());
+		}
+		scratch.flip();
+		digest.update(scratch);
+	}
+
+	private static MessageDigest sha1()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException("SHA-1 not supported.", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes)
+		{
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,347 @@
+package caveyard.map;
+
+import caveyard.map.math.Rect;
+import caveyard.util.VecUtil;
+import com.jme3.math.Vector2f;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.control.AbstractControl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs work which must be done on the render thread, like integrating
+ * cells loaded in background or adding bodies to the physics space, spread
+ * over several frames. Each frame only as many tasks are run as fit into
+ * the {@link #budget}; the rest stays queued for the next frames. Tasks
+ * closest to the {@link #player} are run first, so the surroundings of
+ * the player are completed before far away cells.
+ * <p>
+ *     At least one task is run per frame, so the queue always makes
+ *     progress even if single tasks take longer than the budget.
+ * </p>
+ * <p>
+ *     Tasks can be submitted from any thread. The scheduler registers
+ *     itself at its map when added to a {@link MapNode}; the
+ *     {@link CellLoader}, {@link MapTerrainPhysicsControl} and
+ *     {@link MapObjectsControl} use it if present. It should be added
+ *     to the map node before these controls so that finished work is
+ *     picked up in the same frame.
+ * </p>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class IntegrationScheduler extends AbstractControl
+{
+	protected static final Logger LOGGER = Logger.getLogger(IntegrationScheduler.class.getName());
+
+	/**
+	 * A queued piece of work and the area it concerns.
+	 */
+	protected static class Task
+	{
+		protected final Rect area;
+		protected final Runnable work;
+		/**
+		 * Run if the work throws, or null.
+		 */
+		protected final Runnable failure;
+		/**
+		 * Squared distance to the player when the queue was last sorted.
+		 */
+		protected float distanceSquared;
+
+		protected Task(Rect area, Runnable work, Runnable failure)
+		{
+			this.area = area;
+			this.work = work;
+			this.failure = failure;
+		}
+	}
+
+	protected static final Comparator<Task> NEAREST_FIRST = new Comparator<Task>()
+	{
+		@Override
+		public int compare(Task a, Task b)
+		{
+			return Float.compare(a.distanceSquared, b.distanceSquared);
+		}
+	};
+
+	protected MapNode mapNode;
+	protected Map map;
+
+	/**
+	 * Spatial which distance determines the order of tasks.
+	 */
+	protected Spatial player;
+	/**
+	 * Time in nanoseconds tasks may take per frame.
+	 */
+	protected long budget;
+
+	/**
+	 * Tasks submitted since the last frame, possibly by other threads.
+	 */
+	protected ConcurrentLinkedQueue<Task> submitted;
+	/**
+	 * Tasks waiting to be run, sorted nearest first each frame.
+	 */
+	protected ArrayList<Task> queue;
+
+	protected long lastFrameTime;
+	protected int lastFrameTasks;
+	protected float peakBudgetUsage;
+	protected int peakQueueSize;
+	protected long totalTasks;
+
+	/**
+	 * Creates a scheduler.
+	 * @param player Spatial to run the closest tasks first for.
+	 * @param budgetMillis Time in milliseconds tasks may take per frame.
+	 */
+	public IntegrationScheduler(Spatial player, float budgetMillis)
+	{
+		this.player = player;
+		setBudget(budgetMillis);
+
+		this.submitted = new ConcurrentLinkedQueue<>();
+		this.queue = new ArrayList<>();
+	}
+
+	public Spatial getPlayer()
+	{
+		return player;
+	}
+
+	public void setPlayer(Spatial player)
+	{
+		this.player = player;
+	}
+
+	/**
+	 * Returns the time tasks may take per frame.
+	 * @return Budget in milliseconds.
+	 */
+	public float getBudget()
+	{
+		return budget / 1e6f;
+	}
+
+	/**
+	 * Sets the time tasks may take per frame.
+	 * @param budgetMillis Budget in milliseconds.
+	 */
+	public void setBudget(float budgetMillis)
+	{
+		this.budget = (long) (budgetMillis * 1e6f);
+	}
+
+	/**
+	 * Queues work to be run on the render thread. Can be called from any
+	 * thread.
+	 * @param area Area the work concerns; used to run work near the player
+	 *             first.
+	 * @param work Work to run.
+	 */
+	public void submit(Rect area, Runnable work)
+	{
+		submit(area, work, null);
+	}
+
+	/**
+	 * Queues work to be run on the render thread together with work to
+	 * clean up if it fails, e.g. to allow a cell to be requested again.
+	 * Can be called from any thread.
+	 * @param area Area the work concerns; used to run work near the player
+	 *             first.
+	 * @param work Work to run.
+	 * @param failure Work run on the render thread if <code>work</code>
+	 *                throws, or null.
+	 */
+	public void submit(Rect area, Runnable work, Runnable failure)
+	{
+		submitted.add(new Task(area, work, failure));
+	}
+
+	/**
+	 * Queues work concerning a single position.
+	 * @see #submit(Rect, Runnable)
+	 */
+	public void submit(Vector2f pos, Runnable work)
+	{
+		submit(new Rect(pos.x, pos.y, pos.x, pos.y), work);
+	}
+
+	/**
+	 * Returns the number of tasks waiting to be run.
+	 * @return Current queue depth.
+	 */
+	public int getQueueSize()
+	{
+		return queue.size() + submitted.size();
+	}
+
+	/**
+	 * Returns the time tasks took on the last frame.
+	 * @return Time in milliseconds.
+	 */
+	public float getLastFrameTime()
+	{
+		return lastFrameTime / 1e6f;
+	}
+
+	/**
+	 * Returns the number of tasks run on the last frame.
+	 * @return Number of tasks.
+	 */
+	public int getLastFrameTasks()
+	{
+		return lastFrameTasks;
+	}
+
+	/**
+	 * Returns the part of the budget used on the last frame. Values above
+	 * 1 mean a single task took longer than the whole budget.
+	 * @return Used time divided by the budget.
+	 */
+	public float getBudgetUsage()
+	{
+		return budget > 0 ? (float) lastFrameTime / budget : 0;
+	}
+
+	/**
+	 * Returns the highest budget usage since the last call to
+	 * {@link #resetMetrics()}.
+	 * @return Highest used time divided by the budget.
+	 */
+	public float getPeakBudgetUsage()
+	{
+		return peakBudgetUsage;
+	}
+
+	/**
+	 * Returns the highest queue depth since the last call to
+	 * {@link #resetMetrics()}.
+	 * @return Highest number of waiting tasks.
+	 */
+	public int getPeakQueueSize()
+	{
+		return peakQueueSize;
+	}
+
+	/**
+	 * Returns the number of tasks run since the last call to
+	 * {@link #resetMetrics()}.
+	 * @return Number of tasks.
+	 */
+	public long getTotalTasks()
+	{
+		return totalTasks;
+	}
+
+	public void resetMetrics()
+	{
+		peakBudgetUsage = 0;
+		peakQueueSize = 0;
+		totalTasks = 0;
+	}
+
+	@Override
+	public void setSpatial(Spatial spatial)
+	{
+		if (spatial instanceof MapNode)
+		{
+			super.setSpatial(spatial);
+			this.mapNode = (MapNode) spatial;
+			this.map = mapNode.getMap();
+			map.integrationScheduler = this;
+		}
+		else if (spatial == null)
+		{
+			if (map != null && map.integrationScheduler == this)
+			{
+				map.integrationScheduler = null;
+			}
+			super.setSpatial(null);
+		}
+		else
+		{
+			throw new RuntimeException("IntegrationScheduler can only handle MapNodes. Got \"" +
+					spatial.getClass().getName() + "\" instead.");
+		}
+	}
+
+	@Override
+	protected void controlUpdate(float tpf)
+	{
+		Task task;
+		while ((task = submitted.poll()) != null)
+		{
+			queue.add(task);
+		}
+
+		lastFrameTime = 0;
+		lastFrameTasks = 0;
+		if (queue.isEmpty()) return;
+
+		peakQueueSize = Math.max(peakQueueSize, queue.size());
+
+		// sort descending, so the nearest task can be removed from the end
+		final Vector2f pos = VecUtil.toXZVector(player.getWorldTranslation());
+		for (Task queued: queue)
+		{
+			queued.distanceSquared = queued.area.distanceSquared(pos.x, pos.y);
+		}
+		Collections.sort(queue, Collections.reverseOrder(NEAREST_FIRST));
+
+		final long start = System.nanoTime();
+		long elapsed = 0;
+		while (!queue.isEmpty() && (lastFrameTasks == 0 || elapsed < budget))
+		{
+			task = queue.remove(queue.size() - 1);
+			try
+			{
+				task.work.run();
+			}
+			catch (RuntimeException e)
+			{
+				LOGGER.log(Level.SEVERE, "Scheduled task failed.", e);
+				if (task.failure != null)
+				{
+					try
+					{
+						task.failure.run();
+					}
+					catch (RuntimeException failure)
+					{
+						LOGGER.log(Level.SEVERE, "Cleaning up after a failed task failed.", failure);
+					}
+				}
+			}
+			lastFrameTasks++;
+			elapsed = System.nanoTime() - start;
+		}
+
+		lastFrameTime = elapsed;
+		totalTasks += lastFrameTasks;
+		peakBudgetUsage = Math.max(peakBudgetUsage, getBudgetUsage());
+
+		if (LOGGER.isLoggable(Level.FINER))
+		{
+			LOGGER.finer(String.format("Ran %d tasks in %.2f ms, %d left", lastFrameTasks, getLastFrameTime(),
+					queue.size()));
+		}
+	}
+
+	@Override
+	protected void controlRender(RenderManager rm, ViewPort vp)
+	{
+	}
+}
@@ -4,13 +4,19 @@ import caveyard.map.math.Area;
 import caveyard.map.math.Rect;
 import caveyard.xml.map.CellType;
 import caveyard.xml.map.MapType;
+import caveyard.xml.map.PortalType;
 import com.jme3.asset.AssetManager;
 import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Node;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -20,12 +26,64 @@ import java.util.logging.Logger;
 public class Map
 {
 	protected static Logger logger = Logger.getLogger(Map.class.getName());
+
+	/**
+	 * Edge length of the buckets of the {@link #objectsTree}.
+	 */
+	protected static final float OBJECTS_BUCKET_SIZE = 10f;
+
 	protected AssetManager assetManager;
 
-	//protected CellTree cellTree;
 	protected ArrayList<Cell> cells;
+	/**
+	 * Spatial index of all {@link #cells}. Built on first use and
+	 * invalidated if cells are added.
+	 */
+	protected CellGrid cellGrid;
+	/**
+	 * Index of cells stored outside the heap. If set, {@link #cells} is
+	 * empty and cells are created by the index when they are found.
+	 */
+	protected CellIndex cellIndex;
+	/**
+	 * Potentially visible sets of all cells or null if every cell may be
+	 * seen from everywhere.
+	 */
+	protected CellVisibility visibility;
 
 	protected HashSet<Cell> visibleCells;
+	/**
+	 * Tracks all loaded cells and unloads them if they use too much memory.
+	 */
+	protected CellCache cellCache;
+	/**
+	 * Shares models between cells using the same model file.
+	 */
+	protected CellModelCache modelCache;
+	/**
+	 * Cache of terrain collision shapes on disk or null if shapes are
+	 * always built.
+	 */
+	protected CollisionShapeCache shapeCache;
+	/**
+	 * Builds terrain collision shapes of synchronously loaded cells in
+	 * background or null to build them right away.
+	 */
+	protected CollisionShapeBuilder shapeBuilder;
+	/**
+	 * Spreads integration work over several frames or null to do it right
+	 * away. Set by the scheduler when it is added to the {@link #mapNode}.
+	 */
+	protected IntegrationScheduler integrationScheduler;
+	/**
+	 * Measures the phases of loading cells or null to not measure them.
+	 */
+	protected CellLoadProfiler profiler;
+	/**
+	 * Number of cells integrated since the map was loaded, including cells
+	 * which were loaded again after being unloaded.
+	 */
+	protected long loadedCellCount;
 
 	protected Node terrain;
 	protected Node objects;
@@ -38,9 +96,11 @@ public class Map
     {
 		this.assetManager = assetManager;
 
-		//cellTree = new CellTree();
 		cells = new ArrayList<>();
 		visibleCells = new HashSet<>();
+		cellCache = new CellCache(CellCache.DEFAULT_MEMORY_BUDGET);
+		modelCache = new CellModelCache();
+		profiler = new CellLoadProfiler();
 
 		terrain = new Node("terrain");
 		objects = new Node("objects");
@@ -52,29 +112,271 @@ public class Map
 		mapNode.attachChild(objects);
 		mapNode.attachChild(physicsObjects);
 
-		// TODO: get proper coordinates!
-		objectsTree = new ObjectsTree(new Vector2f(-100, -100), new Vector2f(100, 100), new Vector2f(10f, 10f));
+		// sized by the map's cells when loaded, grows with inserted objects
+		objectsTree = new ObjectsTree(new Vector2f(OBJECTS_BUCKET_SIZE, OBJECTS_BUCKET_SIZE));
+		objectsTree.setUseQuadTree(true);
     }
 
     protected void addCell(Cell cell)
     {
-		//cellTree.insert(rect, cell);
+		cell.index = cells.size();
 		cells.add(cell);
+		cellGrid = null;
     }
 
 	protected HashSet<Cell> find(Area area)
 	{
-		HashSet<Cell> cells = new HashSet<>();
+		return find(area, new HashSet<Cell>());
+	}
 
-		for (Cell cell: this.cells)
+	/**
+	 * Finds all cells intersecting the passed area and adds them to
+	 * <code>results</code>.
+	 *
+	 * @param area Area to search cells in.
+	 * @param results Collection to add all found cells to.
+	 * @return The <code>results</code> parameter after adding found cells.
+	 */
+	protected <C extends Collection<? super Cell>> C find(Area area, C results)
+	{
+		if (cellIndex != null)
 		{
-			if (cell.getArea().intersectsWith(area))
-			{
-				cells.add(cell);
-			}
+			return cellIndex.find(area, results);
+		}
+		if (cellGrid == null)
+		{
+			cellGrid = new CellGrid(cells);
+		}
+		return cellGrid.find(area, results);
+	}
+
+	/**
+	 * Finds all cells containing the passed point. Their potentially
+	 * visible sets describe what can be seen from this point.
+	 *
+	 * @param pos Point in the x-z-plane.
+	 * @param results Collection to add all found cells to.
+	 * @return The <code>results</code> parameter after adding found cells.
+	 */
+	protected <C extends Collection<? super Cell>> C findViewerCells(Vector2f pos, C results)
+	{
+		return find(new Rect(pos.x, pos.y, pos.x, pos.y), results);
+	}
+
+	/**
+	 * Checks if a cell may be seen from any of the passed viewer cells.
+	 * If the map has no potentially visible sets or the viewer is outside
+	 * all cells, every cell is visible.
+	 *
+	 * @param viewerCells Cells containing the viewer.
+	 * @param cell Tested cell.
+	 * @return false if the cell is hidden from the viewer.
+	 */
+	protected boolean isPotentiallyVisible(Collection<Cell> viewerCells, Cell cell)
+	{
+		if (visibility == null || viewerCells.isEmpty()) return true;
+
+		for (Cell viewerCell: viewerCells)
+		{
+			if (visibility.isVisible(viewerCell, cell)) return true;
+		}
+		return false;
+	}
+
+	public CellVisibility getVisibility()
+	{
+		return visibility;
+	}
+
+	/**
+	 * Loads a cell synchronously and registers it in the {@link #cellCache}.
+	 * @param cell Cell to load.
+	 * @return true if the cell is loaded.
+	 */
+	protected boolean loadCell(Cell cell)
+	{
+		if (cell.isLoaded()) return true;
+
+		if (cell.isPending()) return false;
+
+		CellLoadProfiler.Context previous = enterProfiler(cell);
+		try
+		{
+			cell.prepare(assetManager, modelCache, shapeCache, shapeBuilder);
+			integrateCell(cell);
+		}
+		finally
+		{
+			CellLoadProfiler.exit(previous);
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the cell's model and builds its collision shape. Intended to be
+	 * called from a worker thread, so the shape is built right away.
+	 * {@link #integrateCell(Cell)} must be called on the render thread
+	 * afterwards.
+	 * @param cell Cell to prepare.
+	 */
+	protected void prepareCell(Cell cell)
+	{
+		CellLoadProfiler.Context previous = enterProfiler(cell);
+		try
+		{
+			cell.prepare(assetManager, modelCache, shapeCache, null);
+		}
+		finally
+		{
+			CellLoadProfiler.exit(previous);
+		}
+	}
+
+	/**
+	 * Finishes loading a cell which was prepared in background. Must be
+	 * called on the render thread.
+	 * @param cell Prepared cell.
+	 */
+	protected void integrateCell(Cell cell)
+	{
+		CellLoadProfiler.Context previous = enterProfiler(cell);
+		try
+		{
+			cell.integrate(objectsTree);
+		}
+		finally
+		{
+			CellLoadProfiler.exit(previous);
+		}
+		cellCache.add(cell);
+		loadedCellCount++;
+	}
+
+	/**
+	 * Lets the {@link #profiler} record the phases measured on the current
+	 * thread for a cell.
+	 * @return The previous context to restore by
+	 * {@link CellLoadProfiler#exit(CellLoadProfiler.Context)}.
+	 */
+	protected CellLoadProfiler.Context enterProfiler(Cell cell)
+	{
+		if (profiler == null) return CellLoadProfiler.getContext();
+
+		return profiler.enter(cell.filename + ":" + cell.nodeName);
+	}
+
+	/**
+	 * Returns the number of cells loaded so far. Cells loaded again after
+	 * being unloaded are counted each time.
+	 * @return Number of integrated cells.
+	 */
+	public long getLoadedCellCount()
+	{
+		return loadedCellCount;
+	}
+
+	/**
+	 * Returns the number of cells currently shown.
+	 * @return Number of visible cells.
+	 */
+	public int getVisibleCellCount()
+	{
+		return visibleCells.size();
+	}
+
+	/**
+	 * Returns an area containing all cells of this map.
+	 * @return Bounds of the cells or null if the map has no cells.
+	 */
+	public Rect getBounds()
+	{
+		if (cellIndex != null)
+		{
+			return cellIndex.size() > 0 ? cellIndex.getBounds() : null;
+		}
+		if (cells.isEmpty()) return null;
+
+		float x1 = Float.POSITIVE_INFINITY, y1 = Float.POSITIVE_INFINITY;
+		float x2 = Float.NEGATIVE_INFINITY, y2 = Float.NEGATIVE_INFINITY;
+		for (Cell cell: cells)
+		{
+			Rect area = cell.getArea();
+			x1 = Math.min(x1, area.getX1());
+			y1 = Math.min(y1, area.getY1());
+			x2 = Math.max(x2, area.getX2());
+			y2 = Math.max(y2, area.getY2());
 		}
+		return new Rect(x1, y1, x2, y2);
+	}
+
+	public CellLoadProfiler getProfiler()
+	{
+		return profiler;
+	}
+
+	/**
+	 * Sets the profiler measuring the phases of loading cells.
+	 * @param profiler Profiler to use or null to not measure loading.
+	 */
+	public void setProfiler(CellLoadProfiler profiler)
+	{
+		this.profiler = profiler;
+	}
+
+	public CollisionShapeCache getShapeCache()
+	{
+		return shapeCache;
+	}
+
+	/**
+	 * Sets the cache used to store terrain collision shapes on disk.
+	 * @param shapeCache Cache of collision shapes or null to always build them.
+	 */
+	public void setShapeCache(CollisionShapeCache shapeCache)
+	{
+		this.shapeCache = shapeCache;
+	}
+
+	public CollisionShapeBuilder getShapeBuilder()
+	{
+		return shapeBuilder;
+	}
 
-		return cells;
+	/**
+	 * Sets the builder used to create terrain collision shapes of cells
+	 * loaded on the render thread in background.
+	 * @param shapeBuilder Builder to use or null to build shapes right away.
+	 */
+	public void setShapeBuilder(CollisionShapeBuilder shapeBuilder)
+	{
+		this.shapeBuilder = shapeBuilder;
+	}
+
+	/**
+	 * Gets the scheduler spreading integration work over several frames.
+	 * @return The scheduler or null if work is done right away.
+	 */
+	public IntegrationScheduler getIntegrationScheduler()
+	{
+		return integrationScheduler;
+	}
+
+	/**
+	 * Gets the cache keeping track of all loaded cells.
+	 * @return The map's cell cache.
+	 */
+	public CellCache getCellCache()
+	{
+		return cellCache;
+	}
+
+	/**
+	 * Gets the cache sharing models between cells.
+	 * @return The map's model cache.
+	 */
+	public CellModelCache getModelCache()
+	{
+		return modelCache;
 	}
 
 	/**
@@ -107,16 +409,67 @@ public class Map
 			}
 
 			map.addCell(cell);
+			map.objectsTree.include(rect);
+		}
+		map.cellGrid = new CellGrid(map.cells);
+		map.visibility = CellVisibility.compute(xmlMap.getCells().getCell(), getPortalTypes(xmlMap));
+
+		return map;
+	}
+
+	/**
+	 * Loads a Map from a cooked file written by
+	 * {@link #cook(MapType, DataOutput)}. The cells are not read but
+	 * looked up in the buffer by a {@link CellIndex} when needed, so the
+	 * buffer should be memory-mapped for large maps.
+	 *
+	 * @param buffer Content of the cooked file positioned after its header.
+	 * @return A map loaded from the cooked file.
+	 */
+	public static Map load(ByteBuffer buffer, AssetManager assetManager)
+	{
+		Map map = new Map(assetManager);
+		map.cellIndex = new CellIndex(buffer);
+		map.visibility = map.cellIndex.getVisibility();
+		if (map.cellIndex.size() > 0)
+		{
+			map.objectsTree.include(map.cellIndex.getBounds());
 		}
 
 		return map;
 	}
 
+	/**
+	 * Writes the cells of a map definition and their potentially visible
+	 * sets in the cooked format read by
+	 * {@link #load(ByteBuffer, AssetManager)}. Does not write the header.
+	 */
+	public static void cook(MapType xmlMap, DataOutput out) throws IOException
+	{
+		CellIndex.write(xmlMap.getCells().getCell(), getPortalTypes(xmlMap), out);
+	}
+
+	protected static List<PortalType> getPortalTypes(MapType xmlMap)
+	{
+		return xmlMap.getPortals() == null ? null : xmlMap.getPortals().getPortal();
+	}
+
 	public Node getObjects()
 	{
 		return objects;
 	}
 
+	/**
+	 * Returns the index of all static objects of the loaded cells and of
+	 * the objects moved by physics, e.g. to find the objects closest to
+	 * the player.
+	 * @return The map's objects tree.
+	 */
+	public ObjectsTree getObjectsTree()
+	{
+		return objectsTree;
+	}
+
 	public Node getTerrain()
 	{
 		return terrain;
@@ -0,0 +1,531 @@
+package caveyard.map;
+
+import caveyard.map.math.Circle;
+import caveyard.map.math.Rect;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.control.AbstractControl;
+import jme3tools.optimize.GeometryBatchFactory;
+import jme3tools.optimize.LodGenerator;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Draws cheap proxies of distant cells in a ring outside the render radius
+ * of the {@link MapLODControl}. Cells are grouped by a square grid with
+ * edge length {@link #groupSize}; a cell belongs to the group containing
+ * the center of its area. The terrain of all cells of a group is merged
+ * into one mesh per material and simplified, so a group costs about one
+ * draw call and a fraction of the memory of its cells.
+ * <p>
+ *     Groups intersecting the circle with {@link #viewDistance} around the
+ *     {@link #player} get a proxy of their cells which are neither visible
+ *     nor inside the render radius of the {@link MapLODControl}, so groups
+ *     crossing the render radius draw the part outside of it. Whenever
+ *     these cells change, the proxy is built again; until then the old
+ *     proxy is shown only if none of its cells became visible. Proxies are
+ *     built on the threads of a {@link CellLoader} if one is set, otherwise
+ *     right away, and are released again when their group leaves the view
+ *     distance.
+ * </p>
+ *
+ * This control can be added to {@link MapNode}s only.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class MapHLODControl extends AbstractControl
+{
+	protected static final Logger LOGGER = Logger.getLogger(MapHLODControl.class.getName());
+
+	/**
+	 * Proportion of triangles removed from the merged terrain of a group.
+	 */
+	protected static final float PROXY_REDUCTION = 0.9f;
+
+	/**
+	 * Position of a group in the grid. Mutable, so a single instance can be
+	 * reused to look up proxies.
+	 */
+	protected static class Group
+	{
+		protected int x, y;
+
+		protected Group(int x, int y)
+		{
+			this.x = x;
+			this.y = y;
+		}
+
+		protected Group set(int x, int y)
+		{
+			this.x = x;
+			this.y = y;
+			return this;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (!(o instanceof Group)) return false;
+			Group other = (Group) o;
+			return x == other.x && y == other.y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * x + y;
+		}
+	}
+
+	/**
+	 * Proxy of a group of cells.
+	 */
+	protected static class Proxy
+	{
+		protected final Group group;
+		/**
+		 * All cells of the group.
+		 */
+		protected final List<Cell> cells;
+		/**
+		 * Cells of {@link #spatial} by their index in {@link #cells}.
+		 */
+		protected final BitSet builtCells;
+		/**
+		 * Cells of the proxy built by {@link #future}.
+		 */
+		protected final BitSet buildingCells;
+
+		protected Future<Spatial> future;
+		/**
+		 * Merged terrain of the {@link #builtCells} or null if not built yet
+		 * or if they have no terrain.
+		 */
+		protected Spatial spatial;
+		protected boolean attached;
+
+		protected Proxy(Group group, List<Cell> cells)
+		{
+			this.group = group;
+			this.cells = cells;
+			this.builtCells = new BitSet(cells.size());
+			this.buildingCells = new BitSet(cells.size());
+		}
+	}
+
+	protected MapNode mapNode;
+	protected Map map;
+
+	/**
+	 * Spatial around which proxies are shown.
+	 */
+	protected Spatial player;
+	/**
+	 * Radius around the {@link #player} in which proxies are shown.
+	 */
+	protected float viewDistance;
+	/**
+	 * Edge length of the squares cells are grouped by.
+	 */
+	protected float groupSize;
+	/**
+	 * Loader to build proxies in background or null.
+	 */
+	protected CellLoader cellLoader;
+
+	/**
+	 * Node all proxies are attached to.
+	 */
+	protected Node proxyNode;
+	/**
+	 * Proxies of all groups within the view distance by their group.
+	 */
+	protected HashMap<Group, Proxy> proxies;
+	/**
+	 * Values of {@link #proxies}, iterated without allocating.
+	 */
+	protected ArrayList<Proxy> proxyList;
+
+	/**
+	 * Reused group to look up {@link #proxies}.
+	 */
+	protected final Group lookupGroup = new Group(0, 0);
+	/**
+	 * Reused circle with {@link #viewDistance} around the player.
+	 */
+	protected final Circle viewCircle = new Circle(0, 0, 0);
+	/**
+	 * Reused circle with the render radius around the player.
+	 */
+	protected final Circle renderCircle = new Circle(0, 0, 0);
+	/**
+	 * Reused set of the cells a proxy should contain.
+	 */
+	protected final BitSet proxyCells = new BitSet();
+
+	public MapHLODControl(Spatial player, float viewDistance, float groupSize)
+	{
+		this.player = player;
+		this.viewDistance = viewDistance;
+		this.groupSize = groupSize;
+
+		this.proxyNode = new Node("proxies");
+		this.proxies = new HashMap<>();
+		this.proxyList = new ArrayList<>();
+	}
+
+	public float getViewDistance()
+	{
+		return viewDistance;
+	}
+
+	/**
+	 * Sets the radius around the player in which proxies are shown. Should
+	 * be larger than the render radius of the {@link MapLODControl}.
+	 * @param viewDistance Radius to show proxies in.
+	 */
+	public void setViewDistance(float viewDistance)
+	{
+		this.viewDistance = viewDistance;
+	}
+
+	public float getGroupSize()
+	{
+		return groupSize;
+	}
+
+	public CellLoader getCellLoader()
+	{
+		return cellLoader;
+	}
+
+	/**
+	 * Sets the loader which threads are used to build proxies.
+	 * @param cellLoader Loader to use or null to build proxies right away.
+	 */
+	public void setCellLoader(CellLoader cellLoader)
+	{
+		this.cellLoader = cellLoader;
+	}
+
+	/**
+	 * Returns the number of proxies currently attached to the scene graph.
+	 * @return Number of shown proxies.
+	 */
+	public int getAttachedProxyCount()
+	{
+		return proxyNode.getQuantity();
+	}
+
+	@Override
+	public void setSpatial(Spatial spatial)
+	{
+		if (spatial instanceof MapNode)
+		{
+			super.setSpatial(spatial);
+			this.mapNode = (MapNode) spatial;
+			this.map = mapNode.getMap();
+
+			mapNode.attachChild(proxyNode);
+		}
+		else if (spatial == null)
+		{
+			proxyNode.removeFromParent();
+			super.setSpatial(null);
+		}
+		else
+		{
+			throw new RuntimeException("MapHLODControl can only handle MapNodes. Got \"" +
+					spatial.getClass().getName() + "\" instead.");
+		}
+	}
+
+	@Override
+	protected void controlUpdate(float tpf)
+	{
+		final Vector3f pos = player.getWorldTranslation();
+		viewCircle.set(pos.x, pos.z, viewDistance);
+		MapLODControl mapLODControl = mapNode.getMapLODControl();
+		renderCircle.set(pos.x, pos.z, mapLODControl != null ? mapLODControl.getRenderRadius() : 0);
+
+		// release proxies of groups which left the view distance
+		for (int i = proxyList.size() - 1; i >= 0; i--)
+		{
+			Proxy proxy = proxyList.get(i);
+			if (!intersectsViewCircle(proxy.group.x, proxy.group.y))
+			{
+				releaseProxy(proxy);
+				proxies.remove(proxy.group);
+				proxyList.set(i, proxyList.get(proxyList.size() - 1));
+				proxyList.remove(proxyList.size() - 1);
+			}
+			else
+			{
+				updateProxy(proxy);
+			}
+		}
+
+		final int x1 = (int) Math.floor((pos.x - viewDistance) / groupSize);
+		final int x2 = (int) Math.floor((pos.x + viewDistance) / groupSize);
+		final int y1 = (int) Math.floor((pos.z - viewDistance) / groupSize);
+		final int y2 = (int) Math.floor((pos.z + viewDistance) / groupSize);
+		for (int y = y1; y <= y2; y++)
+		{
+			for (int x = x1; x <= x2; x++)
+			{
+				if (proxies.containsKey(lookupGroup.set(x, y)) || !intersectsViewCircle(x, y)) continue;
+
+				Proxy proxy = createProxy(x, y);
+				proxies.put(proxy.group, proxy);
+				proxyList.add(proxy);
+				updateProxy(proxy);
+			}
+		}
+	}
+
+	protected boolean intersectsViewCircle(int x, int y)
+	{
+		return viewCircle.intersectsWith(x * groupSize, y * groupSize, (x + 1) * groupSize, (y + 1) * groupSize);
+	}
+
+	/**
+	 * Starts building a proxy again if its cells changed, takes over a
+	 * built proxy and attaches or detaches it.
+	 */
+	protected void updateProxy(Proxy proxy)
+	{
+		// cells drawn by the MapLODControl are left out of the proxy
+		proxyCells.clear();
+		for (int i = 0; i < proxy.cells.size(); i++)
+		{
+			Cell cell = proxy.cells.get(i);
+			boolean rendered = map.visibleCells.contains(cell) ||
+					renderCircle.getR() > 0 && renderCircle.intersectsWith(cell.getArea());
+			if (!rendered)
+			{
+				proxyCells.set(i);
+			}
+		}
+
+		if (proxy.future == null ? !proxyCells.equals(proxy.builtCells) : !proxyCells.equals(proxy.buildingCells))
+		{
+			rebuildProxy(proxy);
+		}
+
+		if (proxy.future != null && proxy.future.isDone())
+		{
+			Spatial built = null;
+			try
+			{
+				built = proxy.future.get();
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				LOGGER.log(Level.WARNING, "Cannot build proxy of cell group.", e);
+			}
+			proxy.future = null;
+
+			detach(proxy);
+			proxy.spatial = built;
+			proxy.builtCells.clear();
+			proxy.builtCells.or(proxy.buildingCells);
+		}
+
+		// the old proxy may be shown while its cells are still left out
+		boolean show = proxy.spatial != null;
+		for (int i = proxy.builtCells.nextSetBit(0); i >= 0 && show; i = proxy.builtCells.nextSetBit(i + 1))
+		{
+			show = proxyCells.get(i);
+		}
+
+		if (show && !proxy.attached)
+		{
+			proxyNode.attachChild(proxy.spatial);
+			proxy.attached = true;
+		}
+		else if (!show)
+		{
+			detach(proxy);
+		}
+	}
+
+	protected void detach(Proxy proxy)
+	{
+		if (proxy.attached)
+		{
+			proxy.spatial.removeFromParent();
+			proxy.attached = false;
+		}
+	}
+
+	protected void releaseProxy(Proxy proxy)
+	{
+		if (proxy.future != null)
+		{
+			proxy.future.cancel(false);
+		}
+		detach(proxy);
+	}
+
+	/**
+	 * Finds the cells of a group. The proxy is built by the first
+	 * {@link #updateProxy(Proxy)}.
+	 */
+	protected Proxy createProxy(int x, int y)
+	{
+		final Rect groupRect = new Rect(x * groupSize, y * groupSize, (x + 1) * groupSize, (y + 1) * groupSize);
+		final ArrayList<Cell> cells = new ArrayList<>();
+		for (Cell cell: map.find(groupRect))
+		{
+			Rect area = cell.getArea();
+			if (getGroup(area.getX1() + area.getX2()) == x && getGroup(area.getY1() + area.getY2()) == y)
+			{
+				cells.add(cell);
+			}
+		}
+		return new Proxy(new Group(x, y), cells);
+	}
+
+	/**
+	 * Starts building a proxy of the cells in {@link #proxyCells}.
+	 */
+	protected void rebuildProxy(Proxy proxy)
+	{
+		if (proxy.future != null)
+		{
+			proxy.future.cancel(false);
+			proxy.future = null;
+		}
+
+		proxy.buildingCells.clear();
+		proxy.buildingCells.or(proxyCells);
+		if (proxyCells.isEmpty())
+		{
+			// nothing to draw, take over right away
+			detach(proxy);
+			proxy.spatial = null;
+			proxy.builtCells.clear();
+			return;
+		}
+
+		final ArrayList<Cell> cells = new ArrayList<>(proxyCells.cardinality());
+		for (int i = proxyCells.nextSetBit(0); i >= 0; i = proxyCells.nextSetBit(i + 1))
+		{
+			cells.add(proxy.cells.get(i));
+		}
+		final String name = "proxy " + proxy.group.x * groupSize + "," + proxy.group.y * groupSize;
+
+		Callable<Spatial> task = new Callable<Spatial>()
+		{
+			@Override
+			public Spatial call() throws Exception
+			{
+				return buildProxy(name, cells);
+			}
+		};
+
+		if (cellLoader != null)
+		{
+			proxy.future = cellLoader.submit(task);
+		}
+		else
+		{
+			FutureTask<Spatial> future = new FutureTask<>(task);
+			future.run();
+			proxy.future = future;
+		}
+	}
+
+	/**
+	 * Merges and simplifies the terrain of the passed cells. Uses only data
+	 * which does not change while cells are loaded, so it can be called
+	 * from a worker thread.
+	 *
+	 * @param name Name of the proxy.
+	 * @param cells Cells to merge.
+	 * @return Node containing one simplified geometry per material or null
+	 * if the cells have no terrain.
+	 */
+	protected Spatial buildProxy(String name, List<Cell> cells)
+	{
+		Node terrain = new Node();
+		ArrayList<CellModelCache.Entry> models = new ArrayList<>(cells.size());
+		try
+		{
+			for (Cell cell: cells)
+			{
+				CellModelCache.Entry model = map.modelCache.acquire(map.assetManager, cell.filename, cell.nodeName,
+						cell.nodeOffset);
+				models.add(model);
+
+				Node cellTerrain = model.createTerrain(cell.pos);
+				if (cellTerrain != null)
+				{
+					terrain.attachChild(cellTerrain);
+				}
+			}
+			terrain.updateGeometricState();
+
+			ArrayList<Geometry> geometries = new ArrayList<>();
+			GeometryBatchFactory.gatherGeoms(terrain, geometries);
+			if (geometries.isEmpty()) return null;
+
+			Node proxy = new Node(name);
+			for (Geometry batch: GeometryBatchFactory.makeBatches(geometries))
+			{
+				Mesh mesh = batch.getMesh();
+				if (mesh.getMode() == Mesh.Mode.Triangles)
+				{
+					new LodGenerator(batch).bakeLods(LodGenerator.TriangleReductionMethod.PROPORTIONAL,
+							PROXY_REDUCTION);
+					// keep only the simplified index buffer
+					VertexBuffer simplified = mesh.getLodLevel(1);
+					mesh.clearBuffer(VertexBuffer.Type.Index);
+					mesh.setBuffer(simplified);
+					mesh.setLodLevels(null);
+				}
+				proxy.attachChild(batch);
+			}
+			return proxy;
+		}
+		finally
+		{
+			for (CellModelCache.Entry model: models)
+			{
+				model.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns the group coordinate of a cell.
+	 * @param centerSum Sum of the cell's minimum and maximum coordinate, twice
+	 *                  its center.
+	 */
+	protected int getGroup(float centerSum)
+	{
+		return (int) Math.floor(centerSum / 2 / groupSize);
+	}
+
+	@Override
+	protected void controlRender(RenderManager rm, ViewPort vp)
+	{
+	}
+}
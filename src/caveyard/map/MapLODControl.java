@@ -8,6 +8,9 @@ import com.jme3.renderer.ViewPort;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.control.AbstractControl;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.logging.Logger;
 
 /**
@@ -19,9 +22,43 @@ import java.util.logging.Logger;
  * be farther away from its position on the last cell update than
  * {@link #reloadDistance}. If the current position is not far away enough,
  * no update is done to the visible cells.
+ * <p>
+ *     Only cells which changed their visibility are attached or detached.
+ *     A cell becomes visible when it intersects the circle with
+ *     {@link #renderRadius} and is hidden again only when it leaves the
+ *     larger circle with {@link #exitRadius}. This prevents cells from
+ *     being shown and hidden repeatedly if the player moves along a
+ *     cell's boundary.
+ * </p>
+ * <p>
+ *     If a {@link CellLoader} is set, cells are loaded in background. Cells
+ *     which are still loading are kept as pending and are not visible until
+ *     they are completely loaded. The first update is always done
+ *     synchronously so the ground below the player exists right away.
+ * </p>
+ * <p>
+ *     Additionally cells can be prefetched: the {@link #player}'s velocity
+ *     is tracked and its position {@link #prefetchTime} seconds ahead is
+ *     extrapolated. All cells in the render radius around this predicted
+ *     position are loaded in background by the {@link CellLoader} but are
+ *     not attached until they enter the real render circle. Prefetching
+ *     requires a cell loader.
+ * </p>
  *
  * <p>
- *     TODO: Implement cell unloading if they are far enough away.
+ *     Visible cells choose the level of detail of their terrain by their
+ *     distance to the player, see {@link #setLodDistances(float...)}.
+ * </p>
+ * <p>
+ *     If the map has {@link CellVisibility potentially visible sets}, only
+ *     cells visible from the cells containing the player are shown and
+ *     only cells visible from the predicted position are prefetched, so
+ *     caverns hidden behind rock are neither attached nor loaded early.
+ *     Cells are updated as soon as the player enters another cell.
+ * </p>
+ * <p>
+ *     After each update the map's {@link CellCache} unloads cells outside
+ *     the exit radius if the loaded cells exceed its memory budget.
  * </p>
  *
  * @author Maximilian Timmerkamp
@@ -57,14 +94,127 @@ public class MapLODControl extends AbstractControl
 	 * {@link #lastUpdatePos} necessary to perform an update on visible cells.
 	 */
 	protected float reloadDistance;
+	/**
+	 * Radius of the circle around the {@link #player} spatial a visible
+	 * cell must leave to be hidden again. Values smaller than
+	 * {@link #renderRadius} are treated as the render radius.
+	 */
+	protected float exitRadius;
+	/**
+	 * If true, the {@link #exitRadius} was set explicitly and is kept when
+	 * the {@link #renderRadius} or {@link #reloadDistance} changes.
+	 */
+	protected boolean customExitRadius;
+
+	/**
+	 * Loader used to load cells in background. If null, cells are loaded
+	 * synchronously on the render thread.
+	 */
+	protected CellLoader cellLoader;
+	/**
+	 * Cells which are requested to be visible but are still loading.
+	 */
+	protected HashSet<Cell> pendingCells;
+	/**
+	 * Reused buffer for the results of cell queries.
+	 */
+	protected ArrayList<Cell> foundCells;
+
+	/**
+	 * Time in seconds the {@link #player}'s position is extrapolated to
+	 * prefetch cells. A value of 0 disables prefetching.
+	 */
+	protected float prefetchTime;
+	/**
+	 * Smoothed velocity of the {@link #player} in the x-z-plane.
+	 */
+	protected Vector2f velocity;
+	/**
+	 * Position of the {@link #player} in the previous frame.
+	 */
+	protected Vector2f lastFramePos;
+	/**
+	 * Predicted position used on the last prefetch.
+	 */
+	protected Vector2f lastPrefetchPos;
+	/**
+	 * Reused predicted position of the {@link #player}.
+	 */
+	protected final Vector2f predictedPos = new Vector2f();
+	/**
+	 * Reused circle of the render range around the predicted position.
+	 */
+	protected final Circle prefetchCircle = new Circle(0, 0, 0);
+	/**
+	 * Reused buffer of the cells containing the predicted position.
+	 */
+	protected HashSet<Cell> predictedViewerCells;
+
+	/**
+	 * Distances from the {@link #player} at which visible cells switch to
+	 * the next lower level of detail. Cells closer than the first distance
+	 * use level 0, the full detail.
+	 */
+	protected float[] lodDistances;
+	/**
+	 * If true, the {@link #lodDistances} were set explicitly and are kept
+	 * when the {@link #renderRadius} changes.
+	 */
+	protected boolean customLodDistances;
+
+	/**
+	 * Default {@link #lodDistances} as fractions of the
+	 * {@link #renderRadius}.
+	 */
+	protected static final float[] DEFAULT_LOD_FRACTIONS = {0.25f, 0.5f, 0.75f};
+
+	/**
+	 * If true, cells hidden from the player by the map's
+	 * {@link CellVisibility} are culled.
+	 */
+	protected boolean occlusionCulling;
+	/**
+	 * If true, the next frame updates the visible cells even if the
+	 * {@link #player} did not move.
+	 */
+	protected boolean forceUpdate;
+	/**
+	 * Cells containing the {@link #player} on the last update.
+	 */
+	protected HashSet<Cell> viewerCells;
+	/**
+	 * Reused buffer to find the cells containing a position.
+	 */
+	protected HashSet<Cell> foundViewerCells;
+
+	/**
+	 * Weight of the current frame's velocity when smoothing the
+	 * {@link #velocity}.
+	 */
+	protected static final float VELOCITY_SMOOTHING = 0.1f;
 
 	public MapLODControl(Spatial player, float renderRadius, float reloadDistance)
 	{
 		this.player = player;
 		this.renderRadius = renderRadius;
 		this.reloadDistance = reloadDistance;
+		this.exitRadius = renderRadius + reloadDistance;
+		this.customExitRadius = false;
 
 		this.mapNode = null;
+		this.pendingCells = new HashSet<>();
+		this.foundCells = new ArrayList<>();
+
+		this.prefetchTime = 0;
+		this.velocity = new Vector2f();
+
+		this.lodDistances = getDefaultLodDistances(renderRadius);
+		this.customLodDistances = false;
+
+		this.occlusionCulling = true;
+		this.viewerCells = new HashSet<>();
+		this.foundViewerCells = new HashSet<>();
+		this.predictedViewerCells = new HashSet<>();
 	}
 
 	/**
@@ -100,11 +250,36 @@ public class MapLODControl extends AbstractControl
 	/**
 	 * Sets the radius around the player spatial in which all cells are loaded
 	 * and made visible. Value is in units of the game's coordinate system.
+	 * The {@link #lodDistances} and the {@link #exitRadius} are scaled to
+	 * the new radius unless they were set by
+	 * {@link #setLodDistances(float...)} and {@link #setExitRadius(float)}.
 	 * @param renderRadius Radius of visible cells.
 	 */
 	public void setRenderRadius(float renderRadius)
 	{
 		this.renderRadius = renderRadius;
+		if (!customExitRadius)
+		{
+			exitRadius = renderRadius + reloadDistance;
+		}
+		if (!customLodDistances)
+		{
+			lodDistances = getDefaultLodDistances(renderRadius);
+		}
+	}
+
+	/**
+	 * Returns the default distances at which cells switch their level of
+	 * detail for a render radius.
+	 */
+	protected static float[] getDefaultLodDistances(float renderRadius)
+	{
+		float[] distances = new float[DEFAULT_LOD_FRACTIONS.length];
+		for (int i = 0; i < distances.length; i++)
+		{
+			distances[i] = DEFAULT_LOD_FRACTIONS[i] * renderRadius;
+		}
+		return distances;
 	}
 
 	/**
@@ -122,11 +297,135 @@ public class MapLODControl extends AbstractControl
 	 * Sets the distance the {@link #player}'s position must differ from the
 	 * position it had on last update. If the distance is shorter, no update
 	 * on cells is performed, otherwise the visible cells are updated.
+	 * The {@link #exitRadius} follows unless it was set by
+	 * {@link #setExitRadius(float)}.
 	 * @param reloadDistance The distance beween two reloads.
 	 */
 	public void setReloadDistance(float reloadDistance)
 	{
 		this.reloadDistance = reloadDistance;
+		if (!customExitRadius)
+		{
+			exitRadius = renderRadius + reloadDistance;
+		}
+	}
+
+	/**
+	 * Gets the radius a visible cell must leave to be hidden.
+	 * @return Radius to hide cells.
+	 */
+	public float getExitRadius()
+	{
+		return exitRadius;
+	}
+
+	/**
+	 * Sets the radius around the player spatial a visible cell must leave
+	 * to be hidden again. Should be greater than the {@link #renderRadius}
+	 * to avoid cells being shown and hidden repeatedly near boundaries.
+	 * Once set, the radius is kept when the {@link #renderRadius} changes.
+	 * @param exitRadius Radius to hide cells.
+	 */
+	public void setExitRadius(float exitRadius)
+	{
+		this.exitRadius = exitRadius;
+		this.customExitRadius = true;
+	}
+
+	/**
+	 * Gets the loader used to load cells in background.
+	 * @return The cell loader or null if cells are loaded synchronously.
+	 */
+	public CellLoader getCellLoader()
+	{
+		return cellLoader;
+	}
+
+	/**
+	 * Sets the loader used to load cells in background. If set to null,
+	 * cells are loaded synchronously on the render thread.
+	 * @param cellLoader Loader to use or null.
+	 */
+	public void setCellLoader(CellLoader cellLoader)
+	{
+		this.cellLoader = cellLoader;
+	}
+
+	/**
+	 * Gets the time in seconds the player's movement is extrapolated
+	 * to prefetch cells.
+	 * @return Prefetch time in seconds.
+	 */
+	public float getPrefetchTime()
+	{
+		return prefetchTime;
+	}
+
+	/**
+	 * Sets the time in seconds the player's movement is extrapolated to
+	 * prefetch cells. Cells around the extrapolated position are loaded
+	 * in background but not made visible. Set to 0 to disable prefetching.
+	 * @param prefetchTime Prefetch time in seconds.
+	 */
+	public void setPrefetchTime(float prefetchTime)
+	{
+		this.prefetchTime = prefetchTime;
+	}
+
+	/**
+	 * Returns the smoothed velocity of the player in the x-z-plane.
+	 * @return Current velocity estimate.
+	 */
+	public Vector2f getVelocity()
+	{
+		return velocity;
+	}
+
+	public float[] getLodDistances()
+	{
+		return lodDistances;
+	}
+
+	/**
+	 * Sets the distances at which visible cells switch to the next lower
+	 * level of detail. The distance is measured between the player and the
+	 * nearest point of a cell's area. The first distance switches from the
+	 * full detail level 0 to level 1 and so on.
+	 * @param lodDistances Ascending distances. Pass none to always use
+	 *                     full detail. Pass null to use distances scaled
+	 *                     to the {@link #renderRadius} again.
+	 */
+	public void setLodDistances(float... lodDistances)
+	{
+		this.customLodDistances = lodDistances != null;
+		this.lodDistances = customLodDistances ? lodDistances : getDefaultLodDistances(renderRadius);
+	}
+
+	public boolean isOcclusionCulling()
+	{
+		return occlusionCulling;
+	}
+
+	/**
+	 * Enables or disables culling cells which are hidden from the player
+	 * according to the map's potentially visible sets. Has no effect on
+	 * maps without them.
+	 * @param occlusionCulling true to cull hidden cells.
+	 */
+	public void setOcclusionCulling(boolean occlusionCulling)
+	{
+		this.occlusionCulling = occlusionCulling;
+		this.forceUpdate = true;
+	}
+
+	/**
+	 * Returns the number of cells which should be visible but are still
+	 * loading in background.
+	 * @return Number of pending cells.
+	 */
+	public int getPendingCellCount()
+	{
+		return pendingCells.size();
 	}
 
 
@@ -159,36 +458,252 @@ public class MapLODControl extends AbstractControl
 	protected void controlUpdate(float tpf)
 	{
 		final Vector2f pos = VecUtil.toXZVector(player.getWorldTranslation());
+		updateVelocity(pos, tpf);
+
+		// Cells finished loading in background need to be shown.
+		boolean cellsFinished = updatePendingCells();
+		// Entering another cell changes the cells which can be seen.
+		boolean viewerCellsChanged = updateViewerCells(pos);
+
 		// Only do an update if we moved since last update.
-		if (lastUpdatePos == null || pos.distance(lastUpdatePos) >= reloadDistance)
+		if (lastUpdatePos == null || pos.distance(lastUpdatePos) >= reloadDistance || cellsFinished ||
+				viewerCellsChanged || forceUpdate)
 		{
+			forceUpdate = false;
 			LOGGER.finer("Updating cells...");
 
-			map.terrain.detachAllChildren();
-			map.visibleCells.clear();
+			final int changed = removeLeftCells(pos) + addEnteredCells(pos);
 
-			final Circle circle = new Circle(pos.x, pos.y, renderRadius);
-			for (Cell cell : map.find(circle))
+			if (changed > 0)
 			{
-				if (!cell.isLoaded())
-					cell.loadCell(map.assetManager, map.objectsTree);
+				LOGGER.fine("Updated cells. Visible cells: " + map.visibleCells.size() +
+						", pending cells: " + pendingCells.size());
+
+				// tell MapTerrainPhysicsControl to do an update
+				mapNode.getMapPhysics().setNeedsUpdate(true);
+			}
+
+			updateLodLevels(pos);
+
+			lastUpdatePos = pos;
+
+			// free memory of cells far away, but keep the prefetched ones
+			map.cellCache.trim(map, pos, Math.max(exitRadius, renderRadius),
+					isPrefetching() && lastPrefetchPos != null ? prefetchCircle : null);
+		}
+
+		prefetchCells(pos);
+	}
 
-				map.visibleCells.add(cell);
+	/**
+	 * Finds the cells containing the player if occlusion culling is used.
+	 * @param pos Current position of the player.
+	 * @return true if the player entered or left a cell since the last call.
+	 */
+	protected boolean updateViewerCells(Vector2f pos)
+	{
+		if (!occlusionCulling || map.getVisibility() == null)
+		{
+			boolean changed = !viewerCells.isEmpty();
+			viewerCells.clear();
+			return changed;
+		}
+
+		foundViewerCells.clear();
+		map.findViewerCells(pos, foundViewerCells);
+		if (foundViewerCells.equals(viewerCells)) return false;
+
+		HashSet<Cell> swap = viewerCells;
+		viewerCells = foundViewerCells;
+		foundViewerCells = swap;
+		return true;
+	}
 
-				// get terrain node
+	/**
+	 * Hides all visible cells which do not intersect the circle with
+	 * {@link #exitRadius} around the player anymore or which are hidden
+	 * from the cells containing the player.
+	 * @param pos Current position of the player.
+	 * @return Number of hidden cells.
+	 */
+	protected int removeLeftCells(Vector2f pos)
+	{
+		final Circle exitCircle = new Circle(pos.x, pos.y, Math.max(exitRadius, renderRadius));
+
+		int removed = 0;
+		for (Iterator<Cell> it = map.visibleCells.iterator(); it.hasNext(); )
+		{
+			Cell cell = it.next();
+			if (!cell.getArea().intersectsWith(exitCircle) || !map.isPotentiallyVisible(viewerCells, cell))
+			{
+				it.remove();
 				if (cell.getTerrainNode() != null)
 				{
-					map.terrain.attachChild(cell.getTerrainNode());
+					map.terrain.detachChild(cell.getTerrainNode());
 				}
+				removed++;
 			}
+		}
+		return removed;
+	}
 
-			LOGGER.fine("Updated cells. Visible cells: " + map.visibleCells.size());
+	/**
+	 * Shows all cells which entered the circle with {@link #renderRadius}
+	 * around the player, are not visible yet and are not hidden from the
+	 * cells containing the player. Cells which are not
+	 * loaded are loaded or, if a {@link #cellLoader} is set, requested
+	 * to be loaded in background.
+	 * @param pos Current position of the player.
+	 * @return Number of cells made visible.
+	 */
+	protected int addEnteredCells(Vector2f pos)
+	{
+		final Circle circle = new Circle(pos.x, pos.y, renderRadius);
 
-			lastUpdatePos = pos;
+		foundCells.clear();
+		map.find(circle, foundCells);
+
+		int added = 0;
+		for (Cell cell : foundCells)
+		{
+			if (map.visibleCells.contains(cell) || !map.isPotentiallyVisible(viewerCells, cell)) continue;
 
-			// tell MapTerrainPhysicsControl to do an update
-			mapNode.getMapPhysics().setNeedsUpdate(true);
+			if (!cell.isLoaded())
+			{
+				if (cellLoader != null && lastUpdatePos != null)
+				{
+					if (!cellLoader.requestLoad(cell, map))
+					{
+						pendingCells.add(cell);
+						continue;
+					}
+				}
+				else
+				{
+					map.loadCell(cell);
+				}
+			}
+
+			map.visibleCells.add(cell);
+
+			// get terrain node
+			if (cell.getTerrainNode() != null)
+			{
+				map.terrain.attachChild(cell.getTerrainNode());
+			}
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Chooses the level of detail of all visible cells by their distance
+	 * to the player.
+	 * @param pos Current position of the player.
+	 */
+	protected void updateLodLevels(Vector2f pos)
+	{
+		for (Cell cell: map.visibleCells)
+		{
+			float distanceSquared = cell.getArea().distanceSquared(pos.x, pos.y);
+
+			int level = 0;
+			while (level < lodDistances.length &&
+					distanceSquared >= lodDistances[level] * lodDistances[level])
+			{
+				level++;
+			}
+			cell.setLodLevel(level);
+		}
+	}
+
+	/**
+	 * Updates the smoothed {@link #velocity} of the player.
+	 * @param pos Current position of the player.
+	 * @param tpf Time since last frame.
+	 */
+	protected void updateVelocity(Vector2f pos, float tpf)
+	{
+		if (lastFramePos != null && tpf > 0)
+		{
+			float vx = (pos.x - lastFramePos.x) / tpf;
+			float vy = (pos.y - lastFramePos.y) / tpf;
+			velocity.x += (vx - velocity.x) * VELOCITY_SMOOTHING;
+			velocity.y += (vy - velocity.y) * VELOCITY_SMOOTHING;
+		}
+		lastFramePos = pos;
+	}
+
+	/**
+	 * Checks if cells are prefetched, which needs a {@link #cellLoader}.
+	 */
+	protected boolean isPrefetching()
+	{
+		return cellLoader != null && prefetchTime > 0;
+	}
+
+	/**
+	 * Requests all cells around the extrapolated position of the player
+	 * which are not hidden from it to be loaded in background. Prefetching
+	 * is done only if the predicted position moved at least
+	 * {@link #reloadDistance} since the last prefetch.
+	 * @param pos Current position of the player.
+	 */
+	protected void prefetchCells(Vector2f pos)
+	{
+		if (!isPrefetching()) return;
+
+		final Vector2f predicted = predictedPos.set(velocity).multLocal(prefetchTime).addLocal(pos);
+		if (lastPrefetchPos != null && predicted.distance(lastPrefetchPos) < reloadDistance) return;
+
+		foundCells.clear();
+		map.find(prefetchCircle.set(predicted.x, predicted.y, renderRadius), foundCells);
+
+		predictedViewerCells.clear();
+		if (occlusionCulling)
+		{
+			map.findViewerCells(predicted, predictedViewerCells);
+		}
+
+		int requested = 0;
+		for (Cell cell : foundCells)
+		{
+			if (!cell.isLoaded() && !cell.isPending() && map.isPotentiallyVisible(predictedViewerCells, cell))
+			{
+				cellLoader.requestLoad(cell, map);
+				requested++;
+			}
+		}
+
+		if (requested > 0)
+		{
+			LOGGER.finer("Prefetching " + requested + " cells around " + predicted);
+		}
+		if (lastPrefetchPos == null)
+		{
+			lastPrefetchPos = new Vector2f();
+		}
+		lastPrefetchPos.set(predicted);
+	}
+
+	/**
+	 * Removes all cells from {@link #pendingCells} which are not loading
+	 * anymore.
+	 * @return true if at least one pending cell finished loading.
+	 */
+	protected boolean updatePendingCells()
+	{
+		boolean finished = false;
+		for (Iterator<Cell> it = pendingCells.iterator(); it.hasNext(); )
+		{
+			Cell cell = it.next();
+			if (!cell.isPending())
+			{
+				it.remove();
+				finished |= cell.isLoaded();
+			}
 		}
+		return finished;
 	}
 
 	@Override
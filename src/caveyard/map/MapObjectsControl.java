@@ -1,24 +1,90 @@
 package caveyard.map;
 
+import caveyard.map.math.Circle;
+import caveyard.map.math.FrustumArea;
 import caveyard.util.VecUtil;
+import caveyard.util.Visitor;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingVolume;
 import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.PhysicsTickListener;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
 import com.jme3.bullet.collision.shapes.CollisionShape;
+import com.jme3.bullet.collision.shapes.CompoundCollisionShape;
 import com.jme3.bullet.control.RigidBodyControl;
 import com.jme3.bullet.util.CollisionShapeFactory;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
 import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.control.AbstractControl;
+import com.jme3.scene.instancing.InstancedNode;
+import jme3tools.optimize.GeometryBatchFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This control updates the physics space if there are new physical objects
  * near the player and handles adding objects to the scene to display them.
+ * <p>
+ *     If a {@link CollisionShapeBuilder} is set, the collision shapes of
+ *     physical objects are built in background. Until a shape is ready,
+ *     the object is shown without collision or, if
+ *     {@link #useProxyShapes} is set, with a box shape around its bounds.
+ * </p>
+ * <p>
+ *     How static objects are drawn depends on the {@link RenderMode}. By
+ *     default the geometries of each bucket of the map's
+ *     {@link ObjectsTree} in render range are merged by material, see
+ *     {@link ObjectsCell#getBatch()}. A bucket's batch is kept while the
+ *     bucket stays in range and rebuilt only if objects were added to or
+ *     removed from it. Alternatively objects can be drawn one by one or by
+ *     hardware instancing.
+ * </p>
+ * <p>
+ *     The physics and render ranges are circles around the target.
+ *     Batches and instances are built for everything in render range. If a
+ *     {@link #setCamera(Camera) camera} is set, batches and objects outside
+ *     of its view frustum are additionally detached, see
+ *     {@link FrustumArea}. Turning the camera only attaches and detaches
+ *     them again; nothing is rebuilt.
+ * </p>
+ * <p>
+ *     If the map has an {@link IntegrationScheduler}, objects entering the
+ *     physics range are put into the physics space by it, so only a few
+ *     physics bodies are created per frame.
+ * </p>
+ * <p>
+ *     Objects in physics range stay in the map's {@link ObjectsTree} as
+ *     dynamic objects. After each physics tick their buckets are updated
+ *     from their physics location by {@link ObjectsTree#relocate}, which
+ *     moves only the objects that left their loose bucket. In
+ *     {@link com.jme3.bullet.BulletAppState.ThreadingType#PARALLEL}
+ *     mode the tick runs on the physics thread, which is only busy while
+ *     the scene is rendered, so it never overlaps with the updates of this
+ *     control.
+ * </p>
+ * <p>
+ *     Updates only change the scene graph, the physics space and the
+ *     {@link ObjectsTree} for objects and buckets entering or leaving a
+ *     range. Queries fill reused buffers, so updates while nothing enters
+ *     or leaves the ranges allocate nothing.
+ * </p>
  *
  * @author Maximilian Timmerkamp
  */
@@ -26,6 +92,36 @@ public class MapObjectsControl extends AbstractControl
 {
 	protected static Logger LOGGER = Logger.getLogger(MapObjectsControl.class.getName());
 
+	/**
+	 * How static objects in render range are drawn.
+	 */
+	public enum RenderMode
+	{
+		/**
+		 * Every object is attached on its own.
+		 */
+		OBJECTS,
+		/**
+		 * Objects of each bucket of the objects tree are merged by
+		 * material, see {@link ObjectsCell#getBatch()}.
+		 */
+		BATCHED,
+		/**
+		 * Geometries sharing mesh and material are drawn by hardware
+		 * instancing using an {@link InstancedNode}.
+		 */
+		INSTANCED
+	}
+
+	/**
+	 * Default mass of physical objects.
+	 */
+	public static final float DEFAULT_OBJECT_MASS = 10;
+	/**
+	 * Key of the user data holding the mass of an object.
+	 */
+	public static final String MASS_USER_DATA = "mass";
+
 	/**
 	 * Spatial to check positions.
 	 */
@@ -43,13 +139,131 @@ public class MapObjectsControl extends AbstractControl
 	 * Position where te last update on the visible cells were done.
 	 */
 	protected Vector2f lastUpdatePos;
+	/**
+	 * Reused position of the target in the x-z-plane.
+	 */
+	protected final Vector2f targetPos = new Vector2f();
 	protected float updateDistance;
 
 	protected float physicsRadius;
 	protected float renderRadius;
+	/**
+	 * Reused circle of the physics range.
+	 */
+	protected final Circle physicsArea = new Circle(0, 0, 0);
+	/**
+	 * Reused circle of the render range.
+	 */
+	protected final Circle renderArea = new Circle(0, 0, 0);
+
+	/**
+	 * Camera which frustum limits the drawn objects or null to draw all
+	 * objects in render range.
+	 */
+	protected Camera camera;
+	/**
+	 * Reused part of the render range seen by the {@link #camera}.
+	 */
+	protected final FrustumArea frustumArea = new FrustumArea();
+	/**
+	 * Location and rotation of the camera at the last frustum culling.
+	 */
+	protected final Vector3f lastCameraLocation = new Vector3f();
+	protected final Quaternion lastCameraRotation = new Quaternion();
+	/**
+	 * Minimum absolute dot product of the camera's rotation and
+	 * {@link #lastCameraRotation} below which objects are culled again;
+	 * corresponds to a turn of about two degrees.
+	 */
+	protected static final float CULL_ROTATION_DOT = 0.99985f;
 
 	protected PhysicsSpace physicsSpace;
-	protected ObjectsCell currentObjects;
+	/**
+	 * Objects in physics range. They are dynamic objects of the objects
+	 * tree and attached to the map's physics objects node.
+	 */
+	protected ArrayList<Spatial> currentObjects;
+	/**
+	 * Makes objects which entered the physics range dynamic.
+	 */
+	protected Visitor<Spatial> enterPhysicsVisitor;
+	/**
+	 * Updates the buckets of the objects in physics range after each
+	 * physics tick.
+	 */
+	protected PhysicsTickListener relocateListener;
+	/**
+	 * Reused physics location of an object, only used by the
+	 * {@link #relocateListener}.
+	 */
+	protected final Vector3f physicsLocation = new Vector3f();
+
+	/**
+	 * Builds collision shapes in background or null to build them right away.
+	 */
+	protected CollisionShapeBuilder shapeBuilder;
+	/**
+	 * Shapes of physical objects which are still built in background.
+	 */
+	protected HashMap<Spatial, Future<CollisionShape>> pendingShapes;
+	/**
+	 * If true, objects which shapes are built in background get a box
+	 * shape around their bounds until their shape is ready.
+	 */
+	protected boolean useProxyShapes;
+	/**
+	 * Mass of physical objects without a {@link #MASS_USER_DATA} user data.
+	 */
+	protected float objectMass;
+	protected RenderMode renderMode;
+	/**
+	 * Buckets of the objects tree which batches are currently drawn.
+	 */
+	protected ArrayList<ObjectsCell> batchedCells;
+	/**
+	 * Reused list collecting the buckets drawn after an update, swapped
+	 * with {@link #batchedCells}.
+	 */
+	protected ArrayList<ObjectsCell> renderedCells;
+	/**
+	 * Reused buffer of buckets found in render range.
+	 */
+	protected ArrayList<ObjectsCell> foundCells;
+	/**
+	 * Reused buffer of objects found in render range.
+	 */
+	protected ArrayList<Spatial> foundObjects;
+	/**
+	 * Reused set of the buckets or objects found by the last query, used
+	 * to find those which left the range.
+	 */
+	protected IdentityHashMap<Object, Boolean> found;
+	/**
+	 * Node drawing all objects in {@link RenderMode#INSTANCED} mode.
+	 */
+	protected InstancedNode instancedNode;
+	/**
+	 * Node drawing copies of geometries which material does not support
+	 * instancing in {@link RenderMode#INSTANCED} mode.
+	 */
+	protected Node nonInstancedNode;
+	/**
+	 * Instances of the geometries of all objects in render range by object.
+	 */
+	protected HashMap<Spatial, ArrayList<Spatial>> instances;
+	/**
+	 * Keys of {@link #instances} to iterate them without an iterator.
+	 */
+	protected ArrayList<Spatial> instancedObjects;
+	/**
+	 * Copies of the objects' materials with instancing enabled.
+	 */
+	protected HashMap<Material, Material> instancingMaterials;
+	/**
+	 * Objects in physics range queued at the map's
+	 * {@link IntegrationScheduler} to be put into the physics space.
+	 */
+	protected HashSet<Spatial> scheduledObjects;
 
 	public MapObjectsControl(Spatial target, float renderRadius, float physicsRadius, float reloadDistance,
 							 PhysicsSpace physicsSpace)
@@ -61,7 +275,50 @@ public class MapObjectsControl extends AbstractControl
 		this.physicsSpace = physicsSpace;
 
 		lastUpdatePos = null;
-		currentObjects = null;
+		currentObjects = new ArrayList<>();
+		enterPhysicsVisitor = new Visitor<Spatial>()
+		{
+			@Override
+			public boolean visit(Spatial object)
+			{
+				if (map.objectsTree.isDynamic(object)) return true;
+
+				map.objectsTree.makeDynamic(object);
+				currentObjects.add(object);
+				addPhysics(object);
+				map.physicsObjects.attachChild(object);
+				return true;
+			}
+		};
+		relocateListener = new PhysicsTickListener()
+		{
+			@Override
+			public void prePhysicsTick(PhysicsSpace space, float tpf)
+			{
+			}
+
+			@Override
+			public void physicsTick(PhysicsSpace space, float tpf)
+			{
+				relocatePhysicsObjects();
+			}
+		};
+		objectMass = DEFAULT_OBJECT_MASS;
+
+		pendingShapes = new HashMap<>();
+		useProxyShapes = false;
+		renderMode = RenderMode.BATCHED;
+		batchedCells = new ArrayList<>();
+		renderedCells = new ArrayList<>();
+		foundCells = new ArrayList<>();
+		foundObjects = new ArrayList<>();
+		found = new IdentityHashMap<>();
+		instancedNode = new InstancedNode("instancedObjects");
+		nonInstancedNode = new Node("nonInstancedObjects");
+		instances = new HashMap<>();
+		instancedObjects = new ArrayList<>();
+		instancingMaterials = new HashMap<>();
+		scheduledObjects = new HashSet<>();
 	}
 
 	public float getUpdateDistance()
@@ -94,6 +351,116 @@ public class MapObjectsControl extends AbstractControl
 		this.renderRadius = renderRadius;
 	}
 
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	/**
+	 * Sets a camera which view frustum limits the drawn objects. Objects
+	 * and batches behind the camera are detached but kept, so they are
+	 * attached again without rebuilding them when the camera turns.
+	 * Instanced objects are left to the renderer's culling.
+	 * @param camera Camera to use or null to draw all objects in render
+	 * range.
+	 */
+	public void setCamera(Camera camera)
+	{
+		this.camera = camera;
+		lastUpdatePos = null;
+	}
+
+	public CollisionShapeBuilder getShapeBuilder()
+	{
+		return shapeBuilder;
+	}
+
+	/**
+	 * Sets the builder used to create collision shapes of physical objects
+	 * in background.
+	 * @param shapeBuilder Builder to use or null to build shapes right away.
+	 */
+	public void setShapeBuilder(CollisionShapeBuilder shapeBuilder)
+	{
+		this.shapeBuilder = shapeBuilder;
+	}
+
+	public float getObjectMass()
+	{
+		return objectMass;
+	}
+
+	/**
+	 * Sets the mass given to physical objects which do not define their
+	 * own mass by a {@link #MASS_USER_DATA} user data. Takes effect for
+	 * objects which physics controls are created afterwards.
+	 * @param objectMass Mass of objects.
+	 */
+	public void setObjectMass(float objectMass)
+	{
+		this.objectMass = objectMass;
+	}
+
+	/**
+	 * Returns the mass of an object: its {@link #MASS_USER_DATA} user data
+	 * if set, otherwise the {@link #objectMass}.
+	 * @param object Physical object.
+	 * @return Mass of the object.
+	 */
+	protected float getMass(Spatial object)
+	{
+		Object mass = object.getUserData(MASS_USER_DATA);
+		return mass instanceof Number ? ((Number) mass).floatValue() : objectMass;
+	}
+
+	public boolean isUseProxyShapes()
+	{
+		return useProxyShapes;
+	}
+
+	/**
+	 * Sets if objects get a box shape around their bounds while their real
+	 * collision shape is built in background.
+	 * @param useProxyShapes true to use box shapes, false for no collision.
+	 */
+	public void setUseProxyShapes(boolean useProxyShapes)
+	{
+		this.useProxyShapes = useProxyShapes;
+	}
+
+	public RenderMode getRenderMode()
+	{
+		return renderMode;
+	}
+
+	/**
+	 * Sets how static objects are drawn. Takes effect on the next update.
+	 * @param renderMode Mode to use.
+	 */
+	public void setRenderMode(RenderMode renderMode)
+	{
+		if (this.renderMode == renderMode) return;
+
+		this.renderMode = renderMode;
+
+		for (ObjectsCell cell: batchedCells)
+		{
+			cell.clearBatch();
+		}
+		batchedCells.clear();
+		instancedNode.detachAllChildren();
+		instancedNode.instance();
+		nonInstancedNode.detachAllChildren();
+		instances.clear();
+		instancedObjects.clear();
+		if (map != null)
+		{
+			map.objects.detachAllChildren();
+		}
+
+		lastUpdatePos = null;
+	}
+
 	@Override
 	public void setSpatial(Spatial spatial)
 	{
@@ -102,6 +469,19 @@ public class MapObjectsControl extends AbstractControl
 			super.setSpatial(spatial);
 			mapNode = (MapNode) spatial;
 			map = mapNode.getMap();
+			if (physicsSpace != null)
+			{
+				physicsSpace.removeTickListener(relocateListener);
+				physicsSpace.addTickListener(relocateListener);
+			}
+		}
+		else if (spatial == null)
+		{
+			if (physicsSpace != null)
+			{
+				physicsSpace.removeTickListener(relocateListener);
+			}
+			super.setSpatial(null);
 		}
 		else
 		{
@@ -114,88 +494,468 @@ public class MapObjectsControl extends AbstractControl
 	@Override
 	protected void controlUpdate(float tpf)
 	{
-		final Vector2f pos = VecUtil.toXZVector(target.getWorldTranslation());
+		final Vector3f translation = target.getWorldTranslation();
+		final Vector2f pos = targetPos.set(translation.x, translation.z);
+
+		addPendingShapes();
 
 		if (lastUpdatePos == null || pos.distance(lastUpdatePos) >= updateDistance)
 		{
-			map.objects.detachAllChildren();
-
 			updatePhysicsObjects(pos);
 			updateObjects(pos);
+			cullObjects();
 
-			lastUpdatePos = pos;
+			if (lastUpdatePos == null)
+			{
+				lastUpdatePos = new Vector2f();
+			}
+			lastUpdatePos.set(pos);
+		}
+		else if (camera != null && (FastMath.abs(camera.getRotation().dot(lastCameraRotation)) < CULL_ROTATION_DOT ||
+				camera.getLocation().distance(lastCameraLocation) >= updateDistance))
+		{
+			cullObjects();
 		}
 	}
 
+	/**
+	 * Makes objects which left the physics range static again at their
+	 * current position and makes objects which entered the range dynamic.
+	 * @param pos Current position of the target.
+	 */
 	protected void updatePhysicsObjects(Vector2f pos)
 	{
-		if (currentObjects != null)
+		physicsArea.set(pos.x, pos.y, physicsRadius);
+
+		for (int i = currentObjects.size() - 1; i >= 0; i--)
 		{
-			map.objectsTree.insertAndEmpty(currentObjects);
-			if (currentObjects.getObjects().size() > 0)
+			Spatial object = currentObjects.get(i);
+			final Vector3f translation = object.getWorldTranslation();
+			if (physicsArea.contains(translation.x, translation.z)) continue;
+
+			// remove by moving the last object to its place
+			currentObjects.set(i, currentObjects.get(currentObjects.size() - 1));
+			currentObjects.remove(currentObjects.size() - 1);
+
+			RigidBodyControl control = object.getControl(RigidBodyControl.class);
+			if (!scheduledObjects.remove(object) && control != null)
 			{
-				LOGGER.warning("Objects left: " + currentObjects.getObjects().size() + ". Inserting one by one...");
-				for (Spatial object: currentObjects.getObjects())
-				{
-					map.objectsTree.insert(object);
-				}
+				physicsSpace.remove(control);
 			}
+			object.removeFromParent();
+			map.objectsTree.makeStatic(object);
 		}
 
-		Vector2f p1 = pos.add(Vector2f.UNIT_XY.mult(-physicsRadius));
-		Vector2f p2 = pos.add(Vector2f.UNIT_XY.mult(physicsRadius));
-		currentObjects = map.objectsTree.findObjectsAndRemoveToCell(p1, p2);
+		map.objectsTree.visitObjects(physicsArea, enterPhysicsVisitor);
+	}
+
+	/**
+	 * Updates the buckets of all objects in physics range from their
+	 * physics location. Called after each physics tick, see
+	 * {@link #relocateListener}.
+	 */
+	protected void relocatePhysicsObjects()
+	{
+		if (map == null) return;
+
+		for (int i = 0; i < currentObjects.size(); i++)
+		{
+			Spatial object = currentObjects.get(i);
+			RigidBodyControl control = object.getControl(RigidBodyControl.class);
+			if (control == null || control.getPhysicsSpace() == null) continue;
 
-		//LOGGER.finer("number of physics objects: " + currentObjects.getObjects().size());
+			control.getPhysicsLocation(physicsLocation);
+			map.objectsTree.relocate(object, physicsLocation.x, physicsLocation.z);
+		}
+	}
 
-		HashSet<Spatial> remainingObjects = new HashSet<>();
-		for (Iterator<Spatial> it = map.physicsObjects.getChildren().iterator(); it.hasNext(); )
+	/**
+	 * Puts an object which came into physics range into the physics space
+	 * or, if the map has an {@link IntegrationScheduler}, queues it.
+	 * @param object Object in physics range.
+	 */
+	protected void addPhysics(final Spatial object)
+	{
+		IntegrationScheduler scheduler = map.getIntegrationScheduler();
+		if (scheduler == null)
+		{
+			enablePhysics(object);
+		}
+		else if (scheduledObjects.add(object))
 		{
-			Spatial object = it.next();
+			scheduler.submit(VecUtil.toXZVector(object.getWorldTranslation()), new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// the object may have left the physics range meanwhile
+					if (scheduledObjects.remove(object))
+					{
+						enablePhysics(object);
+					}
+				}
+			});
+		}
+	}
 
-			if (!currentObjects.getObjects().contains(object))
+	/**
+	 * Creates the physics control of an object if necessary and adds it to
+	 * the physics space.
+	 * @param object Object in physics range.
+	 */
+	protected void enablePhysics(Spatial object)
+	{
+		RigidBodyControl control = object.getControl(RigidBodyControl.class);
+		if (control == null)
+		{
+			if (shapeBuilder == null)
+			{
+				CollisionShape shape = CollisionShapeFactory.createDynamicMeshShape(object);
+				control = new RigidBodyControl(shape, getMass(object));
+				object.addControl(control);
+			}
+			else
 			{
-				RigidBodyControl control = object.getControl(RigidBodyControl.class);
-				if (control != null)
+				if (!pendingShapes.containsKey(object))
 				{
-					physicsSpace.remove(control);
+					pendingShapes.put(object, shapeBuilder.buildDynamicMeshShape(object));
 				}
-				it.remove();
+				if (useProxyShapes)
+				{
+					control = new RigidBodyControl(createProxyShape(object), getMass(object));
+					object.addControl(control);
+				}
+			}
+		}
+		if (control != null)
+		{
+			physicsSpace.add(control);
+		}
+	}
+
+	/**
+	 * Creates physics controls for all objects which collision shapes were
+	 * built in background. Proxy shapes are replaced by the real ones.
+	 * Objects still in physics range are added to the physics space.
+	 */
+	protected void addPendingShapes()
+	{
+		if (pendingShapes.isEmpty()) return;
+
+		for (Iterator<java.util.Map.Entry<Spatial, Future<CollisionShape>>> it = pendingShapes.entrySet().iterator();
+			 it.hasNext(); )
+		{
+			java.util.Map.Entry<Spatial, Future<CollisionShape>> entry = it.next();
+			if (!entry.getValue().isDone()) continue;
+			it.remove();
+
+			Spatial object = entry.getKey();
+			CollisionShape shape;
+			try
+			{
+				shape = entry.getValue().get();
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				LOGGER.log(Level.SEVERE, "Cannot build collision shape of \"" + object.getName() + "\"", e);
+				continue;
+			}
+
+			RigidBodyControl control = object.getControl(RigidBodyControl.class);
+			if (control != null)
+			{
+				// replace proxy shape
+				control.setCollisionShape(shape);
 			}
 			else
 			{
-				remainingObjects.add(object);
+				control = new RigidBodyControl(shape, getMass(object));
+				object.addControl(control);
+				if (object.getParent() == map.physicsObjects && !scheduledObjects.contains(object))
+				{
+					physicsSpace.add(control);
+				}
 			}
 		}
+	}
+
+	/**
+	 * Creates a box shape around the bounds of an object.
+	 * @param object Object to create the shape for.
+	 * @return Cheap collision shape of the object.
+	 */
+	protected CollisionShape createProxyShape(Spatial object)
+	{
+		CompoundCollisionShape shape = new CompoundCollisionShape();
+		BoundingVolume bound = object.getWorldBound();
+		if (bound instanceof BoundingBox)
+		{
+			BoundingBox box = (BoundingBox) bound;
+			Vector3f offset = box.getCenter().subtract(object.getWorldTranslation());
+			shape.addChildShape(new BoxCollisionShape(box.getExtent(null)), offset);
+		}
+		else
+		{
+			shape.addChildShape(new BoxCollisionShape(new Vector3f(0.5f, 0.5f, 0.5f)), Vector3f.ZERO);
+		}
+		return shape;
+	}
+
+	protected void updateObjects(Vector2f pos)
+	{
+		switch (renderMode)
+		{
+			case OBJECTS:
+				updateSingleObjects(pos);
+				break;
+			case BATCHED:
+				updateBatchedObjects(pos);
+				break;
+			case INSTANCED:
+				updateInstancedObjects(pos);
+				break;
+		}
+	}
 
-		for (Spatial object: currentObjects.getObjects())
+	/**
+	 * Attaches the objects and batches in render range which the
+	 * {@link #camera} sees and detaches the others without releasing them.
+	 * Without a camera everything in render range is attached.
+	 */
+	protected void cullObjects()
+	{
+		if (camera != null)
+		{
+			frustumArea.update(camera, renderRadius);
+			lastCameraLocation.set(camera.getLocation());
+			lastCameraRotation.set(camera.getRotation());
+		}
+
+		switch (renderMode)
+		{
+			case OBJECTS:
+				for (int i = 0; i < foundObjects.size(); i++)
+				{
+					Spatial object = foundObjects.get(i);
+					final Vector3f translation = object.getWorldTranslation();
+					setAttached(object, camera == null || frustumArea.contains(translation.x, translation.z));
+				}
+				break;
+			case BATCHED:
+				for (int i = 0; i < batchedCells.size(); i++)
+				{
+					ObjectsCell cell = batchedCells.get(i);
+					setAttached(cell.getBatch(), camera == null || ObjectsTree.intersects(frustumArea, cell, 0));
+				}
+				break;
+			case INSTANCED:
+				// instances share one node, which the renderer culls
+				break;
+		}
+	}
+
+	/**
+	 * Attaches a spatial to or detaches it from the map's objects node.
+	 */
+	protected void setAttached(Spatial spatial, boolean attached)
+	{
+		if (attached && spatial.getParent() != map.objects)
+		{
+			map.objects.attachChild(spatial);
+		}
+		else if (!attached && spatial.getParent() == map.objects)
 		{
-			if (!remainingObjects.contains(object))
+			spatial.removeFromParent();
+		}
+	}
+
+	/**
+	 * Detaches objects which left the render range. Objects in range are
+	 * attached by {@link #cullObjects()}.
+	 * @param pos Current position of the target.
+	 */
+	protected void updateSingleObjects(Vector2f pos)
+	{
+		findObjectsInRange(pos);
+
+		for (int i = map.objects.getQuantity() - 1; i >= 0; i--)
+		{
+			if (!found.containsKey(map.objects.getChild(i)))
+			{
+				map.objects.detachChildAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Collects the buckets of the objects tree in render range. Batches of
+	 * buckets which left the range are released. Batches in range are
+	 * built and attached by {@link #cullObjects()}.
+	 * @param pos Current position of the target.
+	 */
+	protected void updateBatchedObjects(Vector2f pos)
+	{
+		foundCells.clear();
+		found.clear();
+		map.objectsTree.find(renderArea.set(pos.x, pos.y, renderRadius), foundCells);
+
+		for (int i = 0; i < foundCells.size(); i++)
+		{
+			ObjectsCell cell = foundCells.get(i);
+			if (cell.getObjects().isEmpty())
 			{
-				RigidBodyControl control = object.getControl(RigidBodyControl.class);
-				if (control == null)
+				cell.clearBatch();
+				continue;
+			}
+
+			renderedCells.add(cell);
+			found.put(cell, Boolean.TRUE);
+		}
+
+		for (int i = 0; i < batchedCells.size(); i++)
+		{
+			ObjectsCell cell = batchedCells.get(i);
+			if (!found.containsKey(cell))
+			{
+				cell.clearBatch();
+			}
+		}
+
+		ArrayList<ObjectsCell> previous = batchedCells;
+		batchedCells = renderedCells;
+		renderedCells = previous;
+		renderedCells.clear();
+	}
+
+	/**
+	 * Adds instances for all objects which entered the render range and
+	 * removes those of objects which left it. The instance buffers are
+	 * updated only if the set of objects changed.
+	 * @param pos Current position of the target.
+	 */
+	protected void updateInstancedObjects(Vector2f pos)
+	{
+		findObjectsInRange(pos);
+
+		boolean changed = false;
+		for (int i = instancedObjects.size() - 1; i >= 0; i--)
+		{
+			Spatial object = instancedObjects.get(i);
+			if (!found.containsKey(object))
+			{
+				for (Spatial instance: instances.remove(object))
 				{
-					CollisionShape shape = CollisionShapeFactory.createDynamicMeshShape(object);
-					control = new RigidBodyControl(shape, 10);  // TODO: Remove stub; Set real weight
-					object.addControl(control);
+					instance.removeFromParent();
 				}
-				physicsSpace.add(control);
+				instancedObjects.set(i, instancedObjects.get(instancedObjects.size() - 1));
+				instancedObjects.remove(instancedObjects.size() - 1);
+				changed = true;
+			}
+		}
 
-				map.physicsObjects.attachChild(object);
+		for (int i = 0; i < foundObjects.size(); i++)
+		{
+			Spatial object = foundObjects.get(i);
+			if (!instances.containsKey(object))
+			{
+				instances.put(object, createInstances(object));
+				instancedObjects.add(object);
+				changed = true;
 			}
 		}
+
+		if (changed)
+		{
+			instancedNode.instance();
+		}
+		if (instancedNode.getParent() != map.objects)
+		{
+			map.objects.attachChild(instancedNode);
+			map.objects.attachChild(nonInstancedNode);
+		}
 	}
 
-	protected void updateObjects(Vector2f pos)
+	/**
+	 * Fills {@link #foundObjects} and {@link #found} with the static objects
+	 * in render range. Dynamic objects are drawn by the physics objects node.
+	 * @param pos Current position of the target.
+	 */
+	protected void findObjectsInRange(Vector2f pos)
 	{
-		Vector2f p1 = pos.add(Vector2f.UNIT_XY.mult(-renderRadius));
-		Vector2f p2 = pos.add(Vector2f.UNIT_XY.mult(renderRadius));
-		Set<Spatial> objects = map.objectsTree.findObjects(p1, p2);
-		//LOGGER.finer("number of static objects: " + objects.size());
-		for (Spatial object: objects)
+		foundObjects.clear();
+		found.clear();
+		map.objectsTree.findObjects(renderArea.set(pos.x, pos.y, renderRadius), foundObjects);
+		for (int i = foundObjects.size() - 1; i >= 0; i--)
+		{
+			Spatial object = foundObjects.get(i);
+			if (map.objectsTree.isDynamic(object))
+			{
+				foundObjects.set(i, foundObjects.get(foundObjects.size() - 1));
+				foundObjects.remove(foundObjects.size() - 1);
+			}
+			else
+			{
+				found.put(object, Boolean.TRUE);
+			}
+		}
+	}
+
+	/**
+	 * Creates an instance of each geometry of an object and attaches it to
+	 * the {@link #instancedNode}. Geometries which material does not support
+	 * instancing are attached as copies instead.
+	 * @param object Object to create instances for.
+	 * @return All created instances.
+	 */
+	protected ArrayList<Spatial> createInstances(Spatial object)
+	{
+		ArrayList<Geometry> geometries = new ArrayList<>();
+		GeometryBatchFactory.gatherGeoms(object, geometries);
+
+		ArrayList<Spatial> objectInstances = new ArrayList<>(geometries.size());
+		for (Geometry geometry: geometries)
+		{
+			Geometry instance = geometry.clone(false);
+			instance.setLocalTransform(geometry.getWorldTransform());
+
+			Material material = getInstancingMaterial(geometry.getMaterial());
+			if (material != null)
+			{
+				instance.setMaterial(material);
+				instancedNode.attachChild(instance);
+			}
+			else
+			{
+				nonInstancedNode.attachChild(instance);
+			}
+			objectInstances.add(instance);
+		}
+		return objectInstances;
+	}
+
+	/**
+	 * Returns a copy of a material with instancing enabled. Copies are
+	 * shared by all instances, so geometries with the same mesh and
+	 * material are still drawn together.
+	 * @param material Original material.
+	 * @return Instancing material or null if the material does not support
+	 * instancing.
+	 */
+	protected Material getInstancingMaterial(Material material)
+	{
+		if (material == null || material.getMaterialDef().getMaterialParam("UseInstancing") == null)
+		{
+			return null;
+		}
+
+		Material instancingMaterial = instancingMaterials.get(material);
+		if (instancingMaterial == null)
 		{
-			map.objects.attachChild(object);
+			instancingMaterial = material.clone();
+			instancingMaterial.setBoolean("UseInstancing", true);
+			instancingMaterials.put(material, instancingMaterial);
 		}
+		return instancingMaterial;
 	}
 
 	@Override
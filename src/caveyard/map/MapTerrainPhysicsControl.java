@@ -1,6 +1,9 @@
 package caveyard.map;
 
+import caveyard.map.math.Circle;
+import caveyard.util.VecUtil;
 import com.jme3.bullet.PhysicsSpace;
+import com.jme3.math.Vector2f;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
 import com.jme3.scene.Spatial;
@@ -13,6 +16,16 @@ import java.util.Iterator;
  * A control which updates the physics space to contain all
  * necessary Collision shapes of the map's terrain.
  *
+ * If a {@link #target} is set, only the terrain of visible cells near the
+ * target is put into the physics space: a cell is added when it intersects
+ * the circle with {@link #physicsRadius} around the target and removed
+ * when it leaves the larger circle with {@link #exitRadius}. Without a
+ * target the terrain of all visible cells is used. Only cells which
+ * changed are added to or removed from the physics space.
+ *
+ * If the map has an {@link IntegrationScheduler}, terrain bodies are added
+ * to the physics space by it, nearest first and spread over several frames.
+ *
  * This control can be added to {@link MapNode}s only. Otherwise an
  * exception will be thrown.
  *
@@ -37,26 +50,159 @@ public class MapTerrainPhysicsControl extends AbstractControl
 	protected Map map;
 
 	/**
-	 * Cells in the physics space since last update.
+	 * Spatial around which terrain is put into the physics space or null
+	 * to use all visible cells.
+	 */
+	protected Spatial target;
+	/**
+	 * Radius around the {@link #target} in which cells are added to the
+	 * physics space.
+	 */
+	protected float physicsRadius;
+	/**
+	 * Radius around the {@link #target} a cell must leave to be removed
+	 * from the physics space again.
+	 */
+	protected float exitRadius;
+	/**
+	 * Minimum distance the {@link #target} must move to update the cells
+	 * in the physics space.
+	 */
+	protected float updateDistance;
+	/**
+	 * Position of the {@link #target} on the last update.
+	 */
+	protected Vector2f lastUpdatePos;
+
+	/**
+	 * Cells which terrain is in the physics space (or waits to be added).
+	 */
+	protected HashSet<Cell> activeCells;
+	/**
+	 * Visible cells which terrain shape is still built in background. They
+	 * are added to the physics space as soon as their shape is ready.
+	 */
+	protected HashSet<Cell> waitingCells;
+	/**
+	 * Cells which terrain body is queued at the map's
+	 * {@link IntegrationScheduler} to be added to the physics space.
 	 */
-	protected HashSet<Cell> oldVisibleCells;
+	protected HashSet<Cell> scheduledCells;
 	/**
 	 * Determines if an update of the physics space is performed on
 	 * the next {@link #controlUpdate(float)} call.
 	 */
 	protected boolean needsUpdate;
 
+	/**
+	 * Creates a control which puts the terrain of all visible cells into
+	 * the physics space.
+	 *
+	 * @param physicsSpace Physics space of the map.
+	 */
 	public MapTerrainPhysicsControl(PhysicsSpace physicsSpace)
+	{
+		this(physicsSpace, null, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Creates a control which puts the terrain of visible cells near
+	 * <code>target</code> into the physics space. The exit radius is set
+	 * to <code>physicsRadius + 2</code>, the update distance to 1.
+	 *
+	 * @param physicsSpace Physics space of the map.
+	 * @param target Spatial around which terrain is needed or null for all visible cells.
+	 * @param physicsRadius Radius around the target in which terrain is added.
+	 */
+	public MapTerrainPhysicsControl(PhysicsSpace physicsSpace, Spatial target, float physicsRadius)
 	{
 		this.physicsSpace = physicsSpace;
+		this.target = target;
+		this.physicsRadius = physicsRadius;
+		this.exitRadius = physicsRadius + 2;
+		this.updateDistance = 1;
 
-		this.oldVisibleCells = new HashSet<>();
+		this.activeCells = new HashSet<>();
+		this.waitingCells = new HashSet<>();
+		this.scheduledCells = new HashSet<>();
 		this.needsUpdate = true;
 
 		mapNode = null;
 		map = null;
 	}
 
+	public Spatial getTarget()
+	{
+		return target;
+	}
+
+	/**
+	 * Sets the spatial around which terrain is put into the physics space.
+	 * @param target Target spatial or null to use all visible cells.
+	 */
+	public void setTarget(Spatial target)
+	{
+		this.target = target;
+		this.needsUpdate = true;
+	}
+
+	public float getPhysicsRadius()
+	{
+		return physicsRadius;
+	}
+
+	/**
+	 * Sets the radius around the target in which terrain is added to the
+	 * physics space.
+	 * @param physicsRadius Radius to add terrain.
+	 */
+	public void setPhysicsRadius(float physicsRadius)
+	{
+		this.physicsRadius = physicsRadius;
+		this.needsUpdate = true;
+	}
+
+	public float getExitRadius()
+	{
+		return exitRadius;
+	}
+
+	/**
+	 * Sets the radius around the target a cell must leave to be removed
+	 * from the physics space. Values smaller than the physics radius are
+	 * treated as the physics radius.
+	 * @param exitRadius Radius to remove terrain.
+	 */
+	public void setExitRadius(float exitRadius)
+	{
+		this.exitRadius = exitRadius;
+		this.needsUpdate = true;
+	}
+
+	public float getUpdateDistance()
+	{
+		return updateDistance;
+	}
+
+	/**
+	 * Sets the distance the target must move to update the terrain in
+	 * the physics space.
+	 * @param updateDistance Minimum distance between two updates.
+	 */
+	public void setUpdateDistance(float updateDistance)
+	{
+		this.updateDistance = updateDistance;
+	}
+
+	/**
+	 * Returns the number of cells which terrain is in the physics space.
+	 * @return Number of active terrain bodies.
+	 */
+	public int getActiveCellCount()
+	{
+		return activeCells.size() - waitingCells.size() - scheduledCells.size();
+	}
+
 	/**
 	 * Determines if this control updates during the next update call.
 	 * @return Value of the update flag.
@@ -106,38 +252,138 @@ public class MapTerrainPhysicsControl extends AbstractControl
 
 	/**
 	 * Updates the collision information of the physics space to ensure
-	 * correct collision with other objects.
+	 * correct collision with other objects. Only cells which became visible
+	 * or hidden since the last update are added to or removed from the
+	 * physics space. Terrain which collision shape is still built in
+	 * background is added when it is ready.
 	 */
 	@Override
 	protected void controlUpdate(float tpf)
 	{
-		if (!needsUpdate || mapNode == null) return;
+		if (mapNode == null) return;
+
+		addWaitingCells();
+
+		Vector2f pos = null;
+		if (target != null)
+		{
+			pos = VecUtil.toXZVector(target.getWorldTranslation());
+			if (lastUpdatePos == null || pos.distance(lastUpdatePos) >= updateDistance)
+			{
+				needsUpdate = true;
+			}
+		}
+		if (!needsUpdate) return;
 
-		Iterator<Cell> it = oldVisibleCells.iterator();
+		Circle enterCircle = null;
+		Circle exitCircle = null;
+		if (pos != null)
+		{
+			enterCircle = new Circle(pos.x, pos.y, physicsRadius);
+			exitCircle = new Circle(pos.x, pos.y, Math.max(exitRadius, physicsRadius));
+		}
+
+		// remove collision shapes of cells which are hidden or too far away
+		Iterator<Cell> it = activeCells.iterator();
 		while(it.hasNext())
 		{
 			Cell cell = it.next();
-			if (cell.getTerrainControl() != null)
+			if (!map.visibleCells.contains(cell) ||
+					exitCircle != null && !cell.getArea().intersectsWith(exitCircle))
 			{
-				physicsSpace.remove(cell.getTerrainControl());
-			}
+				removeTerrainBody(cell);
 
-			it.remove();
+				waitingCells.remove(cell);
+				it.remove();
+			}
 		}
 
-		// update collision shape
+		// add collision shapes of visible cells which came close enough
 		for (Cell cell: map.visibleCells)
 		{
-			oldVisibleCells.add(cell);
+			if (activeCells.contains(cell) ||
+					enterCircle != null && !cell.getArea().intersectsWith(enterCircle))
+			{
+				continue;
+			}
+
+			activeCells.add(cell);
 			if (cell.getTerrainControl() != null)
 			{
-				physicsSpace.add(cell.getTerrainControl());
+				addTerrainBody(cell);
+			}
+			else if (cell.isTerrainShapePending())
+			{
+				waitingCells.add(cell);
 			}
 		}
 
+		lastUpdatePos = pos;
 		needsUpdate = false;
 	}
 
+	/**
+	 * Adds the terrain of all {@link #waitingCells} which shapes are ready
+	 * now to the physics space.
+	 */
+	protected void addWaitingCells()
+	{
+		for (Iterator<Cell> it = waitingCells.iterator(); it.hasNext(); )
+		{
+			Cell cell = it.next();
+			if (!cell.isTerrainShapePending())
+			{
+				if (cell.getTerrainControl() != null)
+				{
+					addTerrainBody(cell);
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Adds the terrain body of a cell to the physics space or, if the map
+	 * has a scheduler, queues it to be added.
+	 * @param cell Active cell which terrain control exists.
+	 */
+	protected void addTerrainBody(final Cell cell)
+	{
+		IntegrationScheduler scheduler = map.getIntegrationScheduler();
+		if (scheduler == null)
+		{
+			physicsSpace.add(cell.getTerrainControl());
+			return;
+		}
+
+		scheduledCells.add(cell);
+		scheduler.submit(cell.getArea(), new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// the cell may have been removed or unloaded meanwhile
+				if (scheduledCells.remove(cell) && cell.getTerrainControl() != null)
+				{
+					physicsSpace.add(cell.getTerrainControl());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Removes the terrain body of a cell from the physics space or cancels
+	 * adding it if it is still queued.
+	 * @param cell Cell which became inactive.
+	 */
+	protected void removeTerrainBody(Cell cell)
+	{
+		if (!scheduledCells.remove(cell) && cell.getTerrainControl() != null)
+		{
+			physicsSpace.remove(cell.getTerrainControl());
+		}
+	}
+
 	@Override
 	protected void controlRender(RenderManager rm, ViewPort vp)
 	{
@@ -0,0 +1,21 @@
+package caveyard.map;
+
+import com.jme3.scene.Spatial;
+
+/**
+ * Selects the objects a query of the {@link ObjectsTree} may return, e.g.
+ * only interactable objects, see {@link UserDataFilter}.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public interface ObjectFilter
+{
+	/**
+	 * Checks if an object may be returned. Called only for objects which
+	 * would be part of the result, so it may be more expensive than a
+	 * distance test.
+	 * @param object Found object.
+	 * @return true to accept the object.
+	 */
+	boolean accept(Spatial object);
+}
@@ -3,24 +3,64 @@ package caveyard.map;
 import caveyard.util.MergeImpossibleException;
 import caveyard.util.Mergeable;
 import com.jme3.math.Vector2f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
 import com.jme3.scene.Spatial;
+import jme3tools.optimize.GeometryBatchFactory;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * A bucket of objects. All geometries of a bucket's objects can be merged
+ * into a batch to draw them with few draw calls, see {@link #getBatch()}.
+ * The batch is cached until objects are added or removed, so all changes
+ * of {@link #objects} must be done by the methods of this class or followed
+ * by {@link #invalidateBatch()}.
+ * <p>
+ *     Objects moved by physics are kept apart in {@link #dynamicObjects}.
+ *     They are not batched and may lie outside of the bucket by the
+ *     looseness of the {@link ObjectsTree}, see
+ *     {@link ObjectsTree#relocate(Spatial, float, float)}.
+ * </p>
+ *
  * @author Maximilian Timmerkamp
  */
 public class ObjectsCell implements Mergeable<ObjectsCell>
 {
+	protected static final Logger LOGGER = Logger.getLogger(ObjectsCell.class.getName());
+
 	HashSet<Spatial> objects;
+	/**
+	 * Objects moved by physics which bucket is this one.
+	 */
+	ArrayList<Spatial> dynamicObjects;
 	Vector2f pos;
 	Vector2f halfSize;
 
+	/**
+	 * Merged geometries of all objects or null if not built yet.
+	 */
+	protected Node batch;
+	/**
+	 * Set if objects changed since the {@link #batch} was built.
+	 */
+	protected boolean batchDirty;
+	/**
+	 * Copy of {@link #objects} to iterate them without creating an iterator
+	 * or null if objects changed since it was made.
+	 */
+	protected Spatial[] objectArray;
+
 	public ObjectsCell(Vector2f pos, Vector2f halfSize)
 	{
 		this.pos = pos;
 		this.halfSize = halfSize;
 		this.objects = new HashSet<>();
+		this.dynamicObjects = new ArrayList<>();
 	}
 
 	public HashSet<Spatial> getObjects()
@@ -31,6 +71,139 @@ public class ObjectsCell implements Mergeable<ObjectsCell>
 	public void setObjects(HashSet<Spatial> objects)
 	{
 		this.objects = objects;
+		batchDirty = true;
+		objectArray = null;
+	}
+
+	/**
+	 * Returns the objects moved by physics which are assigned to this
+	 * bucket. The list must not be modified.
+	 * @return Dynamic objects of this cell.
+	 */
+	public List<Spatial> getDynamicObjects()
+	{
+		return dynamicObjects;
+	}
+
+	/**
+	 * Checks if this cell has neither static nor dynamic objects.
+	 * @return true if the cell is empty.
+	 */
+	public boolean isEmpty()
+	{
+		return objects.isEmpty() && dynamicObjects.isEmpty();
+	}
+
+	public void add(Spatial object)
+	{
+		if (objects.add(object))
+		{
+			batchDirty = true;
+			objectArray = null;
+		}
+	}
+
+	public boolean remove(Spatial object)
+	{
+		if (objects.remove(object))
+		{
+			batchDirty = true;
+			objectArray = null;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Marks the {@link #batch} as outdated. Must be called if
+	 * {@link #objects} was changed directly.
+	 */
+	public void invalidateBatch()
+	{
+		batchDirty = true;
+		objectArray = null;
+	}
+
+	/**
+	 * Returns the objects of this cell as an array. The array is cached
+	 * until objects are added or removed, so iterating it repeatedly
+	 * allocates nothing. It must not be modified.
+	 * @return Objects of this cell.
+	 */
+	public Spatial[] getObjectArray()
+	{
+		if (objectArray == null)
+		{
+			objectArray = objects.toArray(new Spatial[objects.size()]);
+		}
+		return objectArray;
+	}
+
+	/**
+	 * Returns a node containing the geometries of all objects merged by
+	 * material. The node is cached and only rebuilt if objects were added
+	 * or removed since; an outdated batch is detached from its parent. The
+	 * objects themselves are not changed or attached.
+	 * @return Batched objects of this cell.
+	 */
+	public Node getBatch()
+	{
+		if (batch == null || batchDirty)
+		{
+			if (batch != null)
+			{
+				batch.removeFromParent();
+			}
+			batch = buildBatch();
+			batchDirty = false;
+		}
+		return batch;
+	}
+
+	/**
+	 * Releases the cached batch, e.g. if this cell is not drawn anymore.
+	 */
+	public void clearBatch()
+	{
+		if (batch != null)
+		{
+			batch.removeFromParent();
+			batch = null;
+		}
+	}
+
+	protected Node buildBatch()
+	{
+		Node node = new Node("batch " + pos);
+
+		ArrayList<Geometry> geometries = new ArrayList<>();
+		for (Spatial object: objects)
+		{
+			GeometryBatchFactory.gatherGeoms(object, geometries);
+		}
+		if (geometries.isEmpty()) return node;
+
+		try
+		{
+			for (Geometry geometry: GeometryBatchFactory.makeBatches(geometries))
+			{
+				node.attachChild(geometry);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// meshes with incompatible buffers cannot be merged; draw
+			// copies of the objects sharing their meshes instead
+			LOGGER.log(Level.FINE, "Cannot batch objects of " + this + ".", e);
+			node.detachAllChildren();
+			for (Spatial object: objects)
+			{
+				Spatial copy = object.clone(false);
+				copy.setLocalTransform(object.getWorldTransform());
+				node.attachChild(copy);
+			}
+		}
+		return node;
 	}
 
 	public Vector2f getPos()
@@ -1,81 +1,282 @@
 package caveyard.map;
 
+import caveyard.map.math.Area;
+import caveyard.map.math.Rect;
 import caveyard.util.VecUtil;
-import caveyard.util.quadtree.QuadPoint;
-import caveyard.util.quadtree.QuadRange;
-import caveyard.util.quadtree.QuadTree;
+import caveyard.util.Visitor;
+import caveyard.util.quadtree.FloatQuadTree;
 import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
 import com.jme3.scene.Spatial;
 
 import java.util.*;
 import java.util.logging.Logger;
 
 /**
+ * Stores the objects of a map in square buckets ({@link ObjectsCell}s) of
+ * a uniform grid in the x-z-plane. Buckets are created only where objects
+ * are inserted and dropped again when their last object is removed, so
+ * memory is proportional to the objects stored and not to the map's size.
+ * <p>
+ *     The grid is unbounded. Its {@link #getBounds() bounds} start with the
+ *     extents of the map's cells, see {@link #include(Rect)}, and grow when
+ *     objects are inserted outside of them. Queries are clipped to the
+ *     bounds and visit either the buckets covered by the searched area or,
+ *     if there are fewer, all existing buckets.
+ * </p>
+ * <p>
+ *     Alternatively, the buckets can be indexed by a {@link FloatQuadTree}
+ *     over their centers, see {@link #setUseQuadTree(boolean)}. Queries
+ *     then find the same buckets without hashing and without creating
+ *     garbage, independent of how sparse the buckets are.
+ * </p>
+ * <p>
+ *     Besides the queries returning new collections, there are variants
+ *     filling a caller-owned list and variants passing results to a
+ *     {@link Visitor}. Together with the quadtree index they allocate
+ *     nothing, so they can be used on every frame.
+ * </p>
+ * <p>
+ *     Queries take either an axis aligned rectangle or any {@link Area},
+ *     e.g. a {@link caveyard.map.math.Circle} or a
+ *     {@link caveyard.map.math.FrustumArea}. Area queries search the
+ *     area's bounds but skip buckets not intersecting the area itself and
+ *     test each object's position against it.
+ * </p>
+ * <p>
+ *     {@link #findNearest(float, float, int, float, ObjectFilter, List)}
+ *     finds the objects closest to a position. It searches rings of
+ *     buckets around the position and stops as soon as no bucket further
+ *     out can contain a closer object, so its cost depends on the density
+ *     of objects near the position and not on the size of the map.
+ * </p>
+ * <p>
+ *     Objects moved by physics can be marked as dynamic, see
+ *     {@link #makeDynamic(Spatial)}. Each dynamic object keeps a handle to
+ *     its bucket, which is loose: the object stays in it until it moves
+ *     further than {@link #looseness} outside of the bucket, see
+ *     {@link #relocate(Spatial, float, float)}. Only objects crossing this
+ *     loose boundary are moved to another bucket, so keeping the tree up
+ *     to date costs time proportional to the moved objects. Object queries
+ *     search buckets within the looseness around the searched area, so
+ *     dynamic objects are found at their actual position.
+ * </p>
+ *
  * @author Maximilian Timmerkamp
  */
 public class ObjectsTree
 {
 	protected final static Logger LOGGER = Logger.getLogger(ObjectsTree.class.getName());
 
-	protected QuadTree<Float, ObjectsCell> tree;
-
-	protected Vector2f upperLeft;
-	protected Vector2f lowerRight;
+	/**
+	 * Existing buckets by their key, see {@link #toKey(int, int)}.
+	 */
+	protected HashMap<Long, ObjectsCell> buckets;
 
 	protected Vector2f cellSize;
+	protected Vector2f cellHalfSize;
+
+	/**
+	 * Bucket coordinates of the bounds. Empty if minimum is greater than
+	 * maximum.
+	 */
+	protected int minX, minY, maxX, maxY;
+
+	/**
+	 * Buckets by their center or null if buckets are found by their keys.
+	 */
+	protected FloatQuadTree<ObjectsCell> bucketIndex;
+
+	/**
+	 * Reused list of the buckets found by object queries.
+	 */
+	protected ArrayList<ObjectsCell> bucketBuffer;
+	protected boolean bucketBufferInUse;
 
-	protected QuadRange<Float> treeRange;
+	/**
+	 * Bucket of each dynamic object.
+	 */
+	protected IdentityHashMap<Spatial, ObjectsCell> dynamicBuckets;
+	/**
+	 * Distance dynamic objects may move outside of their bucket before
+	 * they are moved to another one.
+	 */
+	protected float looseness;
 
+	/**
+	 * Position of the running nearest-neighbour query.
+	 */
+	protected float nearestX, nearestY;
+	/**
+	 * Candidates of the running nearest-neighbour query, the furthest
+	 * first. Reused by all queries.
+	 */
+	protected PriorityQueue<Spatial> nearestQueue;
+	protected ArrayList<Spatial> nearestBuffer;
 
-	public ObjectsTree(Vector2f upperLeft, Vector2f lowerRight, Vector2f minCellSize)
+	/**
+	 * Creates an empty tree without bounds.
+	 * @param cellSize Size of the buckets.
+	 */
+	public ObjectsTree(Vector2f cellSize)
 	{
-		treeRange = new QuadRange<>(QuadPoint.fromVector2f(upperLeft), QuadPoint.fromVector2f(lowerRight));
-		tree = new QuadTree<>(treeRange, true);
+		this.buckets = new HashMap<>();
+		this.bucketBuffer = new ArrayList<>();
+		this.dynamicBuckets = new IdentityHashMap<>();
+		this.looseness = Math.max(cellSize.x, cellSize.y) / 2;
+		this.nearestBuffer = new ArrayList<>(1);
+		this.nearestQueue = new PriorityQueue<>(16, new Comparator<Spatial>()
+		{
+			@Override
+			public int compare(Spatial a, Spatial b)
+			{
+				return Float.compare(nearestDistanceSquared(b), nearestDistanceSquared(a));
+			}
+		});
+		this.cellSize = cellSize.clone();
+		this.cellHalfSize = cellSize.divide(2);
 
-		this.upperLeft = upperLeft;
-		this.lowerRight = lowerRight;
-		cellSize = minCellSize;
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = Integer.MIN_VALUE;
+	}
 
-		Vector2f size = new Vector2f(lowerRight.getX() - upperLeft.getX(), lowerRight.getY() - upperLeft.getY());
-		Vector2f center = upperLeft.add(size.divide(2));
+	/**
+	 * Creates an empty tree with initial bounds.
+	 * @param upperLeft Minimum corner of the bounds.
+	 * @param lowerRight Maximum corner of the bounds.
+	 * @param cellSize Size of the buckets.
+	 */
+	public ObjectsTree(Vector2f upperLeft, Vector2f lowerRight, Vector2f cellSize)
+	{
+		this(cellSize);
+		include(new Rect(upperLeft, lowerRight));
+	}
 
-		tree.insert(QuadPoint.fromVector2f(center), null);
-		subdivideTree(center, size, minCellSize);
+	/**
+	 * Extends the bounds of this tree to contain the passed area. Used to
+	 * size the tree by the map's cells; no buckets are created.
+	 * @param area Area to include.
+	 */
+	public void include(Rect area)
+	{
+		minX = Math.min(minX, toBucketX(area.getX1()));
+		minY = Math.min(minY, toBucketY(area.getY1()));
+		maxX = Math.max(maxX, toBucketX(area.getX2()));
+		maxY = Math.max(maxY, toBucketY(area.getY2()));
 	}
 
-	private void subdivideTree(Vector2f center, Vector2f size, Vector2f minCellSize)
+	/**
+	 * Returns the area covered by the buckets within the bounds of this
+	 * tree.
+	 * @return Bounds of this tree or null if nothing was included yet.
+	 */
+	public Rect getBounds()
 	{
-		final Vector2f halfSize = size.divide(2.0f);
-		final Vector2f newCellsHalfSize = halfSize.divide(2);
-		boolean subdivideFinished = halfSize.x <= minCellSize.x && halfSize.y <= minCellSize.y;
+		if (minX > maxX || minY > maxY) return null;
 
-		Vector2f center1 = new Vector2f(center.x - halfSize.x/2, center.y - halfSize.y/2);
-		Vector2f center2 = new Vector2f(center1.x + halfSize.x, center1.y);
-		Vector2f center3 = new Vector2f(center2.x, center2.y + halfSize.y);
-		Vector2f center4 = new Vector2f(center3.x - halfSize.x, center3.y);
+		return new Rect(minX * cellSize.x, minY * cellSize.y, (maxX + 1) * cellSize.x, (maxY + 1) * cellSize.y);
+	}
+
+	public boolean isUseQuadTree()
+	{
+		return bucketIndex != null;
+	}
 
-		for (Vector2f centerN: new Vector2f[] {center1, center2, center3, center4})
+	/**
+	 * Sets whether buckets are found by a quadtree over their centers
+	 * instead of their keys. The quadtree is built from the existing
+	 * buckets and rebuilt with larger bounds if buckets are created outside
+	 * of them.
+	 * @param useQuadTree true to index buckets by a quadtree.
+	 */
+	public void setUseQuadTree(boolean useQuadTree)
+	{
+		if (useQuadTree && bucketIndex == null)
 		{
-			QuadPoint<Float> point = new QuadPoint<>(centerN.x, centerN.y);
-			if (subdivideFinished)
-			{
-				ObjectsCell cell = new ObjectsCell(centerN, newCellsHalfSize);
-				tree.insert(point, cell);
-			}
-			else
-			{
-				tree.insert(point, null);
-				subdivideTree(centerN, halfSize, minCellSize);
-			}
+			rebuildBucketIndex();
+		}
+		else if (!useQuadTree)
+		{
+			bucketIndex = null;
+		}
+	}
+
+	/**
+	 * Creates the {@link #bucketIndex} with the bounds of this tree plus a
+	 * margin, so it has to be rebuilt only rarely if the bounds grow.
+	 */
+	protected void rebuildBucketIndex()
+	{
+		Rect bounds = getBounds();
+		if (bounds == null)
+		{
+			bounds = new Rect(0, 0, cellSize.x, cellSize.y);
+		}
+		float marginX = Math.max(bounds.getSizeX(), cellSize.x * 4);
+		float marginY = Math.max(bounds.getSizeY(), cellSize.y * 4);
+		bucketIndex = new FloatQuadTree<>(bounds.getX1() - marginX, bounds.getY1() - marginY,
+				bounds.getX2() + marginX, bounds.getY2() + marginY);
+
+		for (ObjectsCell cell: buckets.values())
+		{
+			bucketIndex.insert(cell.pos.x, cell.pos.y, cell);
 		}
 	}
 
+	/**
+	 * Returns the number of existing buckets.
+	 * @return Number of buckets.
+	 */
+	public int getBucketCount()
+	{
+		return buckets.size();
+	}
+
 	public void insert(Spatial object)
 	{
 		Vector2f pos = VecUtil.toXZVector(object.getWorldTranslation());
 
-		ObjectsCell cell = get(pos);
-		cell.objects.add(object);
+		ObjectsCell cell = getOrCreate(pos);
+		cell.add(object);
+	}
+
+	/**
+	 * Removes an object from the tree. A static object is searched in the
+	 * bucket at its current position, a dynamic one in the bucket it is
+	 * assigned to. The bucket is dropped if it becomes empty.
+	 * @param object Object to remove.
+	 * @return true if the object was found and removed.
+	 */
+	public boolean remove(Spatial object)
+	{
+		ObjectsCell cell = dynamicBuckets.remove(object);
+		if (cell != null)
+		{
+			cell.dynamicObjects.remove(object);
+		}
+		else
+		{
+			final Vector3f pos = object.getWorldTranslation();
+			cell = buckets.get(toKey(toBucketX(pos.x), toBucketY(pos.z)));
+			if (cell == null || !cell.remove(object)) return false;
+		}
+
+		dropIfEmpty(cell);
+		return true;
+	}
+
+	/**
+	 * Checks if an object is stored in this tree. A static object is
+	 * searched in the bucket at its current position.
+	 * @param object Object to search.
+	 * @return true if the object is stored in this tree.
+	 */
+	public boolean contains(Spatial object)
+	{
+		if (dynamicBuckets.containsKey(object)) return true;
+
+		ObjectsCell cell = get(VecUtil.toXZVector(object.getWorldTranslation()));
+		return cell != null && cell.objects.contains(object);
 	}
 
 	/**
@@ -84,158 +285,690 @@ public class ObjectsTree
 	 */
 	public void insertSimple(ObjectsCell cell)
 	{
-		ObjectsCell objectsCell = get(cell.pos);
+		ObjectsCell objectsCell = getOrCreate(cell.pos);
 		objectsCell.objects.addAll(cell.objects);
+		objectsCell.invalidateBatch();
+	}
+
+	public float getLooseness()
+	{
+		return looseness;
+	}
+
+	/**
+	 * Sets the distance dynamic objects may move outside of their bucket
+	 * before they are moved to another one. Larger values move objects
+	 * less often but make queries search more buckets. Takes effect on the
+	 * next relocation of each object.
+	 * @param looseness Distance in world units.
+	 */
+	public void setLooseness(float looseness)
+	{
+		this.looseness = Math.max(0, looseness);
+	}
+
+	/**
+	 * Marks an object as moved by physics. It is taken out of the static
+	 * objects of its bucket, so it is not batched anymore, and is moved
+	 * between buckets by {@link #relocate(Spatial, float, float)}. Objects
+	 * not yet stored in this tree are inserted at their current position.
+	 * @param object Object to mark.
+	 */
+	public void makeDynamic(Spatial object)
+	{
+		if (dynamicBuckets.containsKey(object)) return;
+
+		final Vector3f pos = object.getWorldTranslation();
+		ObjectsCell cell = getOrCreate(pos.x, pos.z);
+		cell.remove(object);
+		cell.dynamicObjects.add(object);
+		dynamicBuckets.put(object, cell);
+	}
+
+	/**
+	 * Marks a dynamic object as static again. It is inserted into the
+	 * bucket at its current position.
+	 * @param object Object to mark.
+	 */
+	public void makeStatic(Spatial object)
+	{
+		ObjectsCell cell = dynamicBuckets.remove(object);
+		if (cell == null) return;
+
+		cell.dynamicObjects.remove(object);
+		final Vector3f pos = object.getWorldTranslation();
+		getOrCreate(pos.x, pos.z).add(object);
+		dropIfEmpty(cell);
+	}
+
+	public boolean isDynamic(Spatial object)
+	{
+		return dynamicBuckets.containsKey(object);
 	}
 
 	/**
-	 * Inserts and empties an ObjectsCell. Beware that the cells size
-	 * ({@link ObjectsCell#halfSize}) must be set correctly, otherwise
-	 * there will be objects left in the <code>insertCell</code>.
-	 * If everything is set correctly, the cell will be empty.
-	 * @param insertCell Cell which objects to insert.
+	 * Returns the number of dynamic objects.
+	 * @return Number of objects marked by {@link #makeDynamic(Spatial)}.
 	 */
-	public void insertAndEmpty(ObjectsCell insertCell)
+	public int getDynamicObjectCount()
 	{
-		Vector2f p1 = insertCell.getPos().subtract(insertCell.getHalfSize());
-		Vector2f p2 = insertCell.getPos().add(insertCell.getHalfSize());
-		final QuadRange<Float> insertRange = pointsToRange(p1, p2);
+		return dynamicBuckets.size();
+	}
 
-		List<ObjectsCell> cells = find(insertRange);
-		for (ObjectsCell cell: cells)
+	/**
+	 * Updates the bucket of a dynamic object after it moved. The object is
+	 * moved to another bucket only if the position is further than the
+	 * {@link #looseness} outside of its current bucket; otherwise nothing
+	 * is done.
+	 * @param object Dynamic object.
+	 * @param x Current x-coordinate of the object.
+	 * @param y Current z-coordinate of the object.
+	 * @return true if the object was moved to another bucket.
+	 */
+	public boolean relocate(Spatial object, float x, float y)
+	{
+		ObjectsCell cell = dynamicBuckets.get(object);
+		if (cell == null) return false;
+
+		if (Math.abs(x - cell.pos.x) <= cell.halfSize.x + looseness &&
+				Math.abs(y - cell.pos.y) <= cell.halfSize.y + looseness)
 		{
-			final QuadRange<Float> range = pointsToRange(cell.getPos().subtract(cell.getHalfSize()),
-					cell.getPos().add(cell.getHalfSize()));
+			return false;
+		}
 
-			for (Iterator<Spatial> it = insertCell.objects.iterator(); it.hasNext();)
-			{
-				Spatial object = it.next();
+		ObjectsCell target = getOrCreate(x, y);
+		cell.dynamicObjects.remove(object);
+		target.dynamicObjects.add(object);
+		dynamicBuckets.put(object, target);
+		dropIfEmpty(cell);
+		return true;
+	}
+
+	/**
+	 * Returns the bucket containing a position.
+	 * @param pos Position in the x-z-plane.
+	 * @return The bucket or null if there are no objects in it.
+	 */
+	public ObjectsCell get(Vector2f pos)
+	{
+		return buckets.get(toKey(toBucketX(pos.x), toBucketY(pos.y)));
+	}
+
+	protected ObjectsCell getOrCreate(Vector2f pos)
+	{
+		return getOrCreate(pos.x, pos.y);
+	}
 
-				final Vector2f pos = VecUtil.toXZVector(object.getWorldTranslation());
-				final QuadPoint<Float> objectPoint = QuadPoint.fromVector2f(pos);
-				if (range.contains(objectPoint))
+	/**
+	 * Returns the bucket containing a position and creates it if necessary.
+	 * The bounds are extended to contain the bucket.
+	 * @param px x-coordinate of the position.
+	 * @param py z-coordinate of the position.
+	 * @return The bucket at the position.
+	 */
+	protected ObjectsCell getOrCreate(float px, float py)
+	{
+		int x = toBucketX(px);
+		int y = toBucketY(py);
+		long key = toKey(x, y);
+
+		ObjectsCell cell = buckets.get(key);
+		if (cell == null)
+		{
+			Vector2f center = new Vector2f((x + 0.5f) * cellSize.x, (y + 0.5f) * cellSize.y);
+			cell = new ObjectsCell(center, cellHalfSize.clone());
+			buckets.put(key, cell);
+
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+
+			if (bucketIndex != null)
+			{
+				if (bucketIndex.contains(center.x, center.y))
+				{
+					bucketIndex.insert(center.x, center.y, cell);
+				}
+				else
 				{
-					it.remove();
-					cell.objects.add(object);
+					rebuildBucketIndex();
 				}
 			}
 		}
+		return cell;
 	}
 
-	public ObjectsCell get(Vector2f pos)
+	/**
+	 * Drops a bucket if it has no objects left.
+	 */
+	protected void dropIfEmpty(ObjectsCell cell)
+	{
+		if (!cell.isEmpty()) return;
+
+		buckets.remove(toKey(toBucketX(cell.pos.x), toBucketY(cell.pos.y)));
+		if (bucketIndex != null)
+		{
+			bucketIndex.remove(cell.pos.x, cell.pos.y, cell);
+		}
+	}
+
+	/**
+	 * Finds all existing buckets intersecting a rectangle.
+	 * @param range Searched rectangle.
+	 * @param results List to add the found buckets to.
+	 * @return The <code>results</code> parameter after adding found buckets.
+	 */
+	protected List<ObjectsCell> find(Rect range, List<ObjectsCell> results)
+	{
+		return find(range.getX1(), range.getY1(), range.getX2(), range.getY2(), results);
+	}
+
+	/**
+	 * Finds all existing buckets intersecting a rectangle and adds them to a
+	 * caller-owned list. If the buckets are indexed by a quadtree, the query
+	 * allocates nothing as long as the list has enough capacity.
+	 * @param x1 Minimum x-coordinate of the searched rectangle.
+	 * @param y1 Minimum z-coordinate of the searched rectangle.
+	 * @param x2 Maximum x-coordinate of the searched rectangle.
+	 * @param y2 Maximum z-coordinate of the searched rectangle.
+	 * @param results List to add the found buckets to.
+	 * @return The <code>results</code> parameter after adding found buckets.
+	 */
+	public List<ObjectsCell> find(float x1, float y1, float x2, float y2, List<ObjectsCell> results)
+	{
+		query(x1, y1, x2, y2, results, null);
+		return results;
+	}
+
+	/**
+	 * Passes all existing buckets intersecting a rectangle to a visitor.
+	 * If the buckets are indexed by a quadtree, the query allocates nothing.
+	 * @param visitor Visitor to pass the found buckets to.
+	 * @return false if the visitor stopped the query.
+	 * @see #find(float, float, float, float, List)
+	 */
+	public boolean visit(float x1, float y1, float x2, float y2, Visitor<? super ObjectsCell> visitor)
+	{
+		return query(x1, y1, x2, y2, null, visitor);
+	}
+
+	/**
+	 * Adds the buckets intersecting a rectangle to a list or passes them to
+	 * a visitor, whichever is set.
+	 * @return false if the visitor stopped the query.
+	 */
+	protected boolean query(float rx1, float ry1, float rx2, float ry2, List<ObjectsCell> results,
+							Visitor<? super ObjectsCell> visitor)
 	{
-		QuadPoint<Float> quadPoint = QuadPoint.fromVector2f(pos);
-		if (treeRange.contains(quadPoint))
+		final int x1 = Math.max(toBucketX(Math.min(rx1, rx2)), minX);
+		final int y1 = Math.max(toBucketY(Math.min(ry1, ry2)), minY);
+		final int x2 = Math.min(toBucketX(Math.max(rx1, rx2)), maxX);
+		final int y2 = Math.min(toBucketY(Math.max(ry1, ry2)), maxY);
+		if (x1 > x2 || y1 > y2) return true;
+
+		if (bucketIndex != null)
+		{
+			// centers are computed like in getOrCreate, so the bounds match exactly
+			final float cx1 = (x1 + 0.5f) * cellSize.x;
+			final float cy1 = (y1 + 0.5f) * cellSize.y;
+			final float cx2 = (x2 + 0.5f) * cellSize.x;
+			final float cy2 = (y2 + 0.5f) * cellSize.y;
+			if (visitor == null)
+			{
+				bucketIndex.find(cx1, cy1, cx2, cy2, results);
+				return true;
+			}
+			return bucketIndex.visit(cx1, cy1, cx2, cy2, visitor);
+		}
+
+		if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > buckets.size())
 		{
-			QuadRange<Float> range = new QuadRange<>(quadPoint, quadPoint);
-			List<ObjectsCell> cells = tree.find(range);
-			if (cells.size() != 1) throw new IndexOutOfBoundsException();
-			return cells.get(0);
+			// fewer buckets exist than are covered by the range
+			for (java.util.Map.Entry<Long, ObjectsCell> entry: buckets.entrySet())
+			{
+				long key = entry.getKey();
+				int x = (int) (key >> 32);
+				int y = (int) key;
+				if (x >= x1 && x <= x2 && y >= y1 && y <= y2 && !accept(entry.getValue(), results, visitor))
+				{
+					return false;
+				}
+			}
 		}
 		else
 		{
-			// TODO: Better exception
-			throw new IndexOutOfBoundsException("Position outside of this tree.");
+			for (int y = y1; y <= y2; y++)
+			{
+				for (int x = x1; x <= x2; x++)
+				{
+					ObjectsCell cell = buckets.get(toKey(x, y));
+					if (cell != null && !accept(cell, results, visitor))
+					{
+						return false;
+					}
+				}
+			}
 		}
+		return true;
 	}
 
-	protected QuadRange<Float> pointsToRange(Vector2f p1, Vector2f p2)
+	/**
+	 * Finds all existing buckets intersecting an area. Buckets within the
+	 * area's bounds are pruned by {@link Area#intersectsWith(float, float, float, float)},
+	 * so e.g. the corners of a circle's bounds are not searched. Allocates
+	 * nothing if the buckets are indexed by a quadtree and the list has
+	 * enough capacity.
+	 * @param area Searched area.
+	 * @param results List to add the found buckets to.
+	 * @return The <code>results</code> parameter after adding found buckets.
+	 */
+	public List<ObjectsCell> find(Area area, List<ObjectsCell> results)
 	{
-		QuadPoint<Float> quadPoint1 = QuadPoint.fromVector2f(p1);
-		QuadPoint<Float> quadPoint2 = QuadPoint.fromVector2f(p2);
-		return new QuadRange<>(quadPoint1, quadPoint2);
+		query(area, results, null);
+		return results;
 	}
 
-	protected List<ObjectsCell> find(QuadRange<Float> range)
+	/**
+	 * Passes all existing buckets intersecting an area to a visitor.
+	 * @param visitor Visitor to pass the found buckets to.
+	 * @return false if the visitor stopped the query.
+	 * @see #find(Area, List)
+	 */
+	public boolean visit(Area area, Visitor<? super ObjectsCell> visitor)
 	{
-		return tree.find(range);
+		return query(area, null, visitor);
+	}
+
+	/**
+	 * Adds the buckets intersecting an area to a list or passes them to a
+	 * visitor, whichever is set.
+	 * @return false if the visitor stopped the query.
+	 */
+	protected boolean query(Area area, List<ObjectsCell> results, Visitor<? super ObjectsCell> visitor)
+	{
+		final Rect bounds = area.getBounds();
+
+		ArrayList<ObjectsCell> cells = acquireBucketBuffer();
+		try
+		{
+			find(bounds.getX1(), bounds.getY1(), bounds.getX2(), bounds.getY2(), cells);
+			for (int i = 0; i < cells.size(); i++)
+			{
+				ObjectsCell cell = cells.get(i);
+				if (intersects(area, cell, 0) && !accept(cell, results, visitor))
+				{
+					return false;
+				}
+			}
+		}
+		finally
+		{
+			releaseBucketBuffer(cells);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if an area intersects a bucket grown by a margin.
+	 */
+	protected static boolean intersects(Area area, ObjectsCell cell, float margin)
+	{
+		final float hx = cell.halfSize.x + margin, hy = cell.halfSize.y + margin;
+		return area.intersectsWith(cell.pos.x - hx, cell.pos.y - hy, cell.pos.x + hx, cell.pos.y + hy);
+	}
+
+	private static boolean accept(ObjectsCell cell, List<ObjectsCell> results, Visitor<? super ObjectsCell> visitor)
+	{
+		if (visitor == null)
+		{
+			results.add(cell);
+			return true;
+		}
+		return visitor.visit(cell);
+	}
+
+	/**
+	 * Returns a list to collect buckets of a query in. The same list is
+	 * returned each time unless queries are nested, e.g. by a visitor
+	 * querying this tree again.
+	 * Must be passed to {@link #releaseBucketBuffer(ArrayList)} afterwards.
+	 */
+	protected ArrayList<ObjectsCell> acquireBucketBuffer()
+	{
+		if (bucketBufferInUse)
+		{
+			return new ArrayList<>();
+		}
+		bucketBufferInUse = true;
+		return bucketBuffer;
+	}
+
+	protected void releaseBucketBuffer(ArrayList<ObjectsCell> buffer)
+	{
+		if (buffer == bucketBuffer)
+		{
+			buffer.clear();
+			bucketBufferInUse = false;
+		}
 	}
 
 	public List<ObjectsCell> find(Vector2f p1, Vector2f p2)
 	{
-		QuadRange<Float> range = pointsToRange(p1, p2);
-		return find(range);
+		return find(p1.x, p1.y, p2.x, p2.y, new ArrayList<ObjectsCell>());
 	}
 
 	public Set<Spatial> findObjects(Vector2f p1, Vector2f p2)
 	{
-		QuadRange<Float> range = pointsToRange(p1, p2);
-		List<ObjectsCell> cells = find(range);
+		HashSet<Spatial> objects = new HashSet<>();
+		findObjects(p1.x, p1.y, p2.x, p2.y, objects);
 
-		Set<Spatial> objects = new HashSet<>();
-		for (ObjectsCell cell: cells)
+		return objects;
+	}
+
+	/**
+	 * Finds all objects within a rectangle and adds them to a caller-owned
+	 * collection. Allocates nothing if the buckets are indexed by a
+	 * quadtree and adding to the collection does not allocate, e.g. an
+	 * {@link ArrayList} with enough capacity.
+	 * @param x1 Minimum x-coordinate of the searched rectangle.
+	 * @param y1 Minimum z-coordinate of the searched rectangle.
+	 * @param x2 Maximum x-coordinate of the searched rectangle.
+	 * @param y2 Maximum z-coordinate of the searched rectangle.
+	 * @param objects Collection to add the found objects to.
+	 * @return The <code>objects</code> parameter after adding found objects.
+	 */
+	public Collection<Spatial> findObjects(float x1, float y1, float x2, float y2, Collection<Spatial> objects)
+	{
+		queryObjects(null, x1, y1, x2, y2, objects, null);
+		return objects;
+	}
+
+	/**
+	 * Passes all objects within a rectangle to a visitor. Allocates nothing
+	 * if the buckets are indexed by a quadtree. The visitor may remove the
+	 * visited object from this tree or change whether it is dynamic.
+	 * @param visitor Visitor to pass the found objects to.
+	 * @return false if the visitor stopped the query.
+	 * @see #findObjects(float, float, float, float, Collection)
+	 */
+	public boolean visitObjects(float x1, float y1, float x2, float y2, Visitor<? super Spatial> visitor)
+	{
+		return queryObjects(null, x1, y1, x2, y2, null, visitor);
+	}
+
+	/**
+	 * Finds all objects which position in the x-z-plane lies within an
+	 * area. Only buckets intersecting the area are searched, so objects in
+	 * the corners of a circle's bounds or behind a camera (see
+	 * {@link caveyard.map.math.FrustumArea}) are never tested.
+	 * @param area Searched area.
+	 * @param objects Collection to add the found objects to.
+	 * @return The <code>objects</code> parameter after adding found objects.
+	 */
+	public Collection<Spatial> findObjects(Area area, Collection<Spatial> objects)
+	{
+		final Rect bounds = area.getBounds();
+		queryObjects(area, bounds.getX1(), bounds.getY1(), bounds.getX2(), bounds.getY2(), objects, null);
+		return objects;
+	}
+
+	/**
+	 * Passes all objects within an area to a visitor. The visitor may
+	 * remove the visited object from this tree or change whether it is
+	 * dynamic.
+	 * @param visitor Visitor to pass the found objects to.
+	 * @return false if the visitor stopped the query.
+	 * @see #findObjects(Area, Collection)
+	 */
+	public boolean visitObjects(Area area, Visitor<? super Spatial> visitor)
+	{
+		final Rect bounds = area.getBounds();
+		return queryObjects(area, bounds.getX1(), bounds.getY1(), bounds.getX2(), bounds.getY2(), null, visitor);
+	}
+
+	/**
+	 * Adds the static and dynamic objects within a rectangle and, if set,
+	 * an area to a collection or passes them to a visitor, whichever is
+	 * set. If there are dynamic objects, buckets within the
+	 * {@link #looseness} around the rectangle are searched as well.
+	 * @param area Area to test buckets and objects against or null to test
+	 * the rectangle only.
+	 * @return false if the visitor stopped the query.
+	 */
+	protected boolean queryObjects(Area area, float x1, float y1, float x2, float y2, Collection<Spatial> objects,
+								   Visitor<? super Spatial> visitor)
+	{
+		final float rx1 = Math.min(x1, x2), ry1 = Math.min(y1, y2);
+		final float rx2 = Math.max(x1, x2), ry2 = Math.max(y1, y2);
+		final float margin = dynamicBuckets.isEmpty() ? 0 : looseness;
+
+		ArrayList<ObjectsCell> cells = acquireBucketBuffer();
+		try
 		{
-			for (Spatial object: cell.objects)
+			find(rx1 - margin, ry1 - margin, rx2 + margin, ry2 + margin, cells);
+			for (int i = 0; i < cells.size(); i++)
 			{
-				QuadPoint<Float> pos = QuadPoint.fromVector2f(VecUtil.toXZVector(object.getWorldTranslation()));
-				if (range.contains(pos))
+				ObjectsCell cell = cells.get(i);
+				if (area != null && !intersects(area, cell, margin)) continue;
+
+				// dynamic objects first and backwards, so the visitor may
+				// remove them or make static objects dynamic
+				for (int j = cell.dynamicObjects.size() - 1; j >= 0; j--)
 				{
-					objects.add(object);
+					if (j >= cell.dynamicObjects.size()) continue;
+
+					Spatial object = cell.dynamicObjects.get(j);
+					if (contains(object, area, rx1, ry1, rx2, ry2) && !accept(object, objects, visitor))
+					{
+						return false;
+					}
+				}
+				for (Spatial object: cell.getObjectArray())
+				{
+					if (contains(object, area, rx1, ry1, rx2, ry2) && !accept(object, objects, visitor))
+					{
+						return false;
+					}
 				}
 			}
 		}
+		finally
+		{
+			releaseBucketBuffer(cells);
+		}
+		return true;
+	}
 
-		return objects;
+	private static boolean accept(Spatial object, Collection<Spatial> objects, Visitor<? super Spatial> visitor)
+	{
+		if (visitor == null)
+		{
+			objects.add(object);
+			return true;
+		}
+		return visitor.visit(object);
 	}
 
 	/**
-	 * Searches the tree for {@link ObjectsCell}s in the given axis aligned x-z-rectangle
-	 * specified py <code>p1</code> and <code>p2</code>.
-	 * Objects which are in the search range are removed from their original ObjectCells
-	 * and added to the <code>objects</code> collection passed.
-	 *
-	 * <p>There are corresponding functions which return {@link List}s or {@link ObjectsCell}s
-	 * filled with the found objects.</p>
-	 *
-	 * @param p1 Upper left point of searched rectangle.
-	 * @param p2 Lower right point of searched rectangle.
-	 * @param objects Collection all results are added to.
-	 * @return The <code>objects</code> parameter after adding found objects.
-	 *
-	 * @see #findObjectsAndRemove(Vector2f, Vector2f)
-	 * @see #findObjectsAndRemoveToCell(Vector2f, Vector2f)
+	 * Checks if an object's position in the x-z-plane lies within a
+	 * rectangle.
 	 */
-	public Collection<Spatial> findObjectsAndRemoveTo(Vector2f p1, Vector2f p2, Collection<Spatial> objects)
+	protected static boolean contains(Spatial object, float x1, float y1, float x2, float y2)
 	{
-		final QuadRange<Float> range = pointsToRange(p1, p2);
-		List<ObjectsCell> cells = find(range);
+		final Vector3f pos = object.getWorldTranslation();
+		return pos.x >= x1 && pos.x <= x2 && pos.z >= y1 && pos.z <= y2;
+	}
 
+	/**
+	 * Checks if an object's position in the x-z-plane lies within a
+	 * rectangle and, if not null, an area.
+	 */
+	protected static boolean contains(Spatial object, Area area, float x1, float y1, float x2, float y2)
+	{
+		if (!contains(object, x1, y1, x2, y2)) return false;
 
-		for (ObjectsCell cell: cells)
+		final Vector3f pos = object.getWorldTranslation();
+		return area == null || area.contains(pos.x, pos.z);
+	}
+
+	/**
+	 * Finds the <code>k</code> objects closest to a position in the
+	 * x-z-plane, optionally only those accepted by a filter. Buckets are
+	 * searched ring by ring around the position; the search stops once
+	 * <code>k</code> objects were found and the next ring is further away
+	 * than all of them, or once it reaches <code>maxDistance</code>.
+	 * Allocates nothing if the buckets are indexed by a quadtree and the
+	 * list has enough capacity. Queries must not be nested, e.g. by a
+	 * filter calling this method.
+	 * @param x x-coordinate of the position.
+	 * @param y z-coordinate of the position.
+	 * @param k Maximum number of objects to find.
+	 * @param maxDistance Maximum distance of found objects or
+	 * {@link Float#POSITIVE_INFINITY} to search the whole tree.
+	 * @param filter Filter selecting the objects to find or null to find
+	 * all objects.
+	 * @param results List to add the found objects to, the closest first.
+	 * @return The <code>results</code> parameter after adding found objects.
+	 */
+	public List<Spatial> findNearest(float x, float y, int k, float maxDistance, ObjectFilter filter,
+									 List<Spatial> results)
+	{
+		if (k <= 0 || buckets.isEmpty()) return results;
+
+		nearestX = x;
+		nearestY = y;
+		nearestQueue.clear();
+
+		final float maxDistanceSquared = maxDistance * maxDistance;
+		final float margin = dynamicBuckets.isEmpty() ? 0 : looseness;
+		final float step = Math.min(cellSize.x, cellSize.y);
+		final int cx = toBucketX(x);
+		final int cy = toBucketY(y);
+		final int rings = Math.max(Math.max(cx - minX, maxX - cx), Math.max(cy - minY, maxY - cy));
+
+		ArrayList<ObjectsCell> cells = acquireBucketBuffer();
+		try
 		{
-			//LOGGER.fine("Filtering from " + cell.objects.size() + " objects...");
-			Iterator<Spatial> it = cell.objects.iterator();
-			while(it.hasNext())
+			for (int ring = 0; ring <= rings; ring++)
 			{
-				Spatial object = it.next();
-				QuadPoint<Float> pos = QuadPoint.fromVector2f(VecUtil.toXZVector(object.getWorldTranslation()));
-				if (range.contains(pos))
+				// objects in this ring are at least this far away
+				final float distance = Math.max(0, (ring - 1) * step - margin);
+				if (distance * distance > maxDistanceSquared) break;
+				if (nearestQueue.size() == k &&
+						distance * distance >= nearestDistanceSquared(nearestQueue.peek()))
+				{
+					break;
+				}
+
+				cells.clear();
+				if (ring == 0)
+				{
+					findBuckets(cx, cy, cx, cy, cells);
+				}
+				else
+				{
+					findBuckets(cx - ring, cy - ring, cx + ring, cy - ring, cells);
+					findBuckets(cx - ring, cy + ring, cx + ring, cy + ring, cells);
+					findBuckets(cx - ring, cy - ring + 1, cx - ring, cy + ring - 1, cells);
+					findBuckets(cx + ring, cy - ring + 1, cx + ring, cy + ring - 1, cells);
+				}
+
+				for (int i = 0; i < cells.size(); i++)
 				{
-					it.remove();
-					objects.add(object);
+					ObjectsCell cell = cells.get(i);
+					for (int j = 0; j < cell.dynamicObjects.size(); j++)
+					{
+						offerNearest(cell.dynamicObjects.get(j), k, maxDistanceSquared, filter);
+					}
+					for (Spatial object: cell.getObjectArray())
+					{
+						offerNearest(object, k, maxDistanceSquared, filter);
+					}
 				}
 			}
 		}
+		finally
+		{
+			releaseBucketBuffer(cells);
+		}
 
-		return objects;
+		// the queue returns the furthest object first
+		final int start = results.size();
+		while (!nearestQueue.isEmpty())
+		{
+			results.add(nearestQueue.poll());
+		}
+		for (int i = start, j = results.size() - 1; i < j; i++, j--)
+		{
+			results.set(j, results.set(i, results.get(j)));
+		}
+		return results;
 	}
 
-	public Set<Spatial> findObjectsAndRemove(Vector2f p1, Vector2f p2)
+	/**
+	 * Finds the object closest to a position in the x-z-plane.
+	 * @param filter Filter selecting the object to find or null to find any
+	 * object.
+	 * @return The closest object or null if there is none within
+	 * <code>maxDistance</code>.
+	 * @see #findNearest(float, float, int, float, ObjectFilter, List)
+	 */
+	public Spatial findNearest(float x, float y, float maxDistance, ObjectFilter filter)
 	{
-		Set<Spatial> objects = new HashSet<>();
-		findObjectsAndRemoveTo(p1, p2, objects);
+		findNearest(x, y, 1, maxDistance, filter, nearestBuffer);
+		Spatial object = nearestBuffer.isEmpty() ? null : nearestBuffer.get(0);
+		nearestBuffer.clear();
+		return object;
+	}
 
-		return objects;
+	/**
+	 * Adds an object to the candidates of the running nearest-neighbour
+	 * query if it is closer than the furthest candidate.
+	 */
+	protected void offerNearest(Spatial object, int k, float maxDistanceSquared, ObjectFilter filter)
+	{
+		final float distance = nearestDistanceSquared(object);
+		if (distance > maxDistanceSquared) return;
+		if (nearestQueue.size() == k && distance >= nearestDistanceSquared(nearestQueue.peek())) return;
+		if (filter != null && !filter.accept(object)) return;
+
+		if (nearestQueue.size() == k)
+		{
+			nearestQueue.poll();
+		}
+		nearestQueue.offer(object);
 	}
 
-	public ObjectsCell findObjectsAndRemoveToCell(Vector2f p1, Vector2f p2)
+	protected float nearestDistanceSquared(Spatial object)
 	{
-		HashSet<Spatial> objects = new HashSet<>();
-		findObjectsAndRemoveTo(p1, p2, objects);
+		final Vector3f pos = object.getWorldTranslation();
+		final float dx = pos.x - nearestX, dy = pos.z - nearestY;
+		return dx * dx + dy * dy;
+	}
 
-		ObjectsCell cell = ObjectsCell.fromRect(p1, p2);
-		cell.setObjects(objects);
+	/**
+	 * Finds the existing buckets in a range of grid coordinates.
+	 */
+	protected void findBuckets(int x1, int y1, int x2, int y2, List<ObjectsCell> results)
+	{
+		// query by bucket centers, so the range maps exactly to the grid
+		query((x1 + 0.5f) * cellSize.x, (y1 + 0.5f) * cellSize.y, (x2 + 0.5f) * cellSize.x,
+				(y2 + 0.5f) * cellSize.y, results, null);
+	}
 
-		return cell;
+	private int toBucketX(float x)
+	{
+		return (int) Math.floor(x / cellSize.x);
+	}
+
+	private int toBucketY(float y)
+	{
+		return (int) Math.floor(y / cellSize.y);
+	}
+
+	protected static long toKey(int x, int y)
+	{
+		return ((long) x << 32) | (y & 0xffffffffL);
 	}
 }
@@ -0,0 +1,55 @@
+package caveyard.map;
+
+import com.jme3.scene.Spatial;
+
+/**
+ * Accepts objects tagged by user data, e.g. with
+ * <code>object.setUserData("interactable", true)</code>.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class UserDataFilter implements ObjectFilter
+{
+	protected String key;
+	/**
+	 * Required value of the user data or null to accept any value.
+	 */
+	protected Object value;
+
+	/**
+	 * Creates a filter accepting objects with any user data under a key.
+	 * @param key Key of the user data.
+	 */
+	public UserDataFilter(String key)
+	{
+		this(key, null);
+	}
+
+	/**
+	 * Creates a filter accepting objects with a user data value.
+	 * @param key Key of the user data.
+	 * @param value Required value or null to accept any value.
+	 */
+	public UserDataFilter(String key, Object value)
+	{
+		this.key = key;
+		this.value = value;
+	}
+
+	public String getKey()
+	{
+		return key;
+	}
+
+	public Object getValue()
+	{
+		return value;
+	}
+
+	@Override
+	public boolean accept(Spatial object)
+	{
+		Object data = object.getUserData(key);
+		return data != null && (value == null || value.equals(data));
+	}
+}
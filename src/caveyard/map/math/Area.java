@@ -6,4 +6,30 @@ package caveyard.map.math;
 public interface Area
 {
 	public boolean intersectsWith(Area area);
+
+	/**
+	 * Checks if this area intersects an axis aligned rectangle. Used to
+	 * prune spatial queries, so it must not allocate; it may err on the
+	 * side of reporting an intersection.
+	 * @param x1 Minimum x-coordinate of the rectangle.
+	 * @param y1 Minimum y-coordinate of the rectangle.
+	 * @param x2 Maximum x-coordinate of the rectangle.
+	 * @param y2 Maximum y-coordinate of the rectangle.
+	 * @return true if this area and the rectangle intersect.
+	 */
+	public boolean intersectsWith(float x1, float y1, float x2, float y2);
+
+	/**
+	 * Checks if a point lies within this area.
+	 * @param x x-coordinate of the point.
+	 * @param y y-coordinate of the point.
+	 * @return true if the point lies within this area.
+	 */
+	public boolean contains(float x, float y);
+
+	/**
+	 * Returns the smallest axis aligned rectangle containing this area.
+	 * @return Bounding rectangle of this area.
+	 */
+	public Rect getBounds();
 }
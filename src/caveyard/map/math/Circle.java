@@ -12,6 +12,12 @@ public class Circle implements Area
 
 	protected float r;
 
+	/**
+	 * Bounds of this circle, created on first use and updated by
+	 * {@link #set(float, float, float)}.
+	 */
+	protected Rect bounds;
+
 	public Circle(float x, float y, float r)
 	{
 		this.x = x;
@@ -19,6 +25,59 @@ public class Circle implements Area
 		this.r = r;
 	}
 
+	/**
+	 * Moves and resizes this circle, so it can be reused for queries
+	 * repeated every frame.
+	 * @return This circle.
+	 */
+	public Circle set(float x, float y, float r)
+	{
+		this.x = x;
+		this.y = y;
+		this.r = r;
+		if (bounds != null)
+		{
+			bounds.set(x - r, y - r, x + r, y + r);
+		}
+		return this;
+	}
+
+	public float getX()
+	{
+		return x;
+	}
+
+	public float getY()
+	{
+		return y;
+	}
+
+	public float getR()
+	{
+		return r;
+	}
+
+	/**
+	 * Returns the bounds of this circle. The rectangle is reused and
+	 * changes when the circle is {@link #set(float, float, float) set}.
+	 * @return Bounding rectangle of this circle.
+	 */
+	@Override
+	public Rect getBounds()
+	{
+		if (bounds == null)
+		{
+			bounds = new Rect(x - r, y - r, x + r, y + r);
+		}
+		return bounds;
+	}
+
+	@Override
+	public boolean contains(float x, float y)
+	{
+		return FastMath.sqr(this.x - x) + FastMath.sqr(this.y - y) <= FastMath.sqr(this.r);
+	}
+
 	@Override
 	public boolean intersectsWith(Area area)
 	{
@@ -26,7 +85,9 @@ public class Circle implements Area
 			return intersectsWith((Rect) area);
 		else if (area instanceof Circle)
 			return this.intersectsWith((Circle) area);
-		throw new RuntimeException("Unknown class: " + area.getClass().getName());
+		// other areas are tested by their bounds
+		Rect bounds = area.getBounds();
+		return intersectsWith(bounds.getX1(), bounds.getY1(), bounds.getX2(), bounds.getY2());
 	}
 
 	public boolean intersectsWith(Circle other)
@@ -36,23 +97,29 @@ public class Circle implements Area
 
 	public boolean intersectsWith(Rect other)
 	{
-		if (other.getX1() <= this.x && this.x <= other.getX2())
+		return intersectsWith(other.getX1(), other.getY1(), other.getX2(), other.getY2());
+	}
+
+	@Override
+	public boolean intersectsWith(float x1, float y1, float x2, float y2)
+	{
+		if (x1 <= this.x && this.x <= x2)
 		{
-			return other.getY1() <= this.y && this.y <= other.getY2() ||
-					FastMath.abs(this.y - other.getY1()) <= this.r || FastMath.abs(this.y - other.getY2()) <= this.r;
+			return y1 <= this.y && this.y <= y2 ||
+					FastMath.abs(this.y - y1) <= this.r || FastMath.abs(this.y - y2) <= this.r;
 		}
-		else if (other.getY1() <= this.y && this.y <= other.getY2())
+		else if (y1 <= this.y && this.y <= y2)
 		{
-			return FastMath.abs(this.x - other.getX1()) <= this.r || FastMath.abs(this.x - other.getX2()) <= this.r;
+			return FastMath.abs(this.x - x1) <= this.r || FastMath.abs(this.x - x2) <= this.r;
 		}
 		else
 		{
 			float dx, dy;
 
-			if (other.getX1() > this.x) dx = other.getX1() - this.x;
-			else dx = other.getX2() - this.x;
-			if (other.getY1() > this.y) dy = other.getY1() - this.y;
-			else dy = other.getY2() - this.y;
+			if (x1 > this.x) dx = x1 - this.x;
+			else dx = x2 - this.x;
+			if (y1 > this.y) dy = y1 - this.y;
+			else dy = y2 - this.y;
 
 			return FastMath.sqr(dx) + FastMath.sqr(dy) <= FastMath.sqr(this.r);
 		}
@@ -0,0 +1,131 @@
+package caveyard.map.math;
+
+import com.jme3.math.Plane;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * Part of the x-z-plane seen by a camera up to a given range. A point is
+ * seen if a vertical segment through it, reaching <code>range</code> above
+ * and below the camera, intersects the camera's view frustum. Tests use the
+ * six world planes of the camera, so objects behind the camera or outside
+ * its field of view are rejected, and a circle of the given range around
+ * the camera.
+ * <p>
+ *     The area is meant to be reused: {@link #update(Camera, float)}
+ *     copies the camera's current planes without allocating.
+ * </p>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class FrustumArea implements Area
+{
+	protected static final int PLANES = 6;
+
+	/**
+	 * Normals and constants of the frustum planes. A point p is inside a
+	 * plane if <code>normal.dot(p) - constant &gt;= 0</code>.
+	 */
+	protected final float[] normalX = new float[PLANES];
+	protected final float[] normalY = new float[PLANES];
+	protected final float[] normalZ = new float[PLANES];
+	protected final float[] constant = new float[PLANES];
+
+	protected float minY;
+	protected float maxY;
+	/**
+	 * Circle of the range around the camera.
+	 */
+	protected final Circle range;
+
+	public FrustumArea()
+	{
+		range = new Circle(0, 0, 0);
+	}
+
+	public FrustumArea(Camera camera, float range)
+	{
+		this();
+		update(camera, range);
+	}
+
+	/**
+	 * Copies the current position and frustum planes of a camera.
+	 * @param camera Camera which frustum to use.
+	 * @param range Distance from the camera to which the area reaches.
+	 * @return This area.
+	 */
+	public FrustumArea update(Camera camera, float range)
+	{
+		for (int i = 0; i < PLANES; i++)
+		{
+			Plane plane = camera.getWorldPlane(i);
+			Vector3f normal = plane.getNormal();
+			normalX[i] = normal.x;
+			normalY[i] = normal.y;
+			normalZ[i] = normal.z;
+			constant[i] = plane.getConstant();
+		}
+
+		Vector3f location = camera.getLocation();
+		this.minY = location.y - range;
+		this.maxY = location.y + range;
+		this.range.set(location.x, location.z, range);
+		return this;
+	}
+
+	public float getRange()
+	{
+		return range.getR();
+	}
+
+	/**
+	 * Returns the bounds of the range around the camera. The rectangle is
+	 * reused and changes on {@link #update(Camera, float)}.
+	 * @return Bounding rectangle of this area.
+	 */
+	@Override
+	public Rect getBounds()
+	{
+		return range.getBounds();
+	}
+
+	@Override
+	public boolean intersectsWith(Area area)
+	{
+		// rectangles are their own bounds, so only they are tested exactly
+		Rect bounds = area.getBounds();
+		return intersectsWith(bounds.getX1(), bounds.getY1(), bounds.getX2(), bounds.getY2());
+	}
+
+	/**
+	 * Checks if the box spanned by the rectangle and the height range of
+	 * this area is not completely outside of any frustum plane. Like
+	 * frustum culling this may report boxes near the frustum's edges which
+	 * do not actually intersect it.
+	 */
+	@Override
+	public boolean intersectsWith(float x1, float y1, float x2, float y2)
+	{
+		if (!range.intersectsWith(x1, y1, x2, y2)) return false;
+
+		for (int i = 0; i < PLANES; i++)
+		{
+			// corner of the box furthest along the normal
+			float x = normalX[i] >= 0 ? x2 : x1;
+			float y = normalY[i] >= 0 ? maxY : minY;
+			float z = normalZ[i] >= 0 ? y2 : y1;
+			if (normalX[i] * x + normalY[i] * y + normalZ[i] * z - constant[i] < 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean contains(float x, float y)
+	{
+		return intersectsWith(x, y, x, y) && range.contains(x, y);
+	}
+}
@@ -0,0 +1,133 @@
+package caveyard.map.math;
+
+import com.jme3.math.Vector2f;
+
+import java.util.List;
+
+/**
+ * Simple polygon given by its corners in order. The polygon does not need
+ * to be convex, but its edges must not cross each other.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class Polygon implements Area
+{
+	protected final float[] xs;
+	protected final float[] ys;
+
+	protected final Rect bounds;
+
+	public Polygon(List<Vector2f> corners)
+	{
+		if (corners.size() < 3)
+		{
+			throw new IllegalArgumentException("A polygon needs at least three corners. Got " + corners.size() + ".");
+		}
+
+		xs = new float[corners.size()];
+		ys = new float[corners.size()];
+		float x1 = Float.POSITIVE_INFINITY, y1 = Float.POSITIVE_INFINITY;
+		float x2 = Float.NEGATIVE_INFINITY, y2 = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < xs.length; i++)
+		{
+			Vector2f corner = corners.get(i);
+			xs[i] = corner.x;
+			ys[i] = corner.y;
+			x1 = Math.min(x1, corner.x);
+			y1 = Math.min(y1, corner.y);
+			x2 = Math.max(x2, corner.x);
+			y2 = Math.max(y2, corner.y);
+		}
+		bounds = new Rect(x1, y1, x2, y2);
+	}
+
+	public int getCornerCount()
+	{
+		return xs.length;
+	}
+
+	@Override
+	public Rect getBounds()
+	{
+		return bounds;
+	}
+
+	@Override
+	public boolean intersectsWith(Area area)
+	{
+		// rectangles are their own bounds, so only they are tested exactly
+		Rect bounds = area.getBounds();
+		return intersectsWith(bounds.getX1(), bounds.getY1(), bounds.getX2(), bounds.getY2());
+	}
+
+	/**
+	 * Checks if an edge crosses the rectangle or, if none does, if the
+	 * rectangle lies completely within this polygon.
+	 */
+	@Override
+	public boolean intersectsWith(float x1, float y1, float x2, float y2)
+	{
+		if (!bounds.intersectsWith(x1, y1, x2, y2)) return false;
+
+		for (int i = 0, j = xs.length - 1; i < xs.length; j = i++)
+		{
+			if (clipsRect(xs[j], ys[j], xs[i], ys[i], x1, y1, x2, y2)) return true;
+		}
+		return contains(x1, y1);
+	}
+
+	/**
+	 * Counts the edges crossed by a ray from the point in positive
+	 * x-direction.
+	 */
+	@Override
+	public boolean contains(float x, float y)
+	{
+		boolean inside = false;
+		for (int i = 0, j = xs.length - 1; i < xs.length; j = i++)
+		{
+			if ((ys[i] > y) != (ys[j] > y) &&
+					x < (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[i])
+			{
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Checks if a segment intersects a rectangle by clipping it against the
+	 * rectangle's sides (Liang-Barsky).
+	 */
+	protected static boolean clipsRect(float ax, float ay, float bx, float by,
+									   float x1, float y1, float x2, float y2)
+	{
+		float dx = bx - ax, dy = by - ay;
+		float t0 = 0, t1 = 1;
+
+		for (int side = 0; side < 4; side++)
+		{
+			float p, q;
+			switch (side)
+			{
+				case 0: p = -dx; q = ax - x1; break;
+				case 1: p = dx; q = x2 - ax; break;
+				case 2: p = -dy; q = ay - y1; break;
+				default: p = dy; q = y2 - ay; break;
+			}
+
+			if (p == 0)
+			{
+				if (q < 0) return false;
+			}
+			else
+			{
+				float t = q / p;
+				if (p < 0) t0 = Math.max(t0, t);
+				else t1 = Math.min(t1, t);
+				if (t0 > t1) return false;
+			}
+		}
+		return true;
+	}
+}
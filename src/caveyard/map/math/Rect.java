@@ -26,6 +26,19 @@ public class Rect implements Area
 		this(topleft.x, topleft.y, bottomright.x, bottomright.y);
 	}
 
+	/**
+	 * Moves the corners of this rectangle. Only used by areas which reuse
+	 * their bounds.
+	 */
+	Rect set(float x1, float y1, float x2, float y2)
+	{
+		this.x1 = Math.min(x1, x2);
+		this.y1 = Math.min(y1, y2);
+		this.x2 = Math.max(x1, x2);
+		this.y2 = Math.max(y1, y2);
+		return this;
+	}
+
 	public float getX1()
 	{
 		return x1;
@@ -56,6 +69,26 @@ public class Rect implements Area
 		return y2-y1;
 	}
 
+	/**
+	 * Computes the squared distance of a point to this rectangle. Points
+	 * inside the rectangle have a distance of 0.
+	 * @param x x-coordinate of the point.
+	 * @param y y-coordinate of the point.
+	 * @return Squared distance between the point and this rectangle.
+	 */
+	public float distanceSquared(float x, float y)
+	{
+		float dx = Math.max(0, Math.max(x1 - x, x - x2));
+		float dy = Math.max(0, Math.max(y1 - y, y - y2));
+		return dx * dx + dy * dy;
+	}
+
+	@Override
+	public Rect getBounds()
+	{
+		return this;
+	}
+
 	@Override
 	public boolean intersectsWith(Area area)
 	{
@@ -63,13 +96,19 @@ public class Rect implements Area
 			return intersectsWith((Rect) area);
 		else if (area instanceof Circle)
 			return ((Circle) area).intersectsWith(this);
-		throw new RuntimeException("Unknown class: " + area.getClass().getName());
+		return area.intersectsWith(x1, y1, x2, y2);
 	}
 
 	public boolean intersectsWith(Rect other)
 	{
-		return !(this.y1 > other.y2 || this.y2 < other.y1 ||
-				this.x1 > other.x2 || this.x2 < other.x1);
+		return intersectsWith(other.x1, other.y1, other.x2, other.y2);
+	}
+
+	@Override
+	public boolean intersectsWith(float x1, float y1, float x2, float y2)
+	{
+		return !(this.y1 > y2 || this.y2 < y1 ||
+				this.x1 > x2 || this.x2 < x1);
 	}
 
 	public boolean intersectsWith(Rect other, boolean strict)
@@ -81,7 +120,13 @@ public class Rect implements Area
 	{
 		return other.intersectsWith(this);
 	}
-	
+
+	@Override
+	public boolean contains(float x, float y)
+	{
+		return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+	}
+
 	public boolean contains(Rect other)
 	{
 		return (this.x1 <= other.x1 && this.x2 >= other.x2 &&
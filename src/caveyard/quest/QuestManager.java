@@ -1,5 +1,6 @@
 package caveyard.quest;
 
+import caveyard.assets.CookedFormat;
 import caveyard.assets.QuestsKey;
 import caveyard.xml.quests.*;
 import com.jme3.asset.AssetInfo;
@@ -7,6 +8,10 @@ import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetManager;
 
 import javax.xml.bind.JAXB;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.logging.Level;
@@ -46,7 +51,7 @@ public class QuestManager
 		return instance;
 	}
 
-	protected Quest loadQuest(QuestType questType)
+	protected static Quest loadQuest(QuestType questType)
 	{
 		String questId = questType.getUid();
 		int startState = questType.getStart();
@@ -148,6 +153,26 @@ public class QuestManager
 			LOGGER.fine("Loading quest file: \"" + file + "\"");
 		}
 
+		long startTime = System.nanoTime();
+		DataInputStream in = CookedFormat.openCooked(assetManager, file, CookedFormat.TYPE_QUESTS);
+		if (in != null)
+		{
+			try
+			{
+				loadCookedQuests(in);
+				CookedFormat.logLoadTime(LOGGER, "quests", file, true, startTime);
+				return;
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Cannot read cooked quest file of \"" + file + "\": loading XML.", e);
+			}
+			finally
+			{
+				CookedFormat.close(in);
+			}
+		}
+
 		AssetKey<QuestsType> key = new QuestsKey(file);
 		AssetInfo info = assetManager.locateAsset(key);
 		if (info == null)
@@ -157,6 +182,7 @@ public class QuestManager
 		}
 
 		QuestsType questsType = JAXB.unmarshal(info.openStream(), QuestsType.class);
+		CookedFormat.logLoadTime(LOGGER, "quests", file, false, startTime);
 
 		// load all includes
 		for (IncludeType includeType: questsType.getInclude())
@@ -171,4 +197,108 @@ public class QuestManager
 			quests.put(quest.getQuestID(), quest);
 		}
 	}
+
+	/**
+	 * Loads the quests of a cooked file written by
+	 * {@link #cook(QuestsType, DataOutput)}. The header of the file must
+	 * have been read already.
+	 */
+	protected void loadCookedQuests(DataInput in) throws IOException
+	{
+		int includeCount = in.readInt();
+		ArrayList<String> includes = new ArrayList<>(includeCount);
+		for (int i = 0; i < includeCount; i++)
+		{
+			includes.add(CookedFormat.readString(in));
+		}
+
+		// read all quests before loading includes, so a broken file does not
+		// leave the includes loaded twice when falling back to XML.
+		int questCount = in.readInt();
+		ArrayList<Quest> cookedQuests = new ArrayList<>(questCount);
+		for (int i = 0; i < questCount; i++)
+		{
+			cookedQuests.add(readQuest(in));
+		}
+
+		for (String include: includes)
+		{
+			loadQuests(include);
+		}
+
+		for (Quest quest: cookedQuests)
+		{
+			quests.put(quest.getQuestID(), quest);
+		}
+	}
+
+	protected static Quest readQuest(DataInput in) throws IOException
+	{
+		String questId = CookedFormat.readString(in);
+		int startState = in.readInt();
+		QuestStatus questStatus = QuestStatus.values()[in.readByte()];
+		String scriptFilename = CookedFormat.readString(in);
+		String questInterface = CookedFormat.readString(in);
+
+		int variableCount = in.readInt();
+		ArrayList<QuestVariable> variables = new ArrayList<>(variableCount);
+		for (int i = 0; i < variableCount; i++)
+		{
+			String name = CookedFormat.readString(in);
+			QuestVariable.Type type = QuestVariable.Type.values()[in.readByte()];
+			String defaultValue = CookedFormat.readString(in);
+			variables.add(new QuestVariable(name, type, defaultValue));
+		}
+
+		int stateCount = in.readInt();
+		HashMap<Integer, State> states = new HashMap<>(stateCount);
+		for (int i = 0; i < stateCount; i++)
+		{
+			int id = in.readInt();
+			String interfaceName = CookedFormat.readString(in);
+			states.put(id, new State(id, interfaceName));
+		}
+
+		return new Quest(questId, startState, questStatus, scriptFilename, questInterface, variables, states);
+	}
+
+	/**
+	 * Writes a quest definition file in the cooked format read by
+	 * {@link #loadCookedQuests(DataInput)}. Does not write the header.
+	 */
+	public static void cook(QuestsType questsType, DataOutput out) throws IOException
+	{
+		out.writeInt(questsType.getInclude().size());
+		for (IncludeType includeType: questsType.getInclude())
+		{
+			CookedFormat.writeString(out, includeType.getFile());
+		}
+
+		out.writeInt(questsType.getQuest().size());
+		for (QuestType questType: questsType.getQuest())
+		{
+			Quest quest = loadQuest(questType);
+
+			CookedFormat.writeString(out, quest.questID);
+			out.writeInt(quest.startState);
+			out.writeByte(quest.defaultStatus.ordinal());
+			CookedFormat.writeString(out, quest.scriptFilename);
+			CookedFormat.writeString(out, quest.questInterfaceName);
+
+			out.writeInt(quest.variables.size());
+			for (QuestVariable variable: quest.variables)
+			{
+				CookedFormat.writeString(out, variable.name);
+				out.writeByte(variable.type.ordinal());
+				CookedFormat.writeString(out, variable.defaultValue);
+			}
+
+			out.writeInt(quest.states.size());
+			for (State state: quest.states.values())
+			{
+				out.writeInt(state.stateID);
+				CookedFormat.writeString(out, state.interfaceName);
+			}
+		}
+	}
 }
@@ -0,0 +1,74 @@
+package caveyard.util;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+
+import java.nio.Buffer;
+
+/**
+ * This class provides some useful functions when working with spatials.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class SpatialUtil
+{
+	/**
+	 * Estimates the memory used by the meshes of <code>spatial</code> and
+	 * all its children. Only the data of vertex buffers (including LOD
+	 * levels) is counted. Meshes shared by several geometries are counted
+	 * once per geometry.
+	 *
+	 * @param spatial Spatial to estimate the memory of.
+	 * @return Estimated memory in bytes.
+	 */
+	public static long estimateMemory(Spatial spatial)
+	{
+		if (spatial instanceof Geometry)
+		{
+			return estimateMemory(((Geometry) spatial).getMesh());
+		}
+		else if (spatial instanceof Node)
+		{
+			long memory = 0;
+			for (Spatial child: ((Node) spatial).getChildren())
+			{
+				memory += estimateMemory(child);
+			}
+			return memory;
+		}
+		return 0;
+	}
+
+	/**
+	 * Estimates the memory used by the vertex buffers and LOD levels of
+	 * <code>mesh</code>.
+	 *
+	 * @param mesh Mesh to estimate the memory of.
+	 * @return Estimated memory in bytes.
+	 */
+	public static long estimateMemory(Mesh mesh)
+	{
+		if (mesh == null) return 0;
+
+		long memory = 0;
+		for (VertexBuffer buffer: mesh.getBufferList())
+		{
+			memory += estimateMemory(buffer);
+		}
+		for (int i = 0; i < mesh.getNumLodLevels(); i++)
+		{
+			memory += estimateMemory(mesh.getLodLevel(i));
+		}
+		return memory;
+	}
+
+	private static long estimateMemory(VertexBuffer buffer)
+	{
+		Buffer data = buffer.getData();
+		if (data == null) return 0;
+		return (long) data.capacity() * buffer.getFormat().getComponentSize();
+	}
+}
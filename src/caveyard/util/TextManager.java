@@ -1,5 +1,6 @@
 package caveyard.util;
 
+import caveyard.assets.CookedFormat;
 import caveyard.xml.text.IncludeType;
 import caveyard.xml.text.TextType;
 import caveyard.xml.text.Texts;
@@ -9,6 +10,10 @@ import com.jme3.asset.AssetManager;
 
 import javax.xml.bind.DataBindingException;
 import javax.xml.bind.JAXB;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,6 +50,26 @@ public class TextManager
 
 	private void loadTexts(String filename)
 	{
+		long startTime = System.nanoTime();
+		DataInputStream in = CookedFormat.openCooked(assetManager, filename, CookedFormat.TYPE_TEXTS);
+		if (in != null)
+		{
+			try
+			{
+				loadCookedTexts(in);
+				CookedFormat.logLoadTime(LOGGER, "texts", filename, true, startTime);
+				return;
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Cannot read cooked texts of \"" + filename + "\": loading XML.", e);
+			}
+			finally
+			{
+				CookedFormat.close(in);
+			}
+		}
+
 		AssetKey<Texts> key = new AssetKey<>(filename);
 		AssetInfo info = assetManager.locateAsset(key);
 
@@ -65,15 +90,12 @@ public class TextManager
 			LOGGER.throwing(TextManager.class.getName(), "loadTexts", e);
 			return;
 		}
+		CookedFormat.logLoadTime(LOGGER, "texts", filename, false, startTime);
 
 		// read all texts, then read all other files.
 		for (TextType textType: textsType.getText())
 		{
-			if (texts.containsKey(textType.getUid()))
-			{
-				LOGGER.warning("Text UID \"" + textType.getUid() + "\" used more than once!");
-			}
-			texts.put(textType.getUid(), textType.getValue());
+			putText(textType.getUid(), textType.getValue());
 		}
 		textsType.getText().clear(); // clear memory as we do not need the texts any more
 
@@ -84,6 +106,67 @@ public class TextManager
 		}
 	}
 
+	/**
+	 * Loads the texts of a cooked file written by
+	 * {@link #cook(Texts, DataOutput)}. The header of the file must have
+	 * been read already.
+	 */
+	private void loadCookedTexts(DataInput in) throws IOException
+	{
+		int textCount = in.readInt();
+		String[] cookedTexts = new String[textCount * 2];
+		for (int i = 0; i < cookedTexts.length; i++)
+		{
+			cookedTexts[i] = CookedFormat.readString(in);
+		}
+
+		int includeCount = in.readInt();
+		String[] includes = new String[includeCount];
+		for (int i = 0; i < includeCount; i++)
+		{
+			includes[i] = CookedFormat.readString(in);
+		}
+
+		for (int i = 0; i < cookedTexts.length; i += 2)
+		{
+			putText(cookedTexts[i], cookedTexts[i + 1]);
+		}
+
+		for (String include: includes)
+		{
+			loadTexts(include);
+		}
+	}
+
+	private void putText(String uid, String value)
+	{
+		if (texts.containsKey(uid))
+		{
+			LOGGER.warning("Text UID \"" + uid + "\" used more than once!");
+		}
+		texts.put(uid, value);
+	}
+
+	/**
+	 * Writes a texts file in the cooked format read on initialization.
+	 * Does not write the header.
+	 */
+	public static void cook(Texts textsType, DataOutput out) throws IOException
+	{
+		out.writeInt(textsType.getText().size());
+		for (TextType textType: textsType.getText())
+		{
+			CookedFormat.writeString(out, textType.getUid());
+			CookedFormat.writeString(out, textType.getValue());
+		}
+
+		out.writeInt(textsType.getInclude().size());
+		for (IncludeType includeType: textsType.getInclude())
+		{
+			CookedFormat.writeString(out, includeType.getFile());
+		}
+	}
+
 	/**
 	 * Initializes the test manager and returns the instance. Please note that all texts are loaded into RAM
 	 * when initializing the text manager.
@@ -0,0 +1,17 @@
+package caveyard.util;
+
+/**
+ * Callback receiving the results of a query one by one, so queries do not
+ * need to collect their results in a new collection.
+ *
+ * @author Maximilian Timmerkamp
+ */
+public interface Visitor<T>
+{
+	/**
+	 * Called for each result of a query.
+	 * @param value Found value.
+	 * @return true to continue the query, false to stop it.
+	 */
+	boolean visit(T value);
+}
@@ -0,0 +1,533 @@
+package caveyard.util.quadtree;
+
+import caveyard.util.Visitor;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A quadtree of values at <code>float</code> points, a primitive
+ * counterpart of {@link QuadTree}&lt;Float, Value&gt;. The tree covers a
+ * fixed rectangle which is split into four equally sized quadrants when a
+ * leaf holds more than {@link #leafCapacity} values.
+ * <p>
+ *     Nothing is stored in separate node or point objects: nodes and values
+ *     live in flat arrays addressed by index. Children of a node are four
+ *     consecutive nodes; groups of children freed when a subtree collapses
+ *     are pooled and reused. The values of a leaf form a linked list through
+ *     {@link #itemNext}, and freed value slots are reused as well. Arrays
+ *     only grow on insertion, so queries allocate nothing if the result list
+ *     has enough capacity or if the results are passed to a {@link Visitor}.
+ * </p>
+ * <p>
+ *     Quadrants are half-open: a point on a split line belongs to the east
+ *     or south quadrant. Queries are inclusive on all sides.
+ * </p>
+ *
+ * @author Maximilian Timmerkamp
+ */
+public class FloatQuadTree<Value>
+{
+	public static final int DEFAULT_LEAF_CAPACITY = 8;
+	/**
+	 * Depth at which leaves are not split anymore, so many values at the
+	 * same point cannot split the tree endlessly.
+	 */
+	protected static final int MAX_DEPTH = 20;
+
+	protected static final int NONE = -1;
+
+	protected final float x1, y1, x2, y2;
+	protected final int leafCapacity;
+
+	/**
+	 * Index of the first of the four children of each node or {@link #NONE}
+	 * if the node is a leaf. Order of the children: north west, north east,
+	 * south west, south east, where north is towards smaller y.
+	 */
+	protected int[] nodeChildren;
+	/**
+	 * First value of each leaf or {@link #NONE}.
+	 */
+	protected int[] nodeFirstItem;
+	/**
+	 * Number of values in the subtree of each node.
+	 */
+	protected int[] nodeCount;
+	protected int nodesUsed;
+	/**
+	 * Stack of the first indices of freed child groups.
+	 */
+	protected int[] freeGroups;
+	protected int freeGroupCount;
+
+	protected float[] itemX;
+	protected float[] itemY;
+	protected Object[] itemValue;
+	/**
+	 * Next value in the same leaf or in the free list.
+	 */
+	protected int[] itemNext;
+	protected int itemsUsed;
+	protected int freeItem;
+
+	public FloatQuadTree(float x1, float y1, float x2, float y2)
+	{
+		this(x1, y1, x2, y2, DEFAULT_LEAF_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty tree.
+	 * @param x1 Minimum x-coordinate of the covered rectangle.
+	 * @param y1 Minimum y-coordinate of the covered rectangle.
+	 * @param x2 Maximum x-coordinate of the covered rectangle.
+	 * @param y2 Maximum y-coordinate of the covered rectangle.
+	 * @param leafCapacity Number of values a leaf holds before it is split.
+	 */
+	public FloatQuadTree(float x1, float y1, float x2, float y2, int leafCapacity)
+	{
+		this.x1 = Math.min(x1, x2);
+		this.y1 = Math.min(y1, y2);
+		this.x2 = Math.max(x1, x2);
+		this.y2 = Math.max(y1, y2);
+		this.leafCapacity = Math.max(1, leafCapacity);
+
+		nodeChildren = new int[17];
+		nodeFirstItem = new int[17];
+		nodeCount = new int[17];
+		freeGroups = new int[4];
+
+		itemX = new float[16];
+		itemY = new float[16];
+		itemValue = new Object[16];
+		itemNext = new int[16];
+
+		clear();
+	}
+
+	/**
+	 * Removes all values. The allocated storage is kept.
+	 */
+	public void clear()
+	{
+		Arrays.fill(itemValue, 0, itemsUsed, null);
+		itemsUsed = 0;
+		freeItem = NONE;
+		freeGroupCount = 0;
+
+		nodesUsed = 1;
+		nodeChildren[0] = NONE;
+		nodeFirstItem[0] = NONE;
+		nodeCount[0] = 0;
+	}
+
+	public float getX1()
+	{
+		return x1;
+	}
+
+	public float getY1()
+	{
+		return y1;
+	}
+
+	public float getX2()
+	{
+		return x2;
+	}
+
+	public float getY2()
+	{
+		return y2;
+	}
+
+	/**
+	 * Returns the number of values stored in this tree.
+	 * @return Number of values.
+	 */
+	public int size()
+	{
+		return nodeCount[0];
+	}
+
+	/**
+	 * Checks if a point lies within the rectangle covered by this tree.
+	 */
+	public boolean contains(float x, float y)
+	{
+		return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+	}
+
+	/**
+	 * Inserts a value at a point. A value may be inserted several times.
+	 * @param x x-coordinate of the point.
+	 * @param y y-coordinate of the point.
+	 * @param value Value to insert.
+	 * @throws IndexOutOfBoundsException If the point is outside of the tree.
+	 */
+	public void insert(float x, float y, Value value)
+	{
+		if (!contains(x, y))
+		{
+			throw new IndexOutOfBoundsException("Key (" + x + ", " + y + ") not in range ([" + x1 + "; " + x2 +
+					"], [" + y1 + "; " + y2 + "]) of this tree!");
+		}
+
+		int item = allocateItem();
+		itemX[item] = x;
+		itemY[item] = y;
+		itemValue[item] = value;
+
+		int node = 0;
+		float nx1 = x1, ny1 = y1, nx2 = x2, ny2 = y2;
+		int depth = 0;
+		while (true)
+		{
+			nodeCount[node]++;
+			if (nodeChildren[node] == NONE)
+			{
+				itemNext[item] = nodeFirstItem[node];
+				nodeFirstItem[node] = item;
+				if (nodeCount[node] > leafCapacity && depth < MAX_DEPTH)
+				{
+					split(node, nx1, ny1, nx2, ny2);
+				}
+				return;
+			}
+
+			// descend into the quadrant containing the point
+			float midX = (nx1 + nx2) * 0.5f;
+			float midY = (ny1 + ny2) * 0.5f;
+			int quadrant = 0;
+			if (x >= midX)
+			{
+				quadrant |= 1;
+				nx1 = midX;
+			}
+			else
+			{
+				nx2 = midX;
+			}
+			if (y >= midY)
+			{
+				quadrant |= 2;
+				ny1 = midY;
+			}
+			else
+			{
+				ny2 = midY;
+			}
+			node = nodeChildren[node] + quadrant;
+			depth++;
+		}
+	}
+
+	/**
+	 * Removes a value at a point. Subtrees which hold few enough values
+	 * afterwards are collapsed into a leaf.
+	 * @param x x-coordinate the value was inserted at.
+	 * @param y y-coordinate the value was inserted at.
+	 * @param value Value to remove, compared by {@link Object#equals(Object)}.
+	 * @return true if the value was found and removed.
+	 */
+	public boolean remove(float x, float y, Value value)
+	{
+		if (!contains(x, y)) return false;
+
+		return remove(0, x1, y1, x2, y2, x, y, value);
+	}
+
+	protected boolean remove(int node, float nx1, float ny1, float nx2, float ny2, float x, float y, Value value)
+	{
+		final int children = nodeChildren[node];
+		if (children == NONE)
+		{
+			int previous = NONE;
+			for (int item = nodeFirstItem[node]; item != NONE; item = itemNext[item])
+			{
+				if (itemX[item] == x && itemY[item] == y &&
+						(value == null ? itemValue[item] == null : value.equals(itemValue[item])))
+				{
+					if (previous == NONE)
+					{
+						nodeFirstItem[node] = itemNext[item];
+					}
+					else
+					{
+						itemNext[previous] = itemNext[item];
+					}
+					freeItem(item);
+					nodeCount[node]--;
+					return true;
+				}
+				previous = item;
+			}
+			return false;
+		}
+
+		float midX = (nx1 + nx2) * 0.5f;
+		float midY = (ny1 + ny2) * 0.5f;
+		boolean removed;
+		if (y < midY)
+		{
+			removed = x < midX ?
+					remove(children, nx1, ny1, midX, midY, x, y, value) :
+					remove(children + 1, midX, ny1, nx2, midY, x, y, value);
+		}
+		else
+		{
+			removed = x < midX ?
+					remove(children + 2, nx1, midY, midX, ny2, x, y, value) :
+					remove(children + 3, midX, midY, nx2, ny2, x, y, value);
+		}
+
+		if (removed)
+		{
+			nodeCount[node]--;
+			if (nodeCount[node] <= leafCapacity)
+			{
+				collapse(node);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Finds all values at points within a rectangle.
+	 * @param qx1 Minimum x-coordinate of the searched rectangle.
+	 * @param qy1 Minimum y-coordinate of the searched rectangle.
+	 * @param qx2 Maximum x-coordinate of the searched rectangle.
+	 * @param qy2 Maximum y-coordinate of the searched rectangle.
+	 * @param results List to add the found values to.
+	 * @return The <code>results</code> parameter after adding found values.
+	 */
+	public List<Value> find(float qx1, float qy1, float qx2, float qy2, List<Value> results)
+	{
+		if (intersects(qx1, qy1, qx2, qy2))
+		{
+			query(0, x1, y1, x2, y2, qx1, qy1, qx2, qy2, results, null);
+		}
+		return results;
+	}
+
+	/**
+	 * Passes all values at points within a rectangle to a visitor.
+	 * @param qx1 Minimum x-coordinate of the searched rectangle.
+	 * @param qy1 Minimum y-coordinate of the searched rectangle.
+	 * @param qx2 Maximum x-coordinate of the searched rectangle.
+	 * @param qy2 Maximum y-coordinate of the searched rectangle.
+	 * @param visitor Visitor to pass the found values to.
+	 * @return false if the visitor stopped the query.
+	 */
+	public boolean visit(float qx1, float qy1, float qx2, float qy2, Visitor<? super Value> visitor)
+	{
+		return !intersects(qx1, qy1, qx2, qy2) || query(0, x1, y1, x2, y2, qx1, qy1, qx2, qy2, null, visitor);
+	}
+
+	protected boolean intersects(float qx1, float qy1, float qx2, float qy2)
+	{
+		return qx1 <= qx2 && qy1 <= qy2 && qx2 >= x1 && qx1 <= x2 && qy2 >= y1 && qy1 <= y2;
+	}
+
+	/**
+	 * Adds the values of a subtree within a rectangle to a list or passes
+	 * them to a visitor, whichever is set.
+	 * @return false if the visitor stopped the query.
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean query(int node, float nx1, float ny1, float nx2, float ny2,
+							float qx1, float qy1, float qx2, float qy2,
+							List<Value> results, Visitor<? super Value> visitor)
+	{
+		final int children = nodeChildren[node];
+		if (children == NONE)
+		{
+			final boolean inside = qx1 <= nx1 && qx2 >= nx2 && qy1 <= ny1 && qy2 >= ny2;
+			for (int item = nodeFirstItem[node]; item != NONE; item = itemNext[item])
+			{
+				if (inside || itemX[item] >= qx1 && itemX[item] <= qx2 && itemY[item] >= qy1 && itemY[item] <= qy2)
+				{
+					if (visitor == null)
+					{
+						results.add((Value) itemValue[item]);
+					}
+					else if (!visitor.visit((Value) itemValue[item]))
+					{
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		float midX = (nx1 + nx2) * 0.5f;
+		float midY = (ny1 + ny2) * 0.5f;
+		if (qy1 < midY)
+		{
+			if (qx1 < midX && nodeCount[children] > 0 &&
+					!query(children, nx1, ny1, midX, midY, qx1, qy1, qx2, qy2, results, visitor))
+			{
+				return false;
+			}
+			if (qx2 >= midX && nodeCount[children + 1] > 0 &&
+					!query(children + 1, midX, ny1, nx2, midY, qx1, qy1, qx2, qy2, results, visitor))
+			{
+				return false;
+			}
+		}
+		if (qy2 >= midY)
+		{
+			if (qx1 < midX && nodeCount[children + 2] > 0 &&
+					!query(children + 2, nx1, midY, midX, ny2, qx1, qy1, qx2, qy2, results, visitor))
+			{
+				return false;
+			}
+			if (qx2 >= midX && nodeCount[children + 3] > 0 &&
+					!query(children + 3, midX, midY, nx2, ny2, qx1, qy1, qx2, qy2, results, visitor))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Turns a leaf into an inner node and distributes its values to the
+	 * new children.
+	 */
+	protected void split(int node, float nx1, float ny1, float nx2, float ny2)
+	{
+		final int children = allocateGroup();
+		for (int i = 0; i < 4; i++)
+		{
+			nodeChildren[children + i] = NONE;
+			nodeFirstItem[children + i] = NONE;
+			nodeCount[children + i] = 0;
+		}
+
+		float midX = (nx1 + nx2) * 0.5f;
+		float midY = (ny1 + ny2) * 0.5f;
+		int item = nodeFirstItem[node];
+		while (item != NONE)
+		{
+			int next = itemNext[item];
+			int child = children + (itemX[item] >= midX ? 1 : 0) + (itemY[item] >= midY ? 2 : 0);
+			itemNext[item] = nodeFirstItem[child];
+			nodeFirstItem[child] = item;
+			nodeCount[child]++;
+			item = next;
+		}
+
+		nodeChildren[node] = children;
+		nodeFirstItem[node] = NONE;
+	}
+
+	/**
+	 * Turns an inner node into a leaf holding all values of its subtree.
+	 */
+	protected void collapse(int node)
+	{
+		final int children = nodeChildren[node];
+		if (children == NONE) return;
+
+		int first = NONE;
+		for (int i = 0; i < 4; i++)
+		{
+			first = gather(children + i, first);
+		}
+		freeGroup(children);
+
+		nodeChildren[node] = NONE;
+		nodeFirstItem[node] = first;
+	}
+
+	/**
+	 * Prepends all values of a subtree to a list and frees the subtree's
+	 * child groups.
+	 * @return The new head of the list.
+	 */
+	protected int gather(int node, int first)
+	{
+		final int children = nodeChildren[node];
+		if (children != NONE)
+		{
+			for (int i = 0; i < 4; i++)
+			{
+				first = gather(children + i, first);
+			}
+			freeGroup(children);
+			return first;
+		}
+
+		int item = nodeFirstItem[node];
+		while (item != NONE)
+		{
+			int next = itemNext[item];
+			itemNext[item] = first;
+			first = item;
+			item = next;
+		}
+		return first;
+	}
+
+	protected int allocateGroup()
+	{
+		if (freeGroupCount > 0)
+		{
+			return freeGroups[--freeGroupCount];
+		}
+
+		if (nodesUsed + 4 > nodeChildren.length)
+		{
+			int capacity = nodeChildren.length * 2 + 3;
+			nodeChildren = Arrays.copyOf(nodeChildren, capacity);
+			nodeFirstItem = Arrays.copyOf(nodeFirstItem, capacity);
+			nodeCount = Arrays.copyOf(nodeCount, capacity);
+		}
+		int group = nodesUsed;
+		nodesUsed += 4;
+		return group;
+	}
+
+	protected void freeGroup(int group)
+	{
+		if (freeGroupCount == freeGroups.length)
+		{
+			freeGroups = Arrays.copyOf(freeGroups, freeGroups.length * 2);
+		}
+		freeGroups[freeGroupCount++] = group;
+	}
+
+	protected int allocateItem()
+	{
+		if (freeItem != NONE)
+		{
+			int item = freeItem;
+			freeItem = itemNext[item];
+			return item;
+		}
+
+		if (itemsUsed == itemX.length)
+		{
+			int capacity = itemX.length * 2;
+			itemX = Arrays.copyOf(itemX, capacity);
+			itemY = Arrays.copyOf(itemY, capacity);
+			itemValue = Arrays.copyOf(itemValue, capacity);
+			itemNext = Arrays.copyOf(itemNext, capacity);
+		}
+		return itemsUsed++;
+	}
+
+	protected void freeItem(int item)
+	{
+		itemValue[item] = null;
+		itemNext[item] = freeItem;
+		freeItem = item;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FloatQuadTree([" + x1 + "; " + x2 + "], [" + y1 + "; " + y2 + "], " + size() + " values)";
+	}
+}
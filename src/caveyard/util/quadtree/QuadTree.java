@@ -2,6 +2,7 @@ package caveyard.util.quadtree;
 
 import caveyard.util.MergeImpossibleException;
 import caveyard.util.Mergeable;
+import caveyard.util.Visitor;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -27,6 +28,12 @@ public class QuadTree<Key extends Comparable<Key>, Value>
 
 		public abstract Node insert(QuadPoint<Key> point, QuadRange<Key> range, Value value);
 		public abstract List<Value> find2D(QuadRange<Key> range, List<Value> results);
+		/**
+		 * Passes the values of this subtree found by
+		 * {@link #find2D(QuadRange, List)} to a visitor.
+		 * @return false if the visitor stopped the query.
+		 */
+		public abstract boolean visit2D(QuadRange<Key> range, Visitor<? super Value> visitor);
 
 		@Override
 		public String toString()
@@ -95,6 +102,17 @@ public class QuadTree<Key extends Comparable<Key>, Value>
 			}
 			return results;
 		}
+
+		@Override
+		public boolean visit2D(QuadRange<Key> range, Visitor<? super Value> visitor)
+		{
+			if (range.contains(point) || range.intersectsWith(this.range))
+			{
+				return this.nw.visit2D(range, visitor) && this.ne.visit2D(range, visitor) &&
+						this.se.visit2D(range, visitor) && this.sw.visit2D(range, visitor);
+			}
+			return true;
+		}
 	}
 
 	public class Leaf extends Node
@@ -149,6 +167,16 @@ public class QuadTree<Key extends Comparable<Key>, Value>
 			}
 			return results;
 		}
+
+		@Override
+		public boolean visit2D(QuadRange<Key> range, Visitor<? super Value> visitor)
+		{
+			if (range.contains(point) || range.intersectsWith(this.range))
+			{
+				return visitor.visit(value);
+			}
+			return true;
+		}
 	}
 
 	public class EmptyLeaf extends Node
@@ -170,6 +198,12 @@ public class QuadTree<Key extends Comparable<Key>, Value>
 			return results;
 		}
 
+		@Override
+		public boolean visit2D(QuadRange<Key> range, Visitor<? super Value> visitor)
+		{
+			return true;
+		}
+
 		@Override
 		public String toString()
 		{
@@ -205,9 +239,31 @@ public class QuadTree<Key extends Comparable<Key>, Value>
 
 	public List<Value> find(QuadRange<Key> range)
 	{
-		ArrayList<Value> results = new ArrayList<>();
+		return find(range, new ArrayList<Value>());
+	}
+
+	/**
+	 * Finds all values in a range and adds them to a caller-owned list,
+	 * which can be reused between queries.
+	 * @param range Searched range.
+	 * @param results List to add the found values to.
+	 * @return The <code>results</code> parameter after adding found values.
+	 */
+	public List<Value> find(QuadRange<Key> range, List<Value> results)
+	{
 		rootNode.find2D(range, results);
 
 		return results;
 	}
+
+	/**
+	 * Passes all values in a range to a visitor instead of collecting them.
+	 * @param range Searched range.
+	 * @param visitor Visitor to pass the found values to.
+	 * @return false if the visitor stopped the query.
+	 */
+	public boolean visit(QuadRange<Key> range, Visitor<? super Value> visitor)
+	{
+		return rootNode.visit2D(range, visitor);
+	}
 }
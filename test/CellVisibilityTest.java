@@ -0,0 +1,66 @@
+import caveyard.map.CellVisibility;
+import caveyard.map.CellVisibility.Portal;
+import caveyard.map.math.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the potentially visible sets of {@link CellVisibility} on a small
+ * map where the depth first search reaches a portal through a longer chain
+ * before it reaches it directly. Cells seen only along the direct chain
+ * must still be in the set. Exits with an error if a check fails.
+ */
+public class CellVisibilityTest
+{
+	private static final int S = 0, M = 1, N = 2, B = 3, T = 4, U = 5, V = 6;
+
+	private static boolean failed = false;
+
+	public static void main(String[] args)
+	{
+		List<Rect> areas = Arrays.asList(
+				new Rect(0, 0, 10, 20),   // S: source
+				new Rect(10, 10, 20, 20), // M: upper way from S to B
+				new Rect(10, 0, 20, 10),  // N: lower way from S to B
+				new Rect(20, 0, 30, 20),  // B
+				new Rect(30, 0, 40, 20),  // T
+				new Rect(40, 0, 50, 20),  // U: seen from S through N only
+				new Rect(20, 20, 30, 30)  // V: hidden from S
+		);
+
+		// S's portal to M comes first, so M's chain reaches B and T first
+		List<Portal> portals = new ArrayList<>();
+		portals.add(new Portal(S, M, 10, 10, 10, 20));
+		portals.add(new Portal(M, B, 20, 17, 20, 19));
+		portals.add(new Portal(S, N, 10, 0, 10, 10));
+		portals.add(new Portal(N, B, 20, 4, 20, 6));
+		portals.add(new Portal(B, T, 30, 0, 30, 20));
+		portals.add(new Portal(T, U, 40, 0, 40, 2));
+		portals.add(new Portal(B, V, 20, 20, 21, 20));
+
+		CellVisibility visibility = CellVisibility.compute(areas, portals, CellVisibility.DEFAULT_MAX_DISTANCE);
+
+		check("source sees itself", visibility.isVisible(S, S));
+		check("source sees both neighbours", visibility.isVisible(S, M) && visibility.isVisible(S, N));
+		check("source sees cells behind the shared portal", visibility.isVisible(S, B) &&
+				visibility.isVisible(S, T));
+		check("source sees cell seen along the second chain only", visibility.isVisible(S, U));
+		check("source does not see hidden cell", !visibility.isVisible(S, V));
+		check("visibility is symmetric here", visibility.isVisible(U, S) && !visibility.isVisible(V, S));
+
+		if (failed)
+		{
+			System.out.println("Some checks failed.");
+			System.exit(1);
+		}
+		System.out.println("All checks passed.");
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		failed |= !ok;
+		System.out.println(String.format("%-55s %s", name, ok ? "ok" : "FAILED"));
+	}
+}
@@ -0,0 +1,93 @@
+import caveyard.map.Map;
+import caveyard.map.MapObjectsControl;
+import caveyard.map.ObjectsCell;
+import caveyard.map.ObjectsTree;
+import com.jme3.bullet.PhysicsSpace;
+import com.jme3.bullet.collision.shapes.BoxCollisionShape;
+import com.jme3.bullet.control.RigidBodyControl;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.system.NativeLibraryLoader;
+
+import java.util.ArrayList;
+
+/**
+ * Attaches a {@link MapObjectsControl} to a map using a real
+ * {@link PhysicsSpace} and checks that objects in physics range become
+ * dynamic objects of the {@link ObjectsTree}, are relocated after physics
+ * ticks and become static again when they leave the range. Needs the
+ * Bullet native library. Exits with an error if a check fails.
+ */
+public class PhysicsRelocationTest
+{
+	private static boolean failed = false;
+
+	public static void main(String[] args)
+	{
+		NativeLibraryLoader.loadNativeLibrary("bulletjme", true);
+
+		PhysicsSpace space = new PhysicsSpace(new Vector3f(-1000, -1000, -1000), new Vector3f(1000, 1000, 1000),
+				PhysicsSpace.BroadphaseType.DBVT);
+		space.setGravity(Vector3f.ZERO);
+
+		Map map = new Map(null);
+		ObjectsTree objectsTree = map.getObjectsTree();
+
+		Node player = new Node("player");
+		MapObjectsControl control = new MapObjectsControl(player, 200, 100, 0.5f, space);
+		map.getMapNode().addControl(control);
+
+		Spatial object = new Node("object");
+		object.setLocalTranslation(1, 0, 1);
+		object.addControl(new RigidBodyControl(new BoxCollisionShape(new Vector3f(0.5f, 0.5f, 0.5f)), 1));
+		object.updateGeometricState();
+		objectsTree.insert(object);
+
+		control.update(0.016f);
+		check("object in physics range is dynamic", objectsTree.isDynamic(object));
+		check("object in physics range is in the physics space",
+				object.getControl(RigidBodyControl.class).getPhysicsSpace() == space);
+
+		// move the body far outside of its bucket, the tick listener relocates it
+		object.getControl(RigidBodyControl.class).setPhysicsLocation(new Vector3f(50, 0, 1));
+		space.update(1 / 60f);
+		check("object is relocated after a physics tick", bucketHolds(objectsTree, 50, 1, object));
+		check("object is not in its old bucket", !bucketHolds(objectsTree, 1, 1, object));
+
+		// leave the physics range
+		object.getControl(RigidBodyControl.class).update(0);
+		player.setLocalTranslation(500, 0, 500);
+		player.updateGeometricState();
+		control.update(0.016f);
+		check("object out of physics range is static", !objectsTree.isDynamic(object));
+		check("object out of physics range is still stored", objectsTree.contains(object));
+		check("object out of physics range left the physics space",
+				object.getControl(RigidBodyControl.class).getPhysicsSpace() == null);
+
+		map.getMapNode().removeControl(control);
+		space.destroy();
+
+		if (failed)
+		{
+			System.out.println("Some checks failed.");
+			System.exit(1);
+		}
+		System.out.println("All checks passed.");
+	}
+
+	private static boolean bucketHolds(ObjectsTree objectsTree, float x, float y, Spatial object)
+	{
+		for (ObjectsCell cell: objectsTree.find(x, y, x, y, new ArrayList<ObjectsCell>()))
+		{
+			if (cell.getDynamicObjects().contains(object)) return true;
+		}
+		return false;
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		failed |= !ok;
+		System.out.println(String.format("%-55s %s", name, ok ? "ok" : "FAILED"));
+	}
+}
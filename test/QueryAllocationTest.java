@@ -0,0 +1,211 @@
+import caveyard.map.ObjectsCell;
+import caveyard.map.ObjectFilter;
+import caveyard.map.ObjectsTree;
+import caveyard.map.UserDataFilter;
+import caveyard.util.Visitor;
+import caveyard.util.quadtree.FloatQuadTree;
+import caveyard.util.quadtree.QuadPoint;
+import caveyard.util.quadtree.QuadRange;
+import caveyard.util.quadtree.QuadTree;
+import com.jme3.math.Vector2f;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that the buffer, visitor and nearest-neighbour queries of
+ * {@link ObjectsTree} and the queries of {@link FloatQuadTree} and
+ * {@link QuadTree} allocate nothing once warmed up. Prints the bytes allocated per query and exits with an error if any
+ * query allocates.
+ */
+public class QueryAllocationTest
+{
+	private static final int QUERIES = 100000;
+
+	private static com.sun.management.ThreadMXBean threadBean;
+	private static long threadId;
+	private static boolean failed = false;
+
+	private static int count;
+
+	private static final Visitor<Object> COUNTER = new Visitor<Object>()
+	{
+		@Override
+		public boolean visit(Object value)
+		{
+			count++;
+			return true;
+		}
+	};
+
+	private interface Query
+	{
+		void run(int i);
+	}
+
+	public static void main(String[] args)
+	{
+		threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threadId = Thread.currentThread().getId();
+
+		Random random = new Random(42);
+
+		final ObjectsTree objectsTree = new ObjectsTree(new Vector2f(10, 10));
+		objectsTree.setUseQuadTree(true);
+		for (int i = 0; i < 20000; i++)
+		{
+			Spatial object = new Node("object " + i);
+			object.setLocalTranslation(random.nextFloat() * 2000 - 1000, 0, random.nextFloat() * 2000 - 1000);
+			if (i % 50 == 0)
+			{
+				object.setUserData("interactable", true);
+			}
+			object.updateGeometricState();
+			objectsTree.insert(object);
+		}
+
+		final FloatQuadTree<Integer> floatTree = new FloatQuadTree<>(-1000, -1000, 1000, 1000);
+		final QuadTree<Float, Integer> quadTree = new QuadTree<>(new QuadRange<>(new QuadPoint<>(-1000f, -1000f),
+				new QuadPoint<>(1000f, 1000f)), false);
+		for (int i = 0; i < 5000; i++)
+		{
+			float x = random.nextFloat() * 2000 - 1000;
+			float y = random.nextFloat() * 2000 - 1000;
+			floatTree.insert(x, y, i);
+			quadTree.insert(new QuadPoint<>(x, y), i);
+		}
+		final QuadRange<Float> quadRange = new QuadRange<>(new QuadPoint<>(-50f, -50f), new QuadPoint<>(50f, 50f));
+
+		final ArrayList<ObjectsCell> cells = new ArrayList<>(1000);
+		final ArrayList<Spatial> objects = new ArrayList<>(1000);
+		final ArrayList<Integer> values = new ArrayList<>(1000);
+		final ObjectFilter interactable = new UserDataFilter("interactable");
+
+		check("ObjectsTree.find", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				cells.clear();
+				count += objectsTree.find(x, x, x + 50, x + 50, cells).size();
+			}
+		});
+		check("ObjectsTree.visit", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				objectsTree.visit(x, x, x + 50, x + 50, COUNTER);
+			}
+		});
+		check("ObjectsTree.findObjects", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				objects.clear();
+				count += objectsTree.findObjects(x, x, x + 50, x + 50, objects).size();
+			}
+		});
+		check("ObjectsTree.visitObjects", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				objectsTree.visitObjects(x, x, x + 50, x + 50, COUNTER);
+			}
+		});
+		check("ObjectsTree.findNearest", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				objects.clear();
+				count += objectsTree.findNearest(x, -x, 8, Float.POSITIVE_INFINITY, null, objects).size();
+			}
+		});
+		check("ObjectsTree.findNearest filter", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				if (objectsTree.findNearest(x, -x, 100, interactable) != null) count++;
+			}
+		});
+		check("FloatQuadTree.find", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				values.clear();
+				count += floatTree.find(x, x, x + 100, x + 100, values).size();
+			}
+		});
+		check("FloatQuadTree.visit", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				float x = (i % 100) * 10 - 500;
+				floatTree.visit(x, x, x + 100, x + 100, COUNTER);
+			}
+		});
+		check("QuadTree.find", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				values.clear();
+				count += quadTree.find(quadRange, values).size();
+			}
+		});
+		check("QuadTree.visit", new Query()
+		{
+			@Override
+			public void run(int i)
+			{
+				quadTree.visit(quadRange, COUNTER);
+			}
+		});
+
+		if (failed)
+		{
+			System.out.println("Some queries allocate memory.");
+			System.exit(1);
+		}
+		System.out.println("No query allocates memory.");
+	}
+
+	private static void check(String name, Query query)
+	{
+		// warm up, so the queries are compiled
+		for (int i = 0; i < QUERIES; i++)
+		{
+			query.run(i);
+		}
+
+		count = 0;
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < QUERIES; i++)
+		{
+			query.run(i);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+		// allow for the few bytes allocated by measuring itself
+		boolean ok = allocated < QUERIES / 100;
+		failed |= !ok;
+		System.out.println(String.format("%-32s %8.3f bytes per query, %d results %s", name,
+				(double) allocated / QUERIES, count, ok ? "" : "FAILED"));
+	}
+}